@@ -0,0 +1,103 @@
+package com.overit.tomcat.redis;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Count the requests in progress for each session, and run the actions waiting for a session to be idle as soon as
+ * its last request ends.
+ *
+ * <p>The counter of a session is removed once it drops to zero, and it cannot be incremented anymore: the next request
+ * creates a new one. The actions waiting for it are run by the thread that removes it, or by the thread adding the
+ * last action if the counter has been removed in the meanwhile, but never twice.</p>
+ */
+final class ActiveRequests {
+
+    private static final class Activity {
+        private static final int RETIRED = -1;
+
+        private final AtomicInteger count = new AtomicInteger();
+        private final Queue<Runnable> whenIdle = new ConcurrentLinkedQueue<>();
+
+        private boolean enter() {
+            for (int c = count.get(); c != RETIRED; c = count.get()) {
+                if (count.compareAndSet(c, c + 1)) return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return {@code true} if it was the last request, so the activity is retired
+         */
+        private boolean exit() {
+            return count.decrementAndGet() == 0 && count.compareAndSet(0, RETIRED);
+        }
+
+        private boolean isRetired() {
+            return count.get() == RETIRED;
+        }
+
+        private void runWhenIdle() {
+            for (Runnable action = whenIdle.poll(); action != null; action = whenIdle.poll()) {
+                action.run();
+            }
+        }
+    }
+
+    private final Map<String, Activity> activities = new ConcurrentHashMap<>();
+
+    /**
+     * Track the start of a request for the given session
+     *
+     * @param id the session identifier
+     */
+    void begin(String id) {
+        while (true) {
+            Activity activity = activities.computeIfAbsent(id, k -> new Activity());
+            if (activity.enter()) return;
+            // retired in the meanwhile
+            activities.remove(id, activity);
+        }
+    }
+
+    /**
+     * Track the end of a request for the given session, that was {@link #begin(String) begun} before
+     *
+     * @param id the session identifier
+     */
+    void end(String id) {
+        Activity activity = activities.get(id);
+        if (activity == null || !activity.exit()) return;
+        activities.remove(id, activity);
+        activity.runWhenIdle();
+    }
+
+    /**
+     * @param id the session identifier
+     * @return {@code true} if any request for the given session is in progress
+     */
+    boolean isActive(String id) {
+        Activity activity = activities.get(id);
+        return activity != null && !activity.isRetired();
+    }
+
+    /**
+     * Run the given action once no request for the given session is in progress: immediately if there is none, or by
+     * the thread ending the last one otherwise
+     *
+     * @param id     the session identifier
+     * @param action the action to run
+     */
+    void whenIdle(String id, Runnable action) {
+        Activity activity = activities.get(id);
+        if (activity == null) {
+            action.run();
+            return;
+        }
+        activity.whenIdle.add(action);
+        if (activity.isRetired()) activity.runWhenIdle();
+    }
+}
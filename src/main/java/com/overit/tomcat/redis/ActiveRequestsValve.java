@@ -0,0 +1,113 @@
+package com.overit.tomcat.redis;
+
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpSessionEvent;
+import jakarta.servlet.http.HttpSessionIdListener;
+import jakarta.servlet.http.HttpSessionListener;
+import org.apache.catalina.Session;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Track the requests in progress for each session, so that a session is drained to another node only once the
+ * requests using it are over. A request is tracked by the session identifier it carries, and by the identifiers of the
+ * sessions it creates or changes, until the end of its asynchronous processing, if any.
+ *
+ * <p>The sessions created or changed are reported by the session events, that the valve receives as an application
+ * listener, in the thread processing the request.</p>
+ */
+class ActiveRequestsValve extends ValveBase implements HttpSessionListener, HttpSessionIdListener {
+
+    private final ActiveRequests activeRequests;
+
+    /**
+     * The session identifiers tracked for the request processed by the current thread
+     */
+    private final ThreadLocal<Set<String>> tracked = new ThreadLocal<>();
+
+    ActiveRequestsValve(ActiveRequests activeRequests) {
+        super(true);
+        this.activeRequests = activeRequests;
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        Set<String> ids = new LinkedHashSet<>();
+        Set<String> outer = tracked.get();
+        tracked.set(ids);
+        String requested = request.getRequestedSessionId();
+        if (requested != null) begin(ids, requested);
+
+        boolean async = false;
+        try {
+            getNext().invoke(request, response);
+            if (request.isAsync()) {
+                // a session created in another thread; with no requested session, its lookup costs nothing
+                Session session = requested == null ? request.getSessionInternal(false) : null;
+                if (session != null) begin(ids, session.getIdInternal());
+                if (!ids.isEmpty()) request.getAsyncContext().addListener(new EndListener(ids));
+                async = true;
+            }
+        } finally {
+            if (outer == null) tracked.remove();
+            else tracked.set(outer);
+            if (!async) ids.forEach(activeRequests::end);
+        }
+    }
+
+    @Override
+    public void sessionCreated(HttpSessionEvent se) {
+        track(se.getSession().getId());
+    }
+
+    @Override
+    public void sessionIdChanged(HttpSessionEvent se, String oldSessionId) {
+        // the old identifier is tracked until the end of the request anyway
+        track(se.getSession().getId());
+    }
+
+    private void track(String id) {
+        Set<String> ids = tracked.get();
+        if (ids != null) begin(ids, id);
+    }
+
+    private void begin(Set<String> ids, String id) {
+        if (ids.add(id)) activeRequests.begin(id);
+    }
+
+    private final class EndListener implements AsyncListener {
+        private final Set<String> ids;
+
+        private EndListener(Set<String> ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            ids.forEach(activeRequests::end);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            // followed by the completion
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            // followed by the completion
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // the listeners are cleared when the asynchronous processing starts again
+            event.getAsyncContext().addListener(this);
+        }
+    }
+}
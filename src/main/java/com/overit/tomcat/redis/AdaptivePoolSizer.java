@@ -0,0 +1,99 @@
+package com.overit.tomcat.redis;
+
+import org.apache.commons.pool2.impl.GenericObjectPool;
+
+/**
+ * Size the idle connections kept by a pool after the borrow wait times observed in the last period.
+ *
+ * <p>A borrow served by an idle connection takes a few micros, while a borrow that has to open a new connection, or
+ * to wait for a busy one, takes millis. When the borrows wait, the idle connections are grown so that they cover the
+ * concurrency observed, up to the maximum number of connections; after many quiet periods they are halved, down to
+ * the configured values, so that the pool follows the load without keeping idle connections forever.</p>
+ */
+class AdaptivePoolSizer {
+
+    /** Mean borrow wait time, in millis, from which the pool is considered too small */
+    static final long WAIT_THRESHOLD = 1;
+    /** Number of periods without waits after which the pool is shrunk */
+    static final int QUIET_PERIODS = 30;
+
+    private final int baseMinIdle;
+    private final int baseMaxIdle;
+    private final int maxTotal;
+    private int minIdle;
+    private int maxIdle;
+    private int peakActive;
+    private int quietPeriods;
+    private long borrowed;
+
+    /**
+     * @param minIdle  the configured minimum number of idle connections
+     * @param maxIdle  the configured maximum number of idle connections
+     * @param maxTotal the maximum number of connections
+     */
+    AdaptivePoolSizer(int minIdle, int maxIdle, int maxTotal) {
+        this.baseMinIdle = minIdle;
+        this.baseMaxIdle = maxIdle;
+        this.maxTotal = maxTotal < 0 ? Integer.MAX_VALUE : maxTotal;
+        this.minIdle = minIdle;
+        this.maxIdle = maxIdle;
+    }
+
+    int getMinIdle() {
+        return minIdle;
+    }
+
+    int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * Update the sizes after the metrics of the last period
+     *
+     * @param active   the connections in use
+     * @param waiters  the threads waiting for a connection
+     * @param meanWait the mean borrow wait time of the recent borrows, in millis
+     * @param borrows  the number of borrows in the last period
+     * @return {@code true} if the sizes changed
+     */
+    boolean resize(int active, int waiters, long meanWait, long borrows) {
+        int oldMinIdle = minIdle;
+        int oldMaxIdle = maxIdle;
+        int demand = active + waiters;
+        peakActive = Math.max(peakActive, demand);
+
+        if (waiters > 0 || (borrows > 0 && meanWait >= WAIT_THRESHOLD)) {
+            quietPeriods = 0;
+            maxIdle = Math.min(maxTotal, Math.max(demand, Math.max(maxIdle * 2, 1)));
+            minIdle = Math.min(maxIdle, Math.max(minIdle, demand / 2));
+        } else if (++quietPeriods >= QUIET_PERIODS) {
+            quietPeriods = 0;
+            maxIdle = Math.max(baseMaxIdle, Math.max(peakActive, maxIdle / 2));
+            minIdle = Math.min(maxIdle, Math.max(baseMinIdle, minIdle / 2));
+            peakActive = 0;
+        }
+        return minIdle != oldMinIdle || maxIdle != oldMaxIdle;
+    }
+
+    /**
+     * Read the metrics of the given pool and resize it
+     *
+     * @param pool the pool to be resized
+     */
+    void adapt(GenericObjectPool<?> pool) {
+        long total = pool.getBorrowedCount();
+        long borrows = total - borrowed;
+        borrowed = total;
+
+        if (resize(pool.getNumActive(), pool.getNumWaiters(), pool.getMeanBorrowWaitDuration().toMillis(), borrows)) {
+            // the maximum first, so that the minimum never exceeds it
+            pool.setMaxIdle(maxIdle);
+            pool.setMinIdle(minIdle);
+            try {
+                pool.preparePool();
+            } catch (Exception e) {
+                // the idle connections are created again by the next run of the evictor
+            }
+        }
+    }
+}
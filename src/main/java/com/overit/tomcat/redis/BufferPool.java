@@ -0,0 +1,93 @@
+package com.overit.tomcat.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Striped pool of growable byte buffers, used to serialize the sessions without allocating and growing a new buffer
+ * each time.
+ *
+ * <p>Each thread picks the stripe associated with its identifier, so that the threads rarely compete for the same
+ * buffer. When the stripe is empty a new buffer is allocated, and when it is already full the released buffer is
+ * dropped. The buffers grown bigger than the configured limit are never retained, so that a few huge sessions do not
+ * pin memory forever.</p>
+ *
+ * <p>The pool is owned by its component, instead of being bound to the threads, so that no reference to the
+ * buffers survives a reload of the web application.</p>
+ */
+class BufferPool {
+
+    private static final int DEFAULT_BUFFER_SIZE = 4 * 1024;
+
+    /**
+     * Byte array output stream that exposes its internal buffer, in order to read its content without copying it.
+     */
+    static final class Buffer extends ByteArrayOutputStream {
+
+        Buffer(int size) {
+            super(size);
+        }
+
+        /**
+         * @return the internal buffer, whose valid content is in the range {@code [0, size())}
+         */
+        byte[] array() {
+            return buf;
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (buf.length < capacity) buf = new byte[capacity];
+        }
+    }
+
+    private final AtomicReferenceArray<Buffer> stripes;
+    private final int mask;
+    private final int maxRetainedSize;
+
+    /**
+     * @param maxRetainedSize the maximum capacity of the buffers kept by the pool, expressed in bytes
+     */
+    BufferPool(int maxRetainedSize) {
+        int size = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        this.stripes = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.maxRetainedSize = maxRetainedSize;
+    }
+
+    /**
+     * Take an empty buffer from the pool
+     *
+     * @param sizeHint the expected size of the content, or zero if it is unknown
+     * @return an empty buffer whose capacity is at least the expected size
+     */
+    Buffer acquire(int sizeHint) {
+        // leave some room, since the content is likely to be slightly bigger than the previous one
+        int capacity = Math.max(DEFAULT_BUFFER_SIZE, sizeHint + (sizeHint >> 3));
+        Buffer buffer = stripes.getAndSet(stripe(), null);
+        if (buffer == null) return new Buffer(capacity);
+
+        buffer.reset();
+        buffer.ensureCapacity(capacity);
+        return buffer;
+    }
+
+    /**
+     * Give back the buffer to the pool. The buffer must not be used anymore.
+     *
+     * @param buffer the buffer to be released
+     */
+    void release(Buffer buffer) {
+        if (buffer.capacity() > maxRetainedSize) return;
+        stripes.compareAndSet(stripe(), null, buffer);
+    }
+
+    @SuppressWarnings("deprecation") // Thread.threadId() is not available in Java 17
+    private int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,105 @@
+package com.overit.tomcat.redis;
+
+import org.apache.catalina.session.StandardSession;
+
+import java.io.*;
+import java.util.Collections;
+
+/**
+ * Object output stream that fails as soon as it meets an object that cannot be serialized.
+ *
+ * <p>{@link StandardSession#writeObjectData(ObjectOutputStream)} silently drops the attributes that are not
+ * {@link Serializable}, and it only logs the {@link NotSerializableException} raised by the attributes holding a
+ * reference to a non-serializable object, leaving a broken stream. This stream checks the type of each object before
+ * it is written, so that the session can be saved in a single pass without serializing it twice to find out if it
+ * can be saved at all. The verdict is cached for each class.</p>
+ *
+ * <p>The checks can be disabled, in order to keep the lenient behaviour of Tomcat.</p>
+ */
+class CheckedObjectOutputStream extends ObjectOutputStream {
+
+    private static final ClassValue<Boolean> SERIALIZABLE = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return Serializable.class.isAssignableFrom(type) || type.isArray() || type.isEnum();
+        }
+    };
+
+    /**
+     * Unchecked wrapper used to get through the {@code catch (NotSerializableException)} of the session
+     * serialization.
+     */
+    static final class NotSerializableObjectException extends RuntimeException {
+        NotSerializableObjectException(String className) {
+            super(className, null, false, false);
+        }
+    }
+
+    private final boolean strict;
+
+    CheckedObjectOutputStream(OutputStream out) throws IOException {
+        this(out, true);
+    }
+
+    CheckedObjectOutputStream(OutputStream out, boolean strict) throws IOException {
+        super(out);
+        this.strict = strict;
+        enableReplaceObject(true);
+    }
+
+    static boolean isSerializable(Object obj) {
+        return obj == null || SERIALIZABLE.get(obj.getClass());
+    }
+
+    /**
+     * Check the type of the attributes of the session, that would be dropped by the serialization otherwise
+     *
+     * @param session the session to be checked
+     * @throws NotSerializableException if an attribute is not serializable
+     */
+    static void checkAttributes(StandardSession session) throws NotSerializableException {
+        for (String name : Collections.list(session.getAttributeNames())) {
+            Object value = session.getAttribute(name);
+            if (!isSerializable(value)) throw new NotSerializableException(value.getClass().getName());
+        }
+    }
+
+    /**
+     * Serialize the given session
+     *
+     * @param session the session to be serialized
+     * @param out     the output stream
+     * @throws NotSerializableException if the session holds an object that cannot be serialized
+     */
+    static void writeSession(StandardSession session, CheckedObjectOutputStream out) throws IOException {
+        if (out.strict) checkAttributes(session);
+        try {
+            session.writeObjectData(out);
+            out.flush();
+        } catch (NotSerializableObjectException e) {
+            throw new NotSerializableException(e.getMessage());
+        }
+    }
+
+    /**
+     * Serialize the given object
+     *
+     * @param obj the object to be serialized
+     * @param out the output stream
+     * @throws NotSerializableException if the object holds an object that cannot be serialized
+     */
+    static void writeValue(Object obj, CheckedObjectOutputStream out) throws IOException {
+        try {
+            out.writeObject(obj);
+            out.flush();
+        } catch (NotSerializableObjectException e) {
+            throw new NotSerializableException(e.getMessage());
+        }
+    }
+
+    @Override
+    protected Object replaceObject(Object obj) throws IOException {
+        if (strict && !isSerializable(obj)) throw new NotSerializableObjectException(obj.getClass().getName());
+        return obj;
+    }
+}
@@ -0,0 +1,434 @@
+package com.overit.tomcat.redis;
+
+import org.apache.catalina.session.StandardSession;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Codec that stores the attributes of the common JDK types (dates, primitive arrays and the standard collections of
+ * strings, boxed primitives and UUIDs) in a compact tagged binary format, much smaller and faster to handle than the
+ * java serialization, which is kept for the session metadata and for any other attribute.
+ *
+ * <p>The payload is made of three sections, each one starting with its size:</p>
+ * <ul>
+ *     <li>the {@link SessionMetadata session metadata}, holding inline the strings and the boxed primitives</li>
+ *     <li>the attributes stored in the compact format, each one as its name followed by its tagged value</li>
+ *     <li>the other attributes, each one as its name followed by its value, in a single java serialization stream so
+ *     that the objects shared between them are preserved</li>
+ * </ul>
+ *
+ * <p>The identity of the objects is not preserved by the compact format, so a value is stored in it only if none of
+ * its mutable parts is shared with another attribute.</p>
+ */
+class CompactSessionCodec implements SessionCodec {
+
+    static final int FORMAT = 1;
+    static final String NAME = "compact";
+
+    private static final int MAX_DEPTH = 8;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte TRUE = 2;
+    private static final byte FALSE = 3;
+    private static final byte BYTE = 4;
+    private static final byte SHORT = 5;
+    private static final byte CHAR = 6;
+    private static final byte INT = 7;
+    private static final byte LONG = 8;
+    private static final byte FLOAT = 9;
+    private static final byte DOUBLE = 10;
+    private static final byte DATE = 11;
+    private static final byte UUID_ = 12;
+    private static final byte BYTE_ARRAY = 13;
+    private static final byte INT_ARRAY = 14;
+    private static final byte LONG_ARRAY = 15;
+    private static final byte DOUBLE_ARRAY = 16;
+    private static final byte ARRAY_LIST = 17;
+    private static final byte LINKED_LIST = 18;
+    private static final byte HASH_SET = 19;
+    private static final byte LINKED_HASH_SET = 20;
+    private static final byte HASH_MAP = 21;
+    private static final byte LINKED_HASH_MAP = 22;
+
+    private final boolean strict;
+
+    /**
+     * @param strict if {@code true} the sessions holding a non-serializable object are rejected, otherwise the
+     *               non-serializable attributes are dropped as done by Tomcat
+     */
+    CompactSessionCodec(boolean strict) {
+        this.strict = strict;
+    }
+
+    @Override
+    public int getFormat() {
+        return FORMAT;
+    }
+
+    @Override
+    public void encode(StandardSession session, OutputStream out) throws IOException {
+        ByteArrayOutputStream metadata = new ByteArrayOutputStream();
+        Map<String, Object> external = new LinkedHashMap<>();
+        try {
+            SessionMetadata.write(session, value -> !SessionMetadata.isInline(value), external, strict,
+                metadata);
+        } catch (SessionMetadata.SharedObjectException e) {
+            // an attribute value is referenced by the session principal, so the whole session is kept in the metadata
+            metadata.reset();
+            external.clear();
+            SessionMetadata.write(session, value -> false, external, strict, metadata);
+        }
+
+        Map<String, Object> compact = new LinkedHashMap<>();
+        Map<String, Object> serialized = new LinkedHashMap<>();
+        Set<Object> reserved = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Map.Entry<String, Object> e : external.entrySet()) {
+            if (reserve(e.getValue(), reserved)) compact.put(e.getKey(), e.getValue());
+            else serialized.put(e.getKey(), e.getValue());
+        }
+
+        ByteArrayOutputStream objects = new ByteArrayOutputStream();
+        try {
+            writeObjects(serialized, reserved, objects);
+        } catch (SessionMetadata.SharedObjectException e) {
+            objects.reset();
+            compact.clear();
+            writeObjects(external, Collections.emptySet(), objects);
+        }
+
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(metadata.size());
+        metadata.writeTo(dos);
+        dos.writeInt(compact.size());
+        for (Map.Entry<String, Object> e : compact.entrySet()) {
+            writeString(dos, e.getKey());
+            writeValue(dos, e.getValue());
+        }
+        objects.writeTo(dos);
+        dos.flush();
+    }
+
+    @Override
+    public void decode(InputStream in, StandardSession session, ObjectInputStreamFactory factory)
+        throws IOException, ClassNotFoundException {
+        DataInputStream dis = new DataInputStream(in);
+        byte[] metadata = new byte[readLength(dis)];
+        dis.readFully(metadata);
+
+        Map<String, Object> values = new HashMap<>();
+        int size = readLength(dis);
+        for (int i = 0; i < size; i++) {
+            String name = readString(dis);
+            values.put(name, readValue(dis, 0));
+        }
+        size = readLength(dis);
+        if (size > 0) {
+            try (ObjectInputStream ois = factory.create(dis)) {
+                for (int i = 0; i < size; i++) {
+                    String name = (String) ois.readObject();
+                    values.put(name, ois.readObject());
+                }
+            }
+        }
+
+        SessionMetadata.read(new ByteArrayInputStream(metadata), session, factory, name -> {
+            if (!values.containsKey(name)) throw new InvalidObjectException("missing session attribute");
+            return values.get(name);
+        });
+    }
+
+    /**
+     * Write the size of the values followed, if any, by the java serialization stream of their names and values.
+     *
+     * @throws SessionMetadata.SharedObjectException if a reserved object is referenced
+     */
+    private void writeObjects(Map<String, Object> values, Set<Object> reserved, ByteArrayOutputStream out)
+        throws IOException {
+        new DataOutputStream(out).writeInt(values.size());
+        if (values.isEmpty()) return;
+
+        CheckedObjectOutputStream oos = new CheckedObjectOutputStream(out, strict) {
+            @Override
+            protected Object replaceObject(Object obj) throws IOException {
+                if (reserved.contains(obj)) throw new SessionMetadata.SharedObjectException();
+                return super.replaceObject(obj);
+            }
+        };
+        for (Map.Entry<String, Object> e : values.entrySet()) {
+            oos.writeObject(e.getKey());
+            CheckedObjectOutputStream.writeValue(e.getValue(), oos);
+        }
+    }
+
+    /**
+     * Check if the value can be stored in the compact format, reserving its mutable parts if so.
+     */
+    private static boolean reserve(Object value, Set<Object> reserved) {
+        Set<Object> nodes = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (!isEncodable(value, nodes, 0)) return false;
+        for (Object node : nodes) {
+            if (reserved.contains(node)) return false;
+        }
+        reserved.addAll(nodes);
+        return true;
+    }
+
+    private static boolean isEncodable(Object value, Set<Object> nodes, int depth) {
+        if (value == null || isScalar(value)) return true;
+        if (depth >= MAX_DEPTH || !isContainer(value) || !nodes.add(value)) return false;
+        if (value instanceof Date || value.getClass().isArray()) return true;
+        if (value instanceof Map<?, ?> map) {
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                if (!isEncodable(e.getKey(), nodes, depth + 1) || !isEncodable(e.getValue(), nodes, depth + 1)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        for (Object element : (Collection<?>) value) {
+            if (!isEncodable(element, nodes, depth + 1)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isScalar(Object value) {
+        Class<?> type = value.getClass();
+        return type == String.class || type == Boolean.class || type == Byte.class || type == Short.class
+            || type == Character.class || type == Integer.class || type == Long.class || type == Float.class
+            || type == Double.class || type == UUID.class;
+    }
+
+    /**
+     * Only the exact classes are accepted, since a subclass could hold more state or behave differently. Mutable
+     * dates are handled as containers, so that their identity is checked as well.
+     */
+    private static boolean isContainer(Object value) {
+        Class<?> type = value.getClass();
+        return type == Date.class || type == byte[].class || type == int[].class || type == long[].class
+            || type == double[].class || type == ArrayList.class || type == LinkedList.class
+            || type == HashSet.class || type == LinkedHashSet.class || type == HashMap.class
+            || type == LinkedHashMap.class;
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String s) {
+            out.writeByte(STRING);
+            writeString(out, s);
+        } else if (value instanceof Boolean b) {
+            out.writeByte(b ? TRUE : FALSE);
+        } else if (value instanceof Byte b) {
+            out.writeByte(BYTE);
+            out.writeByte(b);
+        } else if (value instanceof Short s) {
+            out.writeByte(SHORT);
+            out.writeShort(s);
+        } else if (value instanceof Character c) {
+            out.writeByte(CHAR);
+            out.writeChar(c);
+        } else if (value instanceof Integer i) {
+            out.writeByte(INT);
+            out.writeInt(i);
+        } else if (value instanceof Long l) {
+            out.writeByte(LONG);
+            out.writeLong(l);
+        } else if (value instanceof Float f) {
+            out.writeByte(FLOAT);
+            out.writeFloat(f);
+        } else if (value instanceof Double d) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(d);
+        } else if (value instanceof Date d) {
+            out.writeByte(DATE);
+            out.writeLong(d.getTime());
+        } else if (value instanceof UUID u) {
+            out.writeByte(UUID_);
+            out.writeLong(u.getMostSignificantBits());
+            out.writeLong(u.getLeastSignificantBits());
+        } else if (value instanceof byte[] a) {
+            out.writeByte(BYTE_ARRAY);
+            out.writeInt(a.length);
+            out.write(a);
+        } else if (value instanceof int[] a) {
+            out.writeByte(INT_ARRAY);
+            out.writeInt(a.length);
+            for (int v : a) out.writeInt(v);
+        } else if (value instanceof long[] a) {
+            out.writeByte(LONG_ARRAY);
+            out.writeInt(a.length);
+            for (long v : a) out.writeLong(v);
+        } else if (value instanceof double[] a) {
+            out.writeByte(DOUBLE_ARRAY);
+            out.writeInt(a.length);
+            for (double v : a) out.writeDouble(v);
+        } else if (value instanceof Map<?, ?> map) {
+            out.writeByte(value instanceof LinkedHashMap ? LINKED_HASH_MAP : HASH_MAP);
+            out.writeInt(map.size());
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                writeValue(out, e.getKey());
+                writeValue(out, e.getValue());
+            }
+        } else {
+            Collection<?> collection = (Collection<?>) value;
+            out.writeByte(value instanceof ArrayList ? ARRAY_LIST
+                : value instanceof LinkedList ? LINKED_LIST
+                : value instanceof LinkedHashSet ? LINKED_HASH_SET
+                : HASH_SET);
+            out.writeInt(collection.size());
+            for (Object element : collection) writeValue(out, element);
+        }
+    }
+
+    private static Object readValue(DataInputStream in, int depth) throws IOException {
+        if (depth > MAX_DEPTH) throw new StreamCorruptedException("too deeply nested value");
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case BYTE:
+                return in.readByte();
+            case SHORT:
+                return in.readShort();
+            case CHAR:
+                return in.readChar();
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case FLOAT:
+                return in.readFloat();
+            case DOUBLE:
+                return in.readDouble();
+            case DATE:
+                return new Date(in.readLong());
+            case UUID_:
+                return new UUID(in.readLong(), in.readLong());
+            case BYTE_ARRAY: {
+                byte[] a = new byte[readLength(in)];
+                in.readFully(a);
+                return a;
+            }
+            case INT_ARRAY: {
+                int[] a = new int[readLength(in)];
+                for (int i = 0; i < a.length; i++) a[i] = in.readInt();
+                return a;
+            }
+            case LONG_ARRAY: {
+                long[] a = new long[readLength(in)];
+                for (int i = 0; i < a.length; i++) a[i] = in.readLong();
+                return a;
+            }
+            case DOUBLE_ARRAY: {
+                double[] a = new double[readLength(in)];
+                for (int i = 0; i < a.length; i++) a[i] = in.readDouble();
+                return a;
+            }
+            case ARRAY_LIST:
+            case LINKED_LIST:
+            case HASH_SET:
+            case LINKED_HASH_SET: {
+                int size = readLength(in);
+                Collection<Object> collection = switch (tag) {
+                    case ARRAY_LIST -> new ArrayList<>(size);
+                    case LINKED_LIST -> new LinkedList<>();
+                    case HASH_SET -> new HashSet<>(capacity(size));
+                    default -> new LinkedHashSet<>(capacity(size));
+                };
+                for (int i = 0; i < size; i++) collection.add(readValue(in, depth + 1));
+                return collection;
+            }
+            case HASH_MAP:
+            case LINKED_HASH_MAP: {
+                int size = readLength(in);
+                Map<Object, Object> map = tag == HASH_MAP ? new HashMap<>(capacity(size))
+                    : new LinkedHashMap<>(capacity(size));
+                for (int i = 0; i < size; i++) map.put(readValue(in, depth + 1), readValue(in, depth + 1));
+                return map;
+            }
+            default:
+                throw new StreamCorruptedException("unknown value tag " + tag);
+        }
+    }
+
+    /**
+     * Write a string as its length in bytes followed by its chars in modified UTF-8, as done by
+     * {@link DataOutputStream#writeUTF(String)} but with no limit on the length: each char is encoded on its own, so
+     * the unpaired surrogates are preserved as done by the java serialization
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        int length = value.length();
+        long size = 0;
+        for (int i = 0; i < length; i++) size += utfSize(value.charAt(i));
+        if (size > Integer.MAX_VALUE) throw new UTFDataFormatException("string too long: " + size + " bytes");
+
+        byte[] bytes = new byte[(int) size];
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                bytes[pos++] = (byte) c;
+            } else if (c <= 0x07FF) {
+                bytes[pos++] = (byte) (0xC0 | (c >> 6));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                bytes[pos++] = (byte) (0xE0 | (c >> 12));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static int utfSize(char c) {
+        if (c >= 0x0001 && c <= 0x007F) return 1;
+        return c <= 0x07FF ? 2 : 3;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        char[] chars = new char[bytes.length];
+        int length = 0;
+        for (int pos = 0; pos < bytes.length; ) {
+            int b = bytes[pos++] & 0xFF;
+            if (b < 0x80) {
+                chars[length++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0) {
+                chars[length++] = (char) (((b & 0x1F) << 6) | continuation(bytes, pos++));
+            } else if ((b & 0xF0) == 0xE0) {
+                int c = ((b & 0x0F) << 12) | (continuation(bytes, pos++) << 6);
+                chars[length++] = (char) (c | continuation(bytes, pos++));
+            } else {
+                throw new UTFDataFormatException("malformed input around byte " + (pos - 1));
+            }
+        }
+        return new String(chars, 0, length);
+    }
+
+    private static int continuation(byte[] bytes, int pos) throws UTFDataFormatException {
+        if (pos >= bytes.length || (bytes[pos] & 0xC0) != 0x80) {
+            throw new UTFDataFormatException("malformed input around byte " + pos);
+        }
+        return bytes[pos] & 0x3F;
+    }
+
+    private static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) throw new StreamCorruptedException("negative length " + length);
+        return length;
+    }
+
+    private static int capacity(int size) {
+        return (int) Math.min(Integer.MAX_VALUE, size * 4L / 3 + 1);
+    }
+}
@@ -0,0 +1,150 @@
+package com.overit.tomcat.redis;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Build the preset dictionary used to compress the sessions, out of a set of sample sessions.
+ *
+ * <p>The serialized sessions repeat the same class descriptors, field names and attribute names over and over, so a
+ * dictionary holding them lets the deflate algorithm compress even the small sessions well. The dictionary is made of
+ * the segments of the samples that cover the most frequent byte sequences, that is the sequences found in the highest
+ * number of samples, with the most useful segments at its end, closer to the compressed data.</p>
+ *
+ * <p>It can be run against the sessions already stored into Redis:</p>
+ * <pre>
+ * java -cp tomcat-redis-manager.jar:jedis.jar:... com.overit.tomcat.redis.CompressionDictionary \
+ *     redis://localhost:6379 tomcat dictionary.bin
+ * </pre>
+ */
+public final class CompressionDictionary {
+
+    /**
+     * The default size of a dictionary: the deflate window is 32KB, so a larger dictionary would be useless.
+     */
+    public static final int DEFAULT_SIZE = 32 * 1024;
+
+    private static final int MAX_SAMPLES = 1000;
+    private static final int KMER = 8;
+    private static final int SEGMENT = 64;
+
+    private static final class Segment {
+        private final byte[] sample;
+        private final int offset;
+        private final int length;
+        private long score;
+
+        Segment(byte[] sample, int offset, int length) {
+            this.sample = sample;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private CompressionDictionary() {
+    }
+
+    /**
+     * Build a dictionary out of the given samples
+     *
+     * @param samples the sample payloads
+     * @param size    the maximum size of the dictionary
+     * @return the dictionary, that is empty if the samples have nothing in common
+     */
+    public static byte[] train(Collection<byte[]> samples, int size) {
+        // number of samples holding each sequence
+        Map<Long, Integer> frequencies = new HashMap<>();
+        for (byte[] sample : samples) {
+            Set<Long> seen = new HashSet<>();
+            for (int i = 0; i + KMER <= sample.length; i++) {
+                long kmer = Hash64.hash(sample, i, KMER, 0);
+                if (seen.add(kmer)) frequencies.merge(kmer, 1, Integer::sum);
+            }
+        }
+
+        PriorityQueue<Segment> queue = new PriorityQueue<>((a, b) -> Long.compare(b.score, a.score));
+        for (byte[] sample : samples) {
+            for (int offset = 0; offset + KMER <= sample.length; offset += SEGMENT) {
+                Segment segment = new Segment(sample, offset, Math.min(SEGMENT, sample.length - offset));
+                segment.score = score(segment, frequencies);
+                if (segment.score > 0) queue.add(segment);
+            }
+        }
+
+        // greedily pick the best segments, forgetting the sequences they cover so that the next ones add new content
+        List<Segment> selected = new ArrayList<>();
+        int total = 0;
+        while (total < size && !queue.isEmpty()) {
+            Segment segment = queue.poll();
+            long score = score(segment, frequencies);
+            if (score < segment.score) {
+                segment.score = score;
+                if (score > 0) queue.add(segment);
+                continue;
+            }
+            selected.add(segment);
+            total += segment.length;
+            for (int i = segment.offset; i + KMER <= segment.offset + segment.length; i++) {
+                frequencies.remove(Hash64.hash(segment.sample, i, KMER, 0));
+            }
+        }
+
+        byte[] dictionary = new byte[Math.min(total, size)];
+        int position = dictionary.length;
+        for (Segment segment : selected) {
+            int length = Math.min(segment.length, position);
+            position -= length;
+            System.arraycopy(segment.sample, segment.offset + segment.length - length, dictionary, position, length);
+            if (position == 0) break;
+        }
+        return dictionary;
+    }
+
+    private static long score(Segment segment, Map<Long, Integer> frequencies) {
+        long score = 0;
+        for (int i = segment.offset; i + KMER <= segment.offset + segment.length; i++) {
+            Integer frequency = frequencies.get(Hash64.hash(segment.sample, i, KMER, 0));
+            // a sequence found in a single sample is not worth a place in the dictionary
+            if (frequency != null && frequency > 1) score += frequency;
+        }
+        return score;
+    }
+
+    /**
+     * Build a dictionary out of the sessions stored into Redis, and write it into a file
+     *
+     * @param args the Redis connection string, the prefix of the keys, the output file and optionally the size of the
+     *             dictionary
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: CompressionDictionary <redis url> <prefix> <output file> [size]");
+            System.exit(1);
+        }
+        int size = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_SIZE;
+
+        RedisConnector.setUrl(args[0]);
+        PayloadCompressor compressor = new PayloadCompressor();
+        List<byte[]> samples = new ArrayList<>();
+        for (String key : RedisConnector.instance().keys(args[1] + ":session:*", "string")) {
+            if (samples.size() >= MAX_SAMPLES) break;
+            byte[] k = key.getBytes(StandardCharsets.UTF_8);
+            byte[] payload = RedisConnector.instance().execute(key, j -> j.get(k));
+            try {
+                if (payload != null) samples.add(compressor.decompress(payload));
+            } catch (IOException e) {
+                // compressed with a dictionary: skipped
+            }
+        }
+
+        RedisConnector.dispose();
+
+        byte[] dictionary = train(samples, size);
+        Files.write(Paths.get(args[2]), dictionary);
+        System.out.println("Written a dictionary of " + dictionary.length + " bytes out of " + samples.size()
+            + " sessions");
+    }
+}
@@ -0,0 +1,130 @@
+package com.overit.tomcat.redis;
+
+import org.apache.catalina.session.StandardSession;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Serializer used to store a session as a Redis hash, with one field for each attribute and a metadata field, so that
+ * only the changed attributes have to be written again.
+ *
+ * <p>The metadata field holds the {@link SessionMetadata session metadata}, where the value of each attribute is
+ * replaced by a placeholder referring to the field that holds it. The values of the immutable types (strings and
+ * boxed primitives) are cheap to serialize, so they are kept inline in the metadata field.</p>
+ *
+ * <p>The content of the hash is read back in a single payload, {@link #pack(Map) packed} by this class and
+ * recognizable by its leading {@link #MAGIC magic bytes}.</p>
+ */
+final class DeltaSessionSerializer {
+
+    static final String METADATA_FIELD = "meta";
+    static final String ATTRIBUTE_FIELD_PREFIX = "attr:";
+
+    private static final byte[] MAGIC = {(byte) 0x0D, (byte) 0xE1};
+
+    private DeltaSessionSerializer() {
+    }
+
+    /**
+     * Serialize the metadata of the given session
+     *
+     * @param session  the session to be serialized
+     * @param external filled with the attributes whose value has been replaced by a placeholder, and that have to be
+     *                 stored in their own field
+     * @return the serialized metadata
+     * @throws NotSerializableException if the session holds an object that cannot be serialized
+     */
+    static byte[] writeMetadata(StandardSession session, Map<String, Object> external) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            SessionMetadata.write(session, value -> !SessionMetadata.isInline(value), external, output);
+        } catch (SessionMetadata.SharedObjectException e) {
+            // an attribute value is referenced by another object, so the whole session is kept in the metadata
+            output.reset();
+            external.clear();
+            SessionMetadata.write(session, value -> false, external, output);
+        }
+        return output.toByteArray();
+    }
+
+    static byte[] writeAttribute(Object value) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CheckedObjectOutputStream.writeValue(value, new CheckedObjectOutputStream(output));
+        return output.toByteArray();
+    }
+
+    /**
+     * Restore the given session from the fields of its hash
+     *
+     * @param fields  the fields of the hash, as returned by {@link #unpack(byte[])}
+     * @param session the empty session to be filled
+     * @param factory the factory of the streams used to deserialize the session and its attributes
+     */
+    static void read(Map<String, byte[]> fields, StandardSession session, SessionCodec.ObjectInputStreamFactory factory)
+        throws IOException, ClassNotFoundException {
+
+        byte[] metadata = fields.get(METADATA_FIELD);
+        if (metadata == null) throw new InvalidObjectException("missing session metadata");
+
+        SessionMetadata.read(new ByteArrayInputStream(metadata), session, factory,
+            name -> readAttribute(fields.get(attributeField(name)), factory));
+    }
+
+    private static Object readAttribute(byte[] raw, SessionCodec.ObjectInputStreamFactory factory)
+        throws IOException, ClassNotFoundException {
+        if (raw == null) throw new InvalidObjectException("missing session attribute");
+        try (ObjectInputStream ois = factory.create(new ByteArrayInputStream(raw))) {
+            return ois.readObject();
+        }
+    }
+
+    static boolean isPacked(byte[] payload) {
+        return payload.length >= MAGIC.length && payload[0] == MAGIC[0] && payload[1] == MAGIC[1];
+    }
+
+    /**
+     * Pack the fields of a hash in a single payload
+     *
+     * @param hash the fields of the hash
+     * @return the packed payload
+     */
+    static byte[] pack(Map<byte[], byte[]> hash) {
+        int size = MAGIC.length + Integer.BYTES;
+        for (Map.Entry<byte[], byte[]> e : hash.entrySet()) {
+            size += 2 * Integer.BYTES + e.getKey().length + e.getValue().length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(MAGIC);
+        buffer.putInt(hash.size());
+        for (Map.Entry<byte[], byte[]> e : hash.entrySet()) {
+            buffer.putInt(e.getKey().length);
+            buffer.put(e.getKey());
+            buffer.putInt(e.getValue().length);
+            buffer.put(e.getValue());
+        }
+        return buffer.array();
+    }
+
+    static Map<String, byte[]> unpack(byte[] payload) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(payload, MAGIC.length,
+            payload.length - MAGIC.length));
+        int size = dis.readInt();
+        Map<String, byte[]> fields = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            byte[] field = new byte[dis.readInt()];
+            dis.readFully(field);
+            byte[] value = new byte[dis.readInt()];
+            dis.readFully(value);
+            fields.put(new String(field, StandardCharsets.UTF_8), value);
+        }
+        return fields;
+    }
+
+    static String attributeField(String name) {
+        return ATTRIBUTE_FIELD_PREFIX + name;
+    }
+}
@@ -0,0 +1,137 @@
+package com.overit.tomcat.redis;
+
+import jakarta.servlet.http.HttpSessionAttributeListener;
+import jakarta.servlet.http.HttpSessionBindingEvent;
+import jakarta.servlet.http.HttpSessionEvent;
+import jakarta.servlet.http.HttpSessionListener;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keep track, for each session saved as a Redis hash, of the attributes stored in their own field and of the
+ * attributes changed since the last save.
+ *
+ * <p>Only the attributes changed through {@link jakarta.servlet.http.HttpSession#setAttribute(String, Object)} and
+ * {@link jakarta.servlet.http.HttpSession#removeAttribute(String)} are detected: the application must set again an
+ * attribute whose value has been mutated in place, otherwise the change is not saved.</p>
+ */
+class DirtyAttributesTracker implements HttpSessionAttributeListener, HttpSessionListener {
+
+    static final class State {
+        private final Set<String> stored;
+        private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+        private State(Collection<String> stored) {
+            this.stored = Set.copyOf(stored);
+        }
+
+        /**
+         * @return the attributes stored in their own field
+         */
+        Set<String> getStored() {
+            return stored;
+        }
+
+        /**
+         * Return the attributes changed since the last save, and forget them
+         *
+         * @return the changed attributes
+         */
+        Set<String> drainDirty() {
+            Set<String> drained = new HashSet<>();
+            for (String name : dirty) {
+                if (dirty.remove(name)) drained.add(name);
+            }
+            return drained;
+        }
+
+        private void markDirty(String name) {
+            dirty.add(name);
+        }
+    }
+
+    private final Map<String, State> states = new ConcurrentHashMap<>();
+
+    /**
+     * @param id the session identifier
+     * @return the state of the session or {@code null} if it has not been saved as a hash yet
+     */
+    State get(String id) {
+        return states.get(id);
+    }
+
+    /**
+     * Record that the session has been successfully saved.
+     *
+     * @param id       the session identifier
+     * @param previous the state used to save the session, or {@code null} if it has been fully saved
+     * @param stored   the attributes stored in their own field
+     */
+    void saved(String id, State previous, Collection<String> stored) {
+        State state = new State(stored);
+        // keep the changes made while the session was being saved
+        if (previous != null) previous.dirty.forEach(state::markDirty);
+        states.put(id, state);
+    }
+
+    /**
+     * Record that the save of the session failed, so that the changes are saved the next time
+     *
+     * @param state the state used to save the session
+     * @param dirty the attributes changed that was going to be saved
+     */
+    void failed(State state, Collection<String> dirty) {
+        if (state != null) dirty.forEach(state::markDirty);
+    }
+
+    /**
+     * Forget the session, that will be fully saved the next time
+     *
+     * @param id the session identifier
+     */
+    void forget(String id) {
+        states.remove(id);
+    }
+
+    /**
+     * Forget all the sessions but the given ones
+     *
+     * @param ids the identifiers of the sessions to be kept
+     */
+    void retain(Set<String> ids) {
+        states.keySet().retainAll(ids);
+    }
+
+    int size() {
+        return states.size();
+    }
+
+    @Override
+    public void attributeAdded(HttpSessionBindingEvent event) {
+        markDirty(event);
+    }
+
+    @Override
+    public void attributeRemoved(HttpSessionBindingEvent event) {
+        markDirty(event);
+    }
+
+    @Override
+    public void attributeReplaced(HttpSessionBindingEvent event) {
+        markDirty(event);
+    }
+
+    @Override
+    public void sessionDestroyed(HttpSessionEvent se) {
+        forget(se.getSession().getId());
+    }
+
+    private void markDirty(HttpSessionBindingEvent event) {
+        State state = states.get(event.getSession().getId());
+        if (state != null) state.markDirty(event.getName());
+    }
+}
@@ -0,0 +1,128 @@
+package com.overit.tomcat.redis;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * Coalesce the session draining requests sent to the same channel within a short time window into a single message,
+ * that lists the session identifiers separated by {@value #SEPARATOR}. The message is published once the window is
+ * over, or as soon as it holds {@value #MAX_BATCH_SIZE} sessions, and each sender gets the number of nodes that
+ * received it.
+ *
+ * <p>A window less or equal to zero disables the batching: each request is published on its own.</p>
+ */
+final class DrainRequestBatcher {
+
+    static final String SEPARATOR = ",";
+    static final int MAX_BATCH_SIZE = 100;
+
+    private static final class Batch {
+        private final Set<String> ids = new LinkedHashSet<>();
+        private final CompletableFuture<Long> receivers = new CompletableFuture<>();
+    }
+
+    private final ToLongBiFunction<String, String> publisher;
+    private final Map<String, Batch> batches = new HashMap<>();
+    private volatile long window;
+    private ScheduledExecutorService timer;
+
+    /**
+     * @param publisher publish the given message to the given channel, returning the number of receivers
+     * @param window    time window expressed in millis
+     */
+    DrainRequestBatcher(ToLongBiFunction<String, String> publisher, long window) {
+        this.publisher = publisher;
+        this.window = window;
+    }
+
+    void setWindow(long window) {
+        this.window = window;
+    }
+
+    long getWindow() {
+        return window;
+    }
+
+    /**
+     * Send the request of draining the given session, together with the other ones sent to the same channel within
+     * the time window
+     *
+     * @param channel the channel the request is published to
+     * @param id      the session identifier
+     * @return the number of nodes that received the request
+     */
+    long send(String channel, String id) {
+        long w = window;
+        if (w <= 0) return publisher.applyAsLong(channel, id);
+
+        Batch batch;
+        boolean full;
+        synchronized (this) {
+            batch = batches.get(channel);
+            if (batch == null) {
+                Batch created = new Batch();
+                batches.put(channel, created);
+                getTimer().schedule(() -> flush(channel, created), w, TimeUnit.MILLISECONDS);
+                batch = created;
+            }
+            batch.ids.add(id);
+            full = batch.ids.size() >= MAX_BATCH_SIZE;
+            if (full) batches.remove(channel);
+        }
+        if (full) publish(channel, batch);
+
+        try {
+            return batch.receivers.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            throw e;
+        }
+    }
+
+    /**
+     * @param message the message received
+     * @return the identifiers of the sessions to be drained
+     */
+    static List<String> split(String message) {
+        return Arrays.asList(message.split(SEPARATOR));
+    }
+
+    synchronized void stop() {
+        if (timer != null) timer.shutdownNow();
+        timer = null;
+        // nobody is going to publish them anymore
+        batches.forEach(this::publish);
+        batches.clear();
+    }
+
+    private void flush(String channel, Batch batch) {
+        synchronized (this) {
+            if (!batches.remove(channel, batch)) return;
+        }
+        publish(channel, batch);
+    }
+
+    private void publish(String channel, Batch batch) {
+        try {
+            batch.receivers.complete(publisher.applyAsLong(channel, String.join(SEPARATOR, batch.ids)));
+        } catch (RuntimeException e) {
+            batch.receivers.completeExceptionally(e);
+        }
+    }
+
+    private ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "RedisStore-drainRequests");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return timer;
+    }
+}
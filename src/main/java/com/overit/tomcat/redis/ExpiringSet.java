@@ -0,0 +1,111 @@
+package com.overit.tomcat.redis;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread safe set of strings whose entries are forgotten after a configurable time to live. The number of entries is
+ * bounded as well: once the maximum size is reached, the expired entries are purged and, if it is not enough, some of
+ * the oldest ones are evicted to make room for the new entry.
+ *
+ * <p>A time to live less or equal to zero disables the set: nothing is added and {@link #contains(String)} always
+ * returns {@code false}.</p>
+ */
+class ExpiringSet {
+
+    private final Map<String, Long> entries = new ConcurrentHashMap<>();
+    private volatile long ttl;
+    private volatile int maxSize;
+
+    /**
+     * @param ttl     time to live of the entries expressed in millis
+     * @param maxSize maximum number of entries kept by this set
+     */
+    ExpiringSet(long ttl, int maxSize) {
+        this.ttl = ttl;
+        this.maxSize = maxSize;
+    }
+
+    void setTtl(long ttl) {
+        this.ttl = ttl;
+        if (ttl <= 0) entries.clear();
+    }
+
+    long getTtl() {
+        return ttl;
+    }
+
+    void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Add the given key, or refresh its expiration time if it was already present
+     *
+     * @param key the entry to add
+     */
+    void add(String key) {
+        long t = ttl;
+        if (t <= 0 || maxSize <= 0) return;
+        long now = System.currentTimeMillis();
+        if (entries.size() >= maxSize && !entries.containsKey(key)) makeRoom(now);
+        entries.put(key, now + t);
+    }
+
+    /**
+     * Check if the given key has been added and is not yet expired
+     *
+     * @param key the entry to look for
+     * @return {@code true} if the entry is present
+     */
+    boolean contains(String key) {
+        Long expiration = entries.get(key);
+        if (expiration == null) return false;
+        if (expiration > System.currentTimeMillis()) return true;
+        entries.remove(key, expiration);
+        return false;
+    }
+
+    void remove(String key) {
+        entries.remove(key);
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return the number of entries currently held, including the expired ones not yet purged
+     */
+    int size() {
+        return entries.size();
+    }
+
+    private void makeRoom(long now) {
+        entries.values().removeIf(expiration -> expiration <= now);
+
+        int excess = entries.size() - maxSize + 1;
+        if (excess <= 0) return;
+        // evict a small batch at once so that a flood of new entries doesn't pay the eviction on every add
+        excess = Math.min(entries.size(), Math.max(excess, maxSize / 10));
+
+        // the entries sharing the same time to live, the oldest ones are those expiring first
+        long threshold = entries.values().stream()
+            .sorted()
+            .skip(excess - 1L)
+            .findFirst()
+            .orElse(Long.MAX_VALUE);
+        Iterator<Long> it = entries.values().iterator();
+        while (it.hasNext() && excess > 0) {
+            if (it.next() <= threshold) {
+                it.remove();
+                excess--;
+            }
+        }
+    }
+}
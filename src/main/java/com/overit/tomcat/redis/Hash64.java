@@ -0,0 +1,57 @@
+package com.overit.tomcat.redis;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fast, non-cryptographic 64-bit hash function (a simplified variant of MurmurHash64A). It is meant to be used for
+ * probabilistic data structures and content fingerprints, never for security purposes.
+ */
+final class Hash64 {
+
+    private static final long M = 0xc6a4a7935bd1e995L;
+    private static final int R = 47;
+
+    private Hash64() {
+    }
+
+    static long hash(String value, long seed) {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        return hash(data, 0, data.length, seed);
+    }
+
+    static long hash(byte[] data, int offset, int length, long seed) {
+        long h = seed ^ (length * M);
+        int end = offset + (length & ~7);
+
+        for (int i = offset; i < end; i += 8) {
+            long k = (data[i] & 0xffL)
+                | (data[i + 1] & 0xffL) << 8
+                | (data[i + 2] & 0xffL) << 16
+                | (data[i + 3] & 0xffL) << 24
+                | (data[i + 4] & 0xffL) << 32
+                | (data[i + 5] & 0xffL) << 40
+                | (data[i + 6] & 0xffL) << 48
+                | (data[i + 7] & 0xffL) << 56;
+            k *= M;
+            k ^= k >>> R;
+            k *= M;
+            h ^= k;
+            h *= M;
+        }
+
+        int remaining = length & 7;
+        if (remaining > 0) {
+            long k = 0;
+            for (int i = remaining - 1; i >= 0; i--) {
+                k = (k << 8) | (data[end + i] & 0xffL);
+            }
+            h ^= k;
+            h *= M;
+        }
+
+        h ^= h >>> R;
+        h *= M;
+        h ^= h >>> R;
+        return h;
+    }
+}
@@ -0,0 +1,32 @@
+package com.overit.tomcat.redis;
+
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+
+/**
+ * Look up the sessions held in memory by a manager, without loading them from the store.
+ *
+ * <p>{@link Manager#findSession(String)} of the persistent managers loads a missing session from the store, that
+ * would in turn ask the other nodes to drain it. A {@link RedisPersistentManager} is asked directly; any other manager
+ * is scanned through {@link Manager#findSessions()}.</p>
+ */
+final class InMemorySessions {
+
+    private InMemorySessions() {
+    }
+
+    /**
+     * @param manager the manager holding the sessions
+     * @param id      the session identifier
+     * @return the session, or {@code null} if it is not in memory
+     */
+    static Session find(Manager manager, String id) {
+        if (manager instanceof RedisPersistentManager persistentManager) {
+            return persistentManager.findSessionInMemory(id);
+        }
+        for (Session session : manager.findSessions()) {
+            if (session.getIdInternal().equals(id)) return session;
+        }
+        return null;
+    }
+}
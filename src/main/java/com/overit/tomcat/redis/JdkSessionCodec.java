@@ -0,0 +1,45 @@
+package com.overit.tomcat.redis;
+
+import org.apache.catalina.session.StandardSession;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+
+/**
+ * Codec that stores the sessions using the standard java serialization, as done by the Tomcat managers.
+ */
+class JdkSessionCodec implements SessionCodec {
+
+    static final int FORMAT = 0;
+    static final String NAME = "jdk";
+
+    private final boolean strict;
+
+    /**
+     * @param strict if {@code true} the sessions holding a non-serializable object are rejected, otherwise the
+     *               non-serializable attributes are dropped as done by Tomcat
+     */
+    JdkSessionCodec(boolean strict) {
+        this.strict = strict;
+    }
+
+    @Override
+    public int getFormat() {
+        return FORMAT;
+    }
+
+    @Override
+    public void encode(StandardSession session, OutputStream out) throws IOException {
+        CheckedObjectOutputStream.writeSession(session, new CheckedObjectOutputStream(out, strict));
+    }
+
+    @Override
+    public void decode(InputStream in, StandardSession session, ObjectInputStreamFactory factory)
+        throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = factory.create(in)) {
+            session.readObjectData(ois);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.overit.tomcat.redis;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compress the payloads stored into Redis with the deflate algorithm, optionally using a preset dictionary built by
+ * {@link CompressionDictionary}.
+ *
+ * <p>Only the payloads larger than the threshold are compressed, and only if the compression makes them smaller. A
+ * compressed payload starts with the {@link #HEADER} byte followed by the size of the original payload, so the
+ * uncompressed payloads, including the ones written by the previous versions of this library, are read as they
+ * are.</p>
+ *
+ * <p>The dictionary used to compress a payload is identified by its checksum, stored in the deflate stream: a payload
+ * compressed with a different dictionary is rejected.</p>
+ */
+final class PayloadCompressor {
+
+    static final byte HEADER = (byte) 0xDF;
+
+    private static final int HEADER_SIZE = 1 + Integer.BYTES;
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+    private volatile int threshold = -1;
+    private volatile int level = Deflater.BEST_SPEED;
+    private volatile byte[] dictionary;
+    private volatile int dictionaryChecksum;
+
+    private final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private final LongAdder compressedPayloads = new LongAdder();
+    private final LongAdder originalBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder compressionTime = new LongAdder();
+    private final LongAdder decompressionTime = new LongAdder();
+
+    /**
+     * @param threshold the size, in bytes, above which the payloads are compressed. A negative value disables the
+     *                  compression.
+     */
+    void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @param level the compression level, from 0 to 9
+     */
+    void setLevel(int level) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+        this.level = level;
+        clear(deflaters);
+    }
+
+    /**
+     * @param dictionary the preset dictionary, or {@code null} to compress without a dictionary
+     */
+    void setDictionary(byte[] dictionary) {
+        if (dictionary != null && dictionary.length > 0) {
+            Adler32 checksum = new Adler32();
+            checksum.update(dictionary);
+            this.dictionaryChecksum = (int) checksum.getValue();
+            this.dictionary = dictionary.clone();
+        } else {
+            this.dictionary = null;
+        }
+    }
+
+    /**
+     * Read the preset dictionary from a file
+     *
+     * @param path the path of the file. A relative path is resolved against the {@code catalina.base} directory.
+     * @throws IllegalArgumentException if the file cannot be read
+     */
+    void setDictionary(String path) {
+        if (path == null || path.isEmpty()) {
+            setDictionary((byte[]) null);
+            return;
+        }
+        File file = new File(path);
+        String base = System.getProperty("catalina.base");
+        if (!file.isAbsolute() && base != null) file = new File(base, path);
+        try {
+            setDictionary(Files.readAllBytes(file.toPath()));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to read the compression dictionary " + file, e);
+        }
+    }
+
+    static boolean isCompressed(byte[] payload) {
+        return payload.length > HEADER_SIZE && payload[0] == HEADER;
+    }
+
+    /**
+     * Compress the payload, if it is larger than the threshold
+     *
+     * @param payload the payload
+     * @return the compressed payload, or the very same payload if it has not been compressed
+     */
+    byte[] compress(byte[] payload) {
+        byte[] compressed = deflate(payload, payload.length);
+        return compressed != null ? compressed : payload;
+    }
+
+    /**
+     * Compress the first bytes of the given array, if they are more than the threshold
+     *
+     * @param data   the array holding the payload
+     * @param length the size of the payload
+     * @return the compressed payload, or a copy of the payload if it has not been compressed
+     */
+    byte[] compress(byte[] data, int length) {
+        byte[] compressed = deflate(data, length);
+        return compressed != null ? compressed : Arrays.copyOf(data, length);
+    }
+
+    private byte[] deflate(byte[] data, int length) {
+        int t = threshold;
+        if (t < 0 || length <= t) return null;
+
+        long start = System.nanoTime();
+        byte[] dict = dictionary;
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) deflater = new Deflater(level);
+        try {
+            if (dict != null) deflater.setDictionary(dict);
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+
+            // a compressed payload that is not smaller than the original one is useless
+            byte[] output = new byte[HEADER_SIZE + length];
+            int size = HEADER_SIZE;
+            while (!deflater.finished() && size < output.length) {
+                size += deflater.deflate(output, size, output.length - size);
+            }
+            if (!deflater.finished()) return null;
+
+            output[0] = HEADER;
+            ByteBuffer.wrap(output, 1, Integer.BYTES).putInt(length);
+            compressedPayloads.increment();
+            originalBytes.add(length);
+            compressedBytes.add(size);
+            return Arrays.copyOf(output, size);
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) deflater.end();
+            compressionTime.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Decompress the payload, if it has been compressed
+     *
+     * @param payload the payload
+     * @return the decompressed payload, or the very same payload if it was not compressed
+     * @throws IOException if the payload is corrupted, or it has been compressed with a different dictionary
+     */
+    byte[] decompress(byte[] payload) throws IOException {
+        if (!isCompressed(payload)) return payload;
+
+        int length = ByteBuffer.wrap(payload, 1, Integer.BYTES).getInt();
+        if (length < 0) throw new StreamCorruptedException("negative payload size " + length);
+
+        long start = System.nanoTime();
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) inflater = new Inflater();
+        try {
+            inflater.setInput(payload, HEADER_SIZE, payload.length - HEADER_SIZE);
+            byte[] output = new byte[length];
+            int size = 0;
+            while (size < length) {
+                int n = inflater.inflate(output, size, length - size);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        byte[] dict = dictionary;
+                        if (dict == null || inflater.getAdler() != dictionaryChecksum) {
+                            throw new IOException("The payload has been compressed with an unknown dictionary");
+                        }
+                        inflater.setDictionary(dict);
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        throw new EOFException("truncated compressed payload");
+                    }
+                }
+                size += n;
+            }
+            return output;
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException(e.getMessage());
+        } finally {
+            inflater.reset();
+            if (!inflaters.offer(inflater)) inflater.end();
+            decompressionTime.add(System.nanoTime() - start);
+        }
+    }
+
+    long getCompressedPayloads() {
+        return compressedPayloads.sum();
+    }
+
+    /**
+     * @return the ratio between the size of the compressed payloads and their original size
+     */
+    double getCompressionRatio() {
+        long original = originalBytes.sum();
+        return original == 0 ? 1 : (double) compressedBytes.sum() / original;
+    }
+
+    long getCompressionTime() {
+        return TimeUnit.NANOSECONDS.toMillis(compressionTime.sum());
+    }
+
+    long getDecompressionTime() {
+        return TimeUnit.NANOSECONDS.toMillis(decompressionTime.sum());
+    }
+
+    private static void clear(BlockingQueue<Deflater> queue) {
+        Deflater deflater;
+        while ((deflater = queue.poll()) != null) deflater.end();
+    }
+}
@@ -0,0 +1,111 @@
+package com.overit.tomcat.redis;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Settings of the pools of connections with Redis, one for each node in cluster mode.
+ *
+ * <p>In adaptive mode the connections are no longer validated when borrowed, since that costs a round trip for each
+ * command, but in background while they are idle; the idle connections kept by the pool are sized by
+ * {@link AdaptivePoolSizer} after the observed borrow wait times, between the configured values and the maximum
+ * number of connections.</p>
+ */
+class PoolSettings {
+
+    static final long DEFAULT_ADAPTIVE_VALIDATION_INTERVAL = 30_000; // 30s
+
+    private int maxTotal = 10;
+    private int maxIdle = 3;
+    private int minIdle = 1;
+    private long maxWait = -1;
+    private boolean testOnCreate = true;
+    private boolean testOnBorrow = true;
+    private boolean testWhileIdle = false;
+    private long timeBetweenEvictionRuns = -1;
+    private boolean adaptive = false;
+
+    int getMaxTotal() {
+        return maxTotal;
+    }
+
+    void setMaxTotal(int maxTotal) {
+        this.maxTotal = maxTotal;
+    }
+
+    int getMaxIdle() {
+        return maxIdle;
+    }
+
+    void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    int getMinIdle() {
+        return minIdle;
+    }
+
+    void setMinIdle(int minIdle) {
+        this.minIdle = minIdle;
+    }
+
+    void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    void setTestOnCreate(boolean testOnCreate) {
+        this.testOnCreate = testOnCreate;
+    }
+
+    void setTestOnBorrow(boolean testOnBorrow) {
+        this.testOnBorrow = testOnBorrow;
+    }
+
+    void setTestWhileIdle(boolean testWhileIdle) {
+        this.testWhileIdle = testWhileIdle;
+    }
+
+    void setTimeBetweenEvictionRuns(long timeBetweenEvictionRuns) {
+        this.timeBetweenEvictionRuns = timeBetweenEvictionRuns;
+    }
+
+    boolean isAdaptive() {
+        return adaptive;
+    }
+
+    void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Copy these settings into the given pool configuration
+     *
+     * @param config the pool configuration
+     * @param <T>    the type of the pooled objects
+     * @return the given configuration
+     */
+    <T> GenericObjectPoolConfig<T> apply(GenericObjectPoolConfig<T> config) {
+        config.setMaxTotal(maxTotal);
+        config.setMaxIdle(maxIdle);
+        config.setMinIdle(minIdle);
+        config.setMaxWait(Duration.ofMillis(maxWait));
+        config.setLifo(true);
+        config.setMinEvictableIdleDuration(Duration.of(10, ChronoUnit.SECONDS));
+        config.setTestOnCreate(testOnCreate);
+
+        long evictionRuns = timeBetweenEvictionRuns;
+        if (adaptive) {
+            // the idle connections are validated in background instead
+            config.setTestOnBorrow(false);
+            config.setTestWhileIdle(true);
+            if (evictionRuns <= 0) evictionRuns = DEFAULT_ADAPTIVE_VALIDATION_INTERVAL;
+        } else {
+            config.setTestOnBorrow(testOnBorrow);
+            config.setTestWhileIdle(testWhileIdle);
+        }
+        config.setTimeBetweenEvictionRuns(Duration.ofMillis(evictionRuns));
+        return config;
+    }
+}
@@ -1,19 +1,33 @@
 package com.overit.tomcat.redis;
 
+import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import redis.clients.jedis.*;
 import redis.clients.jedis.exceptions.InvalidURIException;
+import redis.clients.jedis.exceptions.JedisAskDataException;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
 import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.providers.ClusterConnectionProvider;
 import redis.clients.jedis.resps.ScanResult;
+import redis.clients.jedis.util.JedisClusterCRC16;
 import redis.clients.jedis.util.JedisURIHelper;
 import redis.clients.jedis.util.Pool;
+import redis.clients.jedis.util.SafeEncoder;
 
 import java.net.URI;
-import java.time.Duration;
-import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -29,6 +43,13 @@ import java.util.stream.Stream;
  *
  * <p>Remember to call the {@link #dispose()} to close the connection once done</p>
  *
+ * <p>The pub/sub messages are sent and received through dedicated connections, out of the pools, so that they never
+ * wait for the connections used by the sessions, and vice versa.</p>
+ *
+ * <p>In {@link #setCluster(boolean) cluster mode} the commands touching a key have to be run through
+ * {@link #execute(String, Function)}, that sends them to the primary node serving the key; the commands touching
+ * many keys must use keys of the same hash slot.</p>
+ *
  * @author Mauro Manfrin
  * @author Alessandro Modolo
  */
@@ -36,13 +57,18 @@ class RedisConnector {
 
     public static final String PROPERTY_URL = "tomcat.redis.manager.url";
     public static final String PROPERTY_SENTINEL_GROUP = "tomcat.redis.manager.sentinelGroup";
+    public static final String PROPERTY_CLUSTER = "tomcat.redis.manager.cluster";
 
     private static final Log log = LogFactory.getLog(RedisConnector.class);
     private static String url = "redis://localhost:6379";
     private static int connectionTimeout = Protocol.DEFAULT_TIMEOUT;
     private static int soTimeout = Protocol.DEFAULT_TIMEOUT;
     private static String sentinelGroup = null;
+    private static boolean cluster = false;
+    private static final PoolSettings poolSettings = new PoolSettings();
     private static RedisConnector instance;
+    private static final int MAX_REDIRECTIONS = 5;
+    private static final long ADAPTIVE_POOL_PERIOD = 1000; // 1s
 
     /**
      * Set the connection URL used to encode connection info to Redis servers.
@@ -119,6 +145,35 @@ class RedisConnector {
         if (effectiveSentinelGroup == null) effectiveSentinelGroup = sentinelGroup;
         return effectiveSentinelGroup;
     }
+
+    /**
+     * Enable the Redis Cluster mode. The urls are the seed nodes used to discover the cluster topology.
+     *
+     * @param cluster {@code true} to connect with a Redis Cluster
+     * @see <a href="https://redis.io/docs/management/scaling/">Scale with Redis Cluster</a>
+     */
+    public static void setCluster(boolean cluster) {
+        RedisConnector.cluster = cluster;
+    }
+
+    /**
+     * @return {@code true} if the connection is with a Redis Cluster
+     */
+    static boolean isCluster() {
+        String effectiveCluster = System.getenv(PROPERTY_CLUSTER);
+        if (effectiveCluster == null) effectiveCluster = System.getProperty(PROPERTY_CLUSTER);
+        return effectiveCluster == null ? cluster : Boolean.parseBoolean(effectiveCluster);
+    }
+
+    /**
+     * Get the settings of the connection pools, to be changed before the {@link #instance()}
+     *
+     * @return the pool settings
+     */
+    static PoolSettings getPoolSettings() {
+        return poolSettings;
+    }
+
     /**
      * Retrieve an instance that will be used to communicate with the Redis server
      *
@@ -127,7 +182,9 @@ class RedisConnector {
     public static RedisConnector instance() {
         if (instance == null) {
             String sentinelGroup = getSentinelGroup();
-            if (sentinelGroup == null || sentinelGroup.isBlank()) {
+            if (isCluster()) {
+                instance = new RedisConnector(parseURIs(getUrl()), connectionTimeout, soTimeout);
+            } else if (sentinelGroup == null || sentinelGroup.isBlank()) {
                 instance = new RedisConnector(getUrl(), connectionTimeout, soTimeout);
             } else {
                 instance = new RedisConnector(getUrl(), sentinelGroup, connectionTimeout, soTimeout);
@@ -147,25 +204,34 @@ class RedisConnector {
 
 
     private final Pool<Jedis> pool;
+    private final ClusterConnectionProvider nodes;
+    private final ScheduledExecutorService poolSizing;
+    private final ExecutorService primaries;
+    private final JedisClientConfig clientConfig;
+    private final Supplier<HostAndPort> address;
+    private Jedis publisher;
+    private final Map<Object, AdaptivePoolSizer> sizers = new HashMap<>();
 
     private RedisConnector(String urls, String sentinelGroup, int connectionTimeout, int soTimeout) {
 
-        Set<URI> connectionUrls = Stream.of(urls.split(";"))
-            .map(URI::create)
-            .collect(Collectors.toSet());
-
-        validateURI(connectionUrls);
+        Set<URI> connectionUrls = parseURIs(urls);
 
         Set<String> hosts = getSentinelHosts(connectionUrls);
         int dbIndex = getSentinelDBIndex(connectionUrls);
         String user = getSentinelUser(connectionUrls);
         String password = getSentinelPassword(connectionUrls);
+        clientConfig = getClientConfig(connectionUrls, connectionTimeout, soTimeout);
 
         if (log.isDebugEnabled()) {
             connectionUrls.forEach(u -> log.debug(String.format("connecting to %s sentinel", u)));
         }
 
-        pool = new JedisSentinelPool(sentinelGroup, hosts, getPoolConfig(), connectionTimeout, soTimeout, user, password, dbIndex);
+        JedisSentinelPool sentinelPool = new JedisSentinelPool(sentinelGroup, hosts, poolSettings.apply(new JedisPoolConfig()), connectionTimeout, soTimeout, user, password, dbIndex);
+        pool = sentinelPool;
+        nodes = null;
+        address = sentinelPool::getCurrentHostMaster;
+        poolSizing = startPoolSizing();
+        primaries = null;
     }
 
     private RedisConnector(String url, int connectionTimeout, int soTimeout) {
@@ -173,19 +239,91 @@ class RedisConnector {
 
         if (log.isDebugEnabled()) log.debug(String.format("connecting to %s service", uri));
 
-        pool = new JedisPool(getPoolConfig(), uri, connectionTimeout, soTimeout);
+        pool = new JedisPool(poolSettings.apply(new JedisPoolConfig()), uri, connectionTimeout, soTimeout);
+        nodes = null;
+        clientConfig = getClientConfig(Set.of(uri), connectionTimeout, soTimeout);
+        HostAndPort hostAndPort = JedisURIHelper.getHostAndPort(uri);
+        address = () -> hostAndPort;
+        poolSizing = startPoolSizing();
+        primaries = null;
     }
 
-    private JedisPoolConfig getPoolConfig() {
-        JedisPoolConfig jpc = new JedisPoolConfig();
-        jpc.setMaxTotal(10);
-        jpc.setMaxIdle(3);
-        jpc.setMinIdle(1);
-        jpc.setLifo(true);
-        jpc.setMinEvictableIdleDuration(Duration.of(10, ChronoUnit.SECONDS));
-        jpc.setTestOnCreate(true);
-        jpc.setTestOnBorrow(true);
-        return jpc;
+    private RedisConnector(Set<URI> seeds, int connectionTimeout, int soTimeout) {
+        Set<HostAndPort> hosts = seeds.stream()
+            .map(JedisURIHelper::getHostAndPort)
+            .collect(Collectors.toSet());
+
+        // a cluster has a single database
+        clientConfig = DefaultJedisClientConfig.builder()
+            .connectionTimeoutMillis(connectionTimeout)
+            .socketTimeoutMillis(soTimeout)
+            .user(getSentinelUser(seeds))
+            .password(getSentinelPassword(seeds))
+            .ssl(seeds.stream().anyMatch(JedisURIHelper::isRedisSSLScheme))
+            .build();
+
+        if (log.isDebugEnabled()) seeds.forEach(u -> log.debug(String.format("connecting to %s cluster node", u)));
+
+        // each node of the cluster has its own pool
+        nodes = new ClusterConnectionProvider(hosts, clientConfig, poolSettings.apply(new ConnectionPoolConfig()));
+        pool = null;
+        // the messages published on any node are broadcast to the whole cluster
+        address = () -> nodes.getNode(0);
+        poolSizing = startPoolSizing();
+        // the threads running the commands on all the primaries at once, idle most of the time
+        primaries = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "RedisConnector-primaries");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private JedisClientConfig getClientConfig(Set<URI> urls, int connectionTimeout, int soTimeout) {
+        return DefaultJedisClientConfig.builder()
+            .connectionTimeoutMillis(connectionTimeout)
+            .socketTimeoutMillis(soTimeout)
+            .user(getSentinelUser(urls))
+            .password(getSentinelPassword(urls))
+            .database(getSentinelDBIndex(urls))
+            .ssl(urls.stream().anyMatch(JedisURIHelper::isRedisSSLScheme))
+            .build();
+    }
+
+    private ScheduledExecutorService startPoolSizing() {
+        if (!poolSettings.isAdaptive()) return null;
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "RedisConnector-poolSizing");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::adaptPools, ADAPTIVE_POOL_PERIOD, ADAPTIVE_POOL_PERIOD,
+            TimeUnit.MILLISECONDS);
+        return executor;
+    }
+
+    private void adaptPools() {
+        try {
+            // in cluster mode each node has its own pool, and the nodes may change over time
+            Collection<? extends GenericObjectPool<?>> pools = nodes == null
+                ? List.of(pool)
+                : nodes.getNodes().values();
+            sizers.keySet().retainAll(pools);
+            for (GenericObjectPool<?> p : pools) {
+                sizers.computeIfAbsent(p, k -> new AdaptivePoolSizer(poolSettings.getMinIdle(),
+                    poolSettings.getMaxIdle(), poolSettings.getMaxTotal())).adapt(p);
+            }
+        } catch (RuntimeException e) {
+            if (log.isDebugEnabled()) log.debug("Error sizing the connection pools", e);
+        }
+    }
+
+    private static Set<URI> parseURIs(String urls) {
+        Set<URI> connectionUrls = Stream.of(urls.split(";"))
+            .map(URI::create)
+            .collect(Collectors.toSet());
+
+        validateURI(connectionUrls);
+        return connectionUrls;
     }
 
     private Set<String> getSentinelHosts(Set<URI> urls) {
@@ -207,11 +345,11 @@ class RedisConnector {
         return urls.stream().map(JedisURIHelper::getPassword).filter(Objects::nonNull).findFirst().orElse(null);
     }
 
-    private void validateURI(Set<URI> urls) {
-        urls.forEach(this::validateURI);
+    private static void validateURI(Set<URI> urls) {
+        urls.forEach(RedisConnector::validateURI);
     }
 
-    private void validateURI(URI url) {
+    private static void validateURI(URI url) {
         if (!JedisURIHelper.isValid(url)) {
             throw new InvalidURIException(String.format(
                 "Cannot open Redis connection due invalid URI. %s", url));
@@ -222,51 +360,237 @@ class RedisConnector {
      * Close the connection with the Redis server
      */
     protected void stop() {
-        pool.close();
+        if (poolSizing != null) poolSizing.shutdownNow();
+        if (primaries != null) primaries.shutdownNow();
+        synchronized (this) {
+            if (publisher != null) publisher.close();
+            publisher = null;
+        }
+        if (nodes != null) nodes.close();
+        else pool.close();
     }
 
 
     /**
-     * Execute the given function
+     * Execute the given function. In cluster mode it is executed by any node, so it must not touch any key.
      *
      * @param f   the function to be executed
      * @param <T> the return Type
      * @return the execution result
      */
     public <T> T execute(Function<Jedis, T> f) {
+        if (nodes != null) {
+            try (Jedis j = new Jedis(nodes.getConnection())) {
+                return f.apply(j);
+            }
+        }
         try (Jedis j = pool.getResource()) {
             return f.apply(j);
         }
     }
 
+    /**
+     * Execute the given function by the node serving the given key. The function may be executed again, if the node
+     * redirects it to another one because the slot of the key has been moved.
+     *
+     * @param key the key touched by the function
+     * @param f   the function to be executed
+     * @param <T> the return Type
+     * @return the execution result
+     */
+    public <T> T execute(String key, Function<Jedis, T> f) {
+        if (nodes == null) return execute(f);
+
+        int slot = JedisClusterCRC16.getSlot(key);
+        for (int redirections = 0; ; redirections++) {
+            try (Jedis j = new Jedis(nodes.getConnectionFromSlot(slot))) {
+                return f.apply(j);
+            } catch (JedisAskDataException e) {
+                // the slot is being migrated and the key has already been moved: only this command is redirected
+                if (redirections >= MAX_REDIRECTIONS) throw e;
+                try (Jedis j = new Jedis(nodes.getConnection(e.getTargetNode()))) {
+                    j.asking();
+                    return f.apply(j);
+                }
+            } catch (JedisRedirectionException e) {
+                if (redirections >= MAX_REDIRECTIONS) throw e;
+                nodes.renewSlotCache();
+            } catch (JedisConnectionException e) {
+                // the command may have been executed, so it is not retried, but the next one reaches the new primary
+                nodes.renewSlotCache();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Execute the given function once for each node storing some of the given keys, passing it those keys; without a
+     * cluster it is executed once with all the keys. It is up to the function to handle the keys whose slot has moved
+     * in the meanwhile.
+     *
+     * @param keys the keys
+     * @param f    the function to be executed
+     */
+    public void executeByNode(Collection<String> keys, BiConsumer<Jedis, List<String>> f) {
+        if (nodes == null) {
+            execute(j -> {
+                f.accept(j, new ArrayList<>(keys));
+                return null;
+            });
+            return;
+        }
+
+        Map<HostAndPort, List<String>> byNode = new HashMap<>();
+        List<String> unknown = new ArrayList<>();
+        for (String key : keys) {
+            HostAndPort node = nodes.getNode(JedisClusterCRC16.getSlot(key));
+            if (node != null) byNode.computeIfAbsent(node, n -> new ArrayList<>()).add(key);
+            else unknown.add(key);
+        }
+        for (Map.Entry<HostAndPort, List<String>> node : byNode.entrySet()) {
+            try (Jedis j = new Jedis(nodes.getConnection(node.getKey()))) {
+                f.accept(j, node.getValue());
+            } catch (JedisRedirectionException e) {
+                // the next call reaches the new node
+                nodes.renewSlotCache();
+                throw e;
+            }
+        }
+        // the slot cache is renewed by the redirections
+        for (String key : unknown) {
+            execute(key, j -> {
+                f.accept(j, List.of(key));
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Execute the given function by each primary node, in parallel. Without a cluster, it is executed once.
+     *
+     * @param f   the function to be executed
+     * @param <T> the return Type
+     * @return the execution results
+     */
+    public <T> List<T> executeOnPrimaries(Function<Jedis, T> f) {
+        if (nodes == null) return List.of(execute(f));
+
+        try {
+            List<CompletableFuture<T>> results = new ArrayList<>();
+            for (HostAndPort primary : getPrimaries()) {
+                results.add(CompletableFuture.supplyAsync(() -> {
+                    try (Jedis j = new Jedis(nodes.getConnection(primary))) {
+                        return f.apply(j);
+                    }
+                }, primaries));
+            }
+            List<T> list = new ArrayList<>();
+            for (CompletableFuture<T> result : results) list.add(result.join());
+            return list;
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            throw e;
+        }
+    }
+
+    /**
+     * @return the primary nodes of the cluster, as currently known by any of its nodes
+     */
+    private Set<HostAndPort> getPrimaries() {
+        JedisConnectionException failure = new JedisConnectionException("No node of the cluster is reachable");
+        for (String node : nodes.getNodes().keySet()) {
+            HostAndPort known = HostAndPort.from(node);
+            try (Jedis j = new Jedis(nodes.getConnection(known))) {
+                Set<HostAndPort> found = new HashSet<>();
+                // each slot range lists its primary first, and then its replicas
+                for (Object range : j.clusterSlots()) {
+                    List<?> hostInfo = (List<?>) ((List<?>) range).get(2);
+                    String host = SafeEncoder.encode((byte[]) hostInfo.get(0));
+                    // an empty host is the one of the node replying
+                    found.add(new HostAndPort(host.isEmpty() ? known.getHost() : host, ((Long) hostInfo.get(1)).intValue()));
+                }
+                return found;
+            } catch (JedisConnectionException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
     /**
      * Broadcast a message via the specified channel. The message will be received by all agents that has been
-     * {@link #subscribe(JedisPubSub, String...) subscribed} to this channel
+     * {@link #subscribe(JedisPubSub, String...) subscribed} to this channel.
+     * <p>
+     * The messages are sent through a single dedicated connection, out of the pools, so the concurrent calls take turns
+     * on it: the session draining requests are coalesced by {@link DrainRequestBatcher} and published by its timer
+     * thread, unless the batching is disabled.
      *
      * @param channel the channel against with send the message
      * @param message the message payload
+     * @return the number of subscribers that received the message. In cluster mode, only the subscribers connected
+     * to the node the message was published on are counted.
      */
-    public void publish(String channel, String message) {
-        execute(client -> client.publish(channel, message));
+    public synchronized long publish(String channel, String message) {
+        // a failure to connect is thrown as is
+        Jedis j = getPublisher();
+        try {
+            return j.publish(channel, message);
+        } catch (JedisConnectionException e) {
+            // the connection broke while idle, or the master changed: the message is sent again on a new connection
+            j.close();
+            publisher = null;
+            return getPublisher().publish(channel, message);
+        }
+    }
+
+    private Jedis getPublisher() {
+        if (publisher == null || publisher.isBroken()) {
+            if (publisher != null) publisher.close();
+            publisher = null;
+            publisher = connect();
+        }
+        return publisher;
     }
 
     /**
-     * Subscribe to all the messages received from the specified channels.
+     * Open a new connection, out of the pools, with the master node or with any node of the cluster
+     *
+     * @return the connection, to be closed by the caller
+     */
+    Jedis connect() {
+        return new Jedis(address.get(), clientConfig);
+    }
+
+    /**
+     * Open a new connection, out of the pools, with the master node or with the primary node serving the given key
+     *
+     * @param key the key the connection is going to be used for
+     * @return the connection, to be closed by the caller
+     */
+    Jedis connect(String key) {
+        if (nodes == null) return connect();
+        HostAndPort primary = nodes.getNode(JedisClusterCRC16.getSlot(key));
+        return primary == null ? connect() : new Jedis(primary, clientConfig);
+    }
+
+    /**
+     * Subscribe to all the messages received from the specified channels, using a dedicated connection.
      * <br/>
-     * <em>WARNING: This method will block the current thread until the un-subscription</em>
+     * <em>WARNING: This method will block the current thread until the un-subscription, or until the connection
+     * breaks</em>
      *
      * @param subscriber instance of the subscriber interface
      * @param channels   channels from which receive the notifications
      */
     public void subscribe(JedisPubSub subscriber, String... channels) {
-        execute(client -> {
+        try (Jedis client = connect()) {
             client.subscribe(subscriber, channels);
-            return null;
-        });
+        }
     }
 
     /**
-     * Extract the keys that matches a given pattern and belongs to a specific type
+     * Extract the keys that matches a given pattern and belongs to a specific type. In cluster mode all the primary
+     * nodes are scanned in parallel.
      *
      * @param pattern the pattern string
      * @param type    string representation of the type of the value stored at key. The different types that can be used
@@ -283,27 +607,21 @@ class RedisConnector {
      */
     public Set<String> keys(String pattern, String type) {
 
-        return execute(j -> {
-            Set<String> set = new HashSet<>();
-            String cursor = ScanParams.SCAN_POINTER_START;
-            do {
-                ScanParams sp = new ScanParams();
-                sp.match(pattern);
-
-                ScanResult<String> sr;
-                if (type != null) sr = j.scan(cursor, sp, type);
-                else sr = j.scan(cursor, sp);
-                cursor = sr.getCursor();
-                set.addAll(sr.getResult());
-            } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
-
-            return set;
-        });
+        Set<String> set = new HashSet<>();
+        for (Set<String> keys : executeOnPrimaries(j -> {
+            Set<String> found = new HashSet<>();
+            scan(j, pattern, type, found::addAll);
+            return found;
+        })) {
+            set.addAll(keys);
+        }
+        return set;
 
     }
 
     /**
-     * Delete the keys that match a given pattern and belongs to a specific type
+     * Delete the keys that match a given pattern and belongs to a specific type. In cluster mode all the primary
+     * nodes are scanned in parallel.
      *
      * @param pattern the pattern string
      * @param type    string representation of the type of the value stored at key. The different types that can be used
@@ -318,27 +636,57 @@ class RedisConnector {
      *                </ul>
      */
     public void del(String pattern, String type) {
-        execute(j -> {
-
-            String cursor = ScanParams.SCAN_POINTER_START;
-            do {
-                ScanParams sp = new ScanParams();
-                sp.match(pattern);
-
-                ScanResult<String> sr;
-                if (type != null) sr = j.scan(cursor, sp, type);
-                else sr = j.scan(cursor, sp);
+        executeOnPrimaries(j -> {
+            scan(j, pattern, type, res -> {
+                if (nodes == null) {
+                    j.del(res.toArray(new String[0]));
+                    return;
+                }
+                // the keys of a node belong to many slots, while a single command can only touch one slot
+                Pipeline p = j.pipelined();
+                res.forEach(p::del);
+                p.sync();
+            });
+            return null;
+        });
+    }
 
-                cursor = sr.getCursor();
-                List<String> res = sr.getResult();
+    /**
+     * Scan the keys that match a given pattern and belong to a specific type, handing each page of keys to the given
+     * consumer together with the connection of the node storing them. In cluster mode all the primary nodes are
+     * scanned in parallel, so the consumer may be called concurrently.
+     *
+     * @param pattern  the pattern string
+     * @param type     string representation of the type of the value stored at key, as in {@link #keys(String, String)}
+     * @param count    the number of keys each page is expected to hold
+     * @param consumer the consumer of the pages of keys
+     */
+    public void scan(String pattern, String type, int count, BiConsumer<Jedis, List<String>> consumer) {
+        executeOnPrimaries(j -> {
+            scan(j, pattern, type, count, keys -> consumer.accept(j, keys));
+            return null;
+        });
+    }
 
-                if (!res.isEmpty()) j.del(res.toArray(new String[0]));
+    private static void scan(Jedis j, String pattern, String type, Consumer<List<String>> consumer) {
+        scan(j, pattern, type, 0, consumer);
+    }
 
-            } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+    private static void scan(Jedis j, String pattern, String type, int count, Consumer<List<String>> consumer) {
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            ScanParams sp = new ScanParams();
+            sp.match(pattern);
+            if (count > 0) sp.count(count);
 
-            return null;
-        });
+            ScanResult<String> sr;
+            if (type != null) sr = j.scan(cursor, sp, type);
+            else sr = j.scan(cursor, sp);
 
+            cursor = sr.getCursor();
+            List<String> res = sr.getResult();
+            if (!res.isEmpty()) consumer.accept(res);
 
+        } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
     }
 }
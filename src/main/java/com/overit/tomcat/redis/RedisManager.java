@@ -9,6 +9,13 @@ import org.apache.catalina.util.CustomObjectInputStream;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.util.ExceptionUtils;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
 import redis.clients.jedis.params.SetParams;
 
 import java.io.*;
@@ -18,9 +25,10 @@ import java.nio.charset.StandardCharsets;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntBiFunction;
 
 /**
  * Implementation of the <b>Manager</b> interface that provides
@@ -37,7 +45,38 @@ import java.util.Set;
  */
 public class RedisManager extends ManagerBase {
 
+    private static final int MAX_POOLED_BUFFER_SIZE = 4 * 1024 * 1024; // 4MB
+    private static final int LOAD_BATCH_SIZE = 1000;
+    private static final int DEFAULT_UNLOAD_BATCH_SIZE = 100;
+
+    /**
+     * Read and delete a session in a single step, so that it is loaded by one node only.
+     * <p>KEYS: session.</p>
+     */
+    private static final RedisScript TAKE = new RedisScript("""
+        local session = redis.call('GET', KEYS[1])
+        if session then redis.call('DEL', KEYS[1]) end
+        return session
+        """);
+
+    /**
+     * Record the unloaded sessions into the index, ranked by last access, drop the entries ranked before the given
+     * cutoff, whose sessions have expired, and extend the time to live of the index if it is shorter than the given
+     * one, so that the index outlives the sessions of all the batches.
+     * <p>KEYS: index. ARGV: ttl, cutoff, then the rank and the id of each session.</p>
+     */
+    private static final RedisScript INDEX = new RedisScript("""
+        redis.call('ZREMRANGEBYSCORE', KEYS[1], '-inf', '(' .. ARGV[2])
+        for i = 3, #ARGV, 2 do
+          redis.call('ZADD', KEYS[1], ARGV[i], ARGV[i + 1])
+        end
+        local ttl = tonumber(ARGV[1])
+        if redis.call('PTTL', KEYS[1]) < ttl then redis.call('PEXPIRE', KEYS[1], ttl) end
+        return 1
+        """);
+
     private final Log log = LogFactory.getLog(RedisManager.class);
+    private final BufferPool buffers = new BufferPool(MAX_POOLED_BUFFER_SIZE);
 
     private class PrivilegedDoLoad implements PrivilegedExceptionAction<Void> {
 
@@ -68,6 +107,19 @@ public class RedisManager extends ManagerBase {
 
 
     protected String prefix = "tomcat";
+    private int unloadBatchSize = DEFAULT_UNLOAD_BATCH_SIZE;
+    private long unloadTimeout = -1;
+    private boolean lazyLoad = false;
+    private boolean preloadRouteOnly = false;
+    private int preloadMaxSessions = -1;
+    private long preloadTimeout = -1;
+    private final Map<String, CompletableFuture<Session>> lazyLoads = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<FutureTask<Boolean>>> pendingRestores = new ConcurrentHashMap<>();
+    private boolean backgroundLoad = false;
+    private volatile boolean restoring = false;
+    private Thread restorer;
+    private SessionCodec codec = SessionCodecs.forName(JdkSessionCodec.NAME, false);
+    private final PayloadCompressor compressor = new PayloadCompressor();
 
     @Override
     public String getName() {
@@ -102,6 +154,97 @@ public class RedisManager extends ManagerBase {
         RedisConnector.setSoTimeout(soTimeout);
     }
 
+    /**
+     * Set the maximum number of connections with each Redis node
+     *
+     * @param poolMaxTotal the maximum number of connections. The default value is {@code 10}.
+     */
+    public void setPoolMaxTotal(int poolMaxTotal) {
+        RedisConnector.getPoolSettings().setMaxTotal(poolMaxTotal);
+    }
+
+    /**
+     * Set the maximum number of idle connections kept with each Redis node
+     *
+     * @param poolMaxIdle the maximum number of idle connections. The default value is {@code 3}.
+     */
+    public void setPoolMaxIdle(int poolMaxIdle) {
+        RedisConnector.getPoolSettings().setMaxIdle(poolMaxIdle);
+    }
+
+    /**
+     * Set the minimum number of idle connections kept with each Redis node
+     *
+     * @param poolMinIdle the minimum number of idle connections. The default value is {@code 1}.
+     */
+    public void setPoolMinIdle(int poolMinIdle) {
+        RedisConnector.getPoolSettings().setMinIdle(poolMinIdle);
+    }
+
+    /**
+     * Set how long a command waits for a connection when all of them are in use
+     *
+     * @param poolMaxWait timeout expressed in millis, or a negative value to wait indefinitely (default)
+     */
+    public void setPoolMaxWait(long poolMaxWait) {
+        RedisConnector.getPoolSettings().setMaxWait(poolMaxWait);
+    }
+
+    /**
+     * @param poolTestOnCreate {@code true} to validate the connections when they are created. The default value is
+     *                         {@code true}.
+     */
+    public void setPoolTestOnCreate(boolean poolTestOnCreate) {
+        RedisConnector.getPoolSettings().setTestOnCreate(poolTestOnCreate);
+    }
+
+    /**
+     * @param poolTestOnBorrow {@code true} to validate the connections, with a round trip, each time they are used.
+     *                         The default value is {@code true}.
+     */
+    public void setPoolTestOnBorrow(boolean poolTestOnBorrow) {
+        RedisConnector.getPoolSettings().setTestOnBorrow(poolTestOnBorrow);
+    }
+
+    /**
+     * @param poolTestWhileIdle {@code true} to validate the idle connections in background. The default value is
+     *                          {@code false}.
+     */
+    public void setPoolTestWhileIdle(boolean poolTestWhileIdle) {
+        RedisConnector.getPoolSettings().setTestWhileIdle(poolTestWhileIdle);
+    }
+
+    /**
+     * Set how often the idle connections are validated, and the exceeding ones closed
+     *
+     * @param poolTimeBetweenEvictionRuns the interval expressed in millis, or a negative value to disable the
+     *                                    background checks (default)
+     */
+    public void setPoolTimeBetweenEvictionRuns(long poolTimeBetweenEvictionRuns) {
+        RedisConnector.getPoolSettings().setTimeBetweenEvictionRuns(poolTimeBetweenEvictionRuns);
+    }
+
+    /**
+     * Enable the adaptive sizing of the connection pools: the idle connections are grown when the commands wait for a
+     * connection, up to {@link #setPoolMaxTotal(int) the maximum}, and shrunk back to the configured values when the
+     * load decreases. The connections are validated in background, every 30 seconds unless
+     * {@link #setPoolTimeBetweenEvictionRuns(long) otherwise set}, instead of each time they are used.
+     *
+     * @param poolAdaptive {@code true} to enable the adaptive sizing. The default value is {@code false}.
+     */
+    public void setPoolAdaptive(boolean poolAdaptive) {
+        RedisConnector.getPoolSettings().setAdaptive(poolAdaptive);
+    }
+
+    /**
+     * Enable the Redis Cluster mode
+     *
+     * @param cluster {@code true} to connect with a Redis Cluster. The default value is {@code false}.
+     */
+    public void setCluster(boolean cluster) {
+        RedisConnector.setCluster(cluster);
+    }
+
     /**
      * Set the prefix of the keys whose contains the serialized sessions. Those to avoid possible conflicts if the
      * same redis instance is shared between multiple applications. If not specified, the default prefix value is
@@ -114,6 +257,232 @@ public class RedisManager extends ManagerBase {
     }
 
 
+    /**
+     * Enable the lazy load of the sessions: instead of loading all the stored sessions at startup, each session is
+     * loaded from Redis the first time it is looked up and not found in memory. A session looked up by many requests
+     * at the same time is loaded once.
+     *
+     * @param lazyLoad {@code true} to load the sessions on demand. The default value is {@code false}.
+     */
+    public void setLazyLoad(boolean lazyLoad) {
+        this.lazyLoad = lazyLoad;
+    }
+
+    /**
+     * Restore the stored sessions in background, so that the context starts serving the requests right away. A
+     * session looked up before being restored is loaded on demand.
+     *
+     * @param backgroundLoad {@code true} to restore the sessions in background. The default value is {@code false}.
+     */
+    public void setBackgroundLoad(boolean backgroundLoad) {
+        this.backgroundLoad = backgroundLoad;
+    }
+
+    /**
+     * Preload at startup only the sessions routed to this node by the load balancer, i.e. those whose identifier ends
+     * with the {@code jvmRoute} of the engine. The other sessions are loaded on demand.
+     * <p>
+     * <em>Only the sessions unloaded by this version are recorded into the index the preload reads from: the sessions
+     * stored by a previous version are not preloaded, but loaded on demand.</em>
+     *
+     * @param preloadRouteOnly {@code true} to preload only the sessions of this node. The default value is
+     *                         {@code false}.
+     */
+    public void setPreloadRouteOnly(boolean preloadRouteOnly) {
+        this.preloadRouteOnly = preloadRouteOnly;
+    }
+
+    /**
+     * Set the maximum number of sessions preloaded at startup, the most recently used first. The other sessions are
+     * loaded on demand.
+     * <p>
+     * <em>Only the sessions unloaded by this version are recorded into the index the preload reads from: the sessions
+     * stored by a previous version are not preloaded, but loaded on demand.</em>
+     *
+     * @param preloadMaxSessions the maximum number of sessions, or a negative value to preload all of them (default)
+     */
+    public void setPreloadMaxSessions(int preloadMaxSessions) {
+        this.preloadMaxSessions = preloadMaxSessions;
+    }
+
+    /**
+     * Set how long the sessions can take to be preloaded at startup, the most recently used first. The other sessions
+     * are loaded on demand.
+     * <p>
+     * <em>Only the sessions unloaded by this version are recorded into the index the preload reads from: the sessions
+     * stored by a previous version are not preloaded, but loaded on demand.</em>
+     *
+     * @param preloadTimeout the time budget expressed in millis, or a value less or equal to zero to preload all the
+     *                       sessions (default)
+     */
+    public void setPreloadTimeout(long preloadTimeout) {
+        this.preloadTimeout = preloadTimeout;
+    }
+
+    /**
+     * Set how many sessions are serialized in parallel, and then written in a single round trip, at shutdown
+     *
+     * @param unloadBatchSize the number of sessions of each batch. The default value is {@code 100}.
+     */
+    public void setUnloadBatchSize(int unloadBatchSize) {
+        if (unloadBatchSize < 1) throw new IllegalArgumentException("The unload batch size must be positive");
+        this.unloadBatchSize = unloadBatchSize;
+    }
+
+    /**
+     * Set how long the sessions can take to be saved at shutdown. The most recently used sessions are saved first, so
+     * once the time is over the sessions left are the ones used longest ago.
+     *
+     * @param unloadTimeout timeout expressed in millis, or a value less or equal to zero to save all the sessions
+     *                      anyway (default)
+     */
+    public void setUnloadTimeout(long unloadTimeout) {
+        this.unloadTimeout = unloadTimeout;
+    }
+
+
+    /**
+     * Set the codec used to store the sessions. Its values could be {@code jdk} (default), {@code compact} or the
+     * fully qualified class name of a {@link SessionCodec} implementation. The sessions are read whatever the codec
+     * used to store them.
+     *
+     * @param codec the name of the codec
+     */
+    public void setCodec(String codec) {
+        this.codec = SessionCodecs.forName(codec, false);
+    }
+
+
+    /**
+     * Set the size above which the stored sessions are compressed
+     *
+     * @param compressionThreshold the size in bytes, or a negative value to disable the compression. The default
+     *                             value is {@code -1}.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        compressor.setThreshold(compressionThreshold);
+    }
+
+    /**
+     * Set the level of the compression, from 1 (the fastest) to 9 (the smallest output)
+     *
+     * @param compressionLevel the compression level. The default value is {@code 1}.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        compressor.setLevel(compressionLevel);
+    }
+
+    /**
+     * Set the preset dictionary used to compress the sessions, built by {@link CompressionDictionary}
+     *
+     * @param compressionDictionary the path of the dictionary file, relative to {@code catalina.base} if not absolute
+     */
+    public void setCompressionDictionary(String compressionDictionary) {
+        compressor.setDictionary(compressionDictionary);
+    }
+
+    /**
+     * @return the number of sessions that have been compressed
+     */
+    public long getCompressedPayloads() {
+        return compressor.getCompressedPayloads();
+    }
+
+    /**
+     * @return the ratio between the size of the compressed sessions and their original size
+     */
+    public double getCompressionRatio() {
+        return compressor.getCompressionRatio();
+    }
+
+    /**
+     * @return the time, in millis, spent compressing the sessions
+     */
+    public long getCompressionTime() {
+        return compressor.getCompressionTime();
+    }
+
+    /**
+     * @return the time, in millis, spent decompressing the sessions
+     */
+    public long getDecompressionTime() {
+        return compressor.getDecompressionTime();
+    }
+
+
+    @Override
+    public Session findSession(String id) throws IOException {
+        Session session = super.findSession(id);
+        if (session != null || id == null || !getState().isAvailable()) return session;
+        // the sessions not preloaded, or not restored yet, are loaded on demand
+        if (!lazyLoad && !isSelectivePreload() && !restoring) return session;
+        return loadLazily(id);
+    }
+
+    /**
+     * Load a session from Redis, unless another thread is already loading it: in that case, wait for its result
+     *
+     * @param id the session identifier
+     * @return the session, or {@code null} if it is not stored
+     */
+    private Session loadLazily(String id) {
+        CompletableFuture<Session> load = new CompletableFuture<>();
+        CompletableFuture<Session> inFlight = lazyLoads.putIfAbsent(id, load);
+        if (inFlight != null) return inFlight.join();
+
+        Session session = null;
+        try {
+            // loaded in the meanwhile, right before this load started
+            session = sessions.get(id);
+            if (session == null && !restorePending(id)) {
+                byte[] key = getSessionKey(id).getBytes(StandardCharsets.UTF_8);
+                Object raw = RedisConnector.instance().execute(getSessionKey(id), j -> TAKE.eval(j, List.of(key), List.of()));
+                if (raw instanceof byte[] payload && payload.length > 0) {
+                    String index = getUnloadedIndexKey();
+                    RedisConnector.instance().execute(index, j -> j.zrem(index, id));
+                    restoreSession(payload, getSessionClassLoader(), getContext().getLogger());
+                } else {
+                    // taken by the background restore right before
+                    restorePending(id);
+                }
+            }
+            if (session == null) session = sessions.get(id);
+        } catch (Exception e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error loading session", e);
+            }
+        } finally {
+            load.complete(session);
+            lazyLoads.remove(id, load);
+        }
+        return session;
+    }
+
+    /**
+     * Restore right now, in the current thread, a session being taken from Redis by the bulk load but still waiting
+     * for a worker; if the session is being taken, wait for it, and if a worker is already restoring it, wait until it
+     * is done
+     *
+     * @param id the session identifier
+     * @return {@code false} if the session is not being restored
+     */
+    private boolean restorePending(String id) {
+        CompletableFuture<FutureTask<Boolean>> pending = pendingRestores.get(id);
+        if (pending == null) return false;
+        try {
+            FutureTask<Boolean> restore = pending.get();
+            // not stored anymore when the bulk load tried to take it
+            if (restore == null) return false;
+            restore.run();
+            restore.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (log.isDebugEnabled()) log.debug("Error loading session", e.getCause());
+        }
+        return true;
+    }
+
     @Override
     public void load() throws ClassNotFoundException, IOException {
         if (SecurityUtil.isPackageProtectionEnabled()) {
@@ -153,67 +522,188 @@ public class RedisManager extends ManagerBase {
      *
      */
     protected void doLoad() {
-        // Initialize our internal data structures
-        sessions.clear();
+        // Initialize our internal data structures, unless the requests are already creating sessions
+        if (!restoring) sessions.clear();
 
 
-        ClassLoader classLoader = null;
-
         Context c = getContext();
-        Loader loader = c.getLoader();
         Log logger = c.getLogger();
-        if (loader != null) {
-            classLoader = loader.getClassLoader();
-        }
-        if (classLoader == null) {
-            classLoader = getClass().getClassLoader();
-        }
+        ClassLoader cl = getSessionClassLoader();
 
+        // the sessions are taken from Redis in pipelined pages, and restored in parallel while the next pages arrive
+        ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread t = new Thread(r, "RedisManager-load[" + c.getName() + "]");
+            t.setDaemon(true);
+            t.setContextClassLoader(cl);
+            return t;
+        });
+        List<Future<Boolean>> restores = Collections.synchronizedList(new ArrayList<>());
+        int keyPrefix = getSessionKey("").length();
+        ToIntBiFunction<Jedis, List<String>> takeAndRestore = (j, keys) -> {
+            // tracked from before being taken until restored, so that a session looked up meanwhile is waited for, and
+            // then restored with priority
+            Map<String, CompletableFuture<FutureTask<Boolean>>> placeholders = new HashMap<>();
+            List<String> tracked = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                CompletableFuture<FutureTask<Boolean>> placeholder = new CompletableFuture<>();
+                // listed twice by the scan otherwise
+                if (pendingRestores.putIfAbsent(key.substring(keyPrefix), placeholder) != null) continue;
+                placeholders.put(key, placeholder);
+                tracked.add(key);
+            }
 
-        Set<String> keys;
+            int taken = 0;
+            try {
+                for (Map.Entry<String, byte[]> session : take(j, tracked).entrySet()) {
+                    String id = session.getKey().substring(keyPrefix);
+                    CompletableFuture<FutureTask<Boolean>> placeholder = placeholders.remove(session.getKey());
+                    FutureTask<Boolean> task = new FutureTask<>(() -> restoreSession(session.getValue(), cl, logger));
+                    restores.add(task);
+                    placeholder.complete(task);
+                    workers.execute(() -> {
+                        task.run();
+                        pendingRestores.remove(id, placeholder);
+                    });
+                    taken++;
+                }
+            } finally {
+                // not stored anymore, or not taken at all
+                placeholders.forEach((key, placeholder) -> {
+                    pendingRestores.remove(key.substring(keyPrefix), placeholder);
+                    placeholder.complete(null);
+                });
+            }
+            return taken;
+        };
         try {
-            keys = RedisConnector.instance().keys(getSessionKey("*"), "string");
+            if (isSelectivePreload()) {
+                preload(takeAndRestore);
+            } else {
+                String index = getUnloadedIndexKey();
+                RedisConnector.instance().scan(getSessionKey("*"), "string", LOAD_BATCH_SIZE, (j, keys) -> {
+                    takeAndRestore.applyAsInt(j, keys);
+                    // taken by this node or by another one, so not to be preloaded anymore
+                    String[] ids = keys.stream().map(key -> key.substring(keyPrefix)).toArray(String[]::new);
+                    RedisConnector.instance().execute(index, r -> r.zrem(index, ids));
+                });
+            }
         } catch (Exception e) {
             if (log.isDebugEnabled()) {
                 log.debug("Error listing sessions", e);
             }
-            return;
         }
 
+        try {
+            for (Future<Boolean> restored : restores) {
+                if (restored.get()) sessionCounter++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // each restore handles its own errors
+            if (log.isDebugEnabled()) log.debug("Error loading session", e.getCause());
+        } finally {
+            workers.shutdown();
+        }
+    }
 
-        // Load the previously unloaded active sessions
-        synchronized (sessions) {
-            byte[] empty = new byte[0];
-            for (String key : keys) {
-                StandardSession session = getNewSession();
+    /**
+     * Take the stored sessions in descending order of last access, as recorded by the unload, selecting the ones routed
+     * to this node if required, until the maximum number of sessions or the time budget is reached. The sessions left
+     * are loaded on demand.
+     *
+     * @param takeAndRestore take the given sessions from Redis and restore them, returning how many were stored
+     */
+    private void preload(ToIntBiFunction<Jedis, List<String>> takeAndRestore) {
+        long deadline = preloadTimeout > 0 ? System.currentTimeMillis() + preloadTimeout : Long.MAX_VALUE;
+        int max = preloadMaxSessions < 0 ? Integer.MAX_VALUE : preloadMaxSessions;
+        String route = preloadRouteOnly ? getJvmRoute() : null;
+        if (preloadRouteOnly && route == null) {
+            log.warn("The engine has no jvmRoute: the sessions are preloaded whatever node they are routed to");
+        }
+        String suffix = "." + route;
 
-                try {
-                    byte[] k = (key).getBytes(StandardCharsets.UTF_8);
-                    byte[] s = RedisConnector.instance().execute(j -> {
-                        byte[] bb = j.getSet(k, empty);
-                        j.del(k);
+        RedisConnector connector = RedisConnector.instance();
+        String index = getUnloadedIndexKey();
+        AtomicInteger loaded = new AtomicInteger();
+        long offset = 0;
+        while (loaded.get() < max && System.currentTimeMillis() < deadline) {
+            long from = offset;
+            List<String> ids = connector.execute(index, j -> j.zrevrange(index, from, from + LOAD_BATCH_SIZE - 1));
+            if (ids.isEmpty()) break;
+            offset += ids.size();
 
-                        return bb;
-                    });
+            List<String> selected = ids.stream()
+                .filter(id -> route == null || id.endsWith(suffix))
+                .limit((long) max - loaded.get())
+                .toList();
+            if (selected.isEmpty()) continue;
+            connector.executeByNode(selected.stream().map(this::getSessionKey).toList(),
+                (j, keys) -> loaded.addAndGet(takeAndRestore.applyAsInt(j, keys)));
+            connector.execute(index, j -> j.zrem(index, selected.toArray(new String[0])));
+            // the following entries have been shifted back by the removal
+            offset -= selected.size();
+        }
+    }
 
-                    ObjectInputStream ois = new CustomObjectInputStream(new ByteArrayInputStream(s), classLoader, logger, getSessionAttributeValueClassNamePattern(), getWarnOnSessionAttributeFilterFailure());
-                    session.readObjectData(ois);
-                    session.setManager(this);
-                    sessions.put(session.getIdInternal(), session);
-                    session.activate();
-                    if (!isSessionValidInternal(session)) {
-                        // If session is already invalid,
-                        // expire session to prevent memory leak.
-                        session.setValid(true);
-                        session.expire();
-                    }
-                    sessionCounter++;
-                } catch (Exception e) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Error loading session", e);
-                    }
+    private boolean isSelectivePreload() {
+        return preloadRouteOnly || preloadMaxSessions >= 0 || preloadTimeout > 0;
+    }
+
+    /**
+     * Read and delete the given sessions, in a single round trip; the script is loaded, and the sessions it did not
+     * reach taken again, only if Redis does not know it
+     *
+     * @return the stored sessions, by key
+     */
+    private static Map<String, byte[]> take(Jedis j, List<String> keys) {
+        Map<String, byte[]> sessions = new LinkedHashMap<>();
+        List<String> pending = keys;
+        for (int attempt = 0; !pending.isEmpty(); attempt++) {
+            Pipeline p = j.pipelined();
+            List<Response<Object>> replies = new ArrayList<>(pending.size());
+            for (String key : pending) {
+                replies.add(TAKE.eval(p, List.of(key.getBytes(StandardCharsets.UTF_8)), List.of()));
+            }
+            p.sync();
+
+            List<String> unknown = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i++) {
+                try {
+                    if (replies.get(i).get() instanceof byte[] raw && raw.length > 0) sessions.put(pending.get(i), raw);
+                } catch (JedisNoScriptException e) {
+                    if (attempt > 0) throw e;
+                    unknown.add(pending.get(i));
                 }
             }
+            if (!unknown.isEmpty()) TAKE.load(j);
+            pending = unknown;
+        }
+        return sessions;
+    }
+
+    /**
+     * @return {@code true} if the session has been restored
+     */
+    private boolean restoreSession(byte[] raw, ClassLoader cl, Log logger) {
+        StandardSession session = getNewSession();
+        try {
+            SessionCodecs.decode(compressor.decompress(raw), session, is -> new CustomObjectInputStream(is, cl, logger, getSessionAttributeValueClassNamePattern(), getWarnOnSessionAttributeFilterFailure()), codec);
+            session.setManager(this);
+            sessions.put(session.getIdInternal(), session);
+            session.activate();
+            if (!isSessionValidInternal(session)) {
+                // If session is already invalid,
+                // expire session to prevent memory leak.
+                session.setValid(true);
+                session.expire();
+            }
+            return true;
+        } catch (Exception e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error loading session", e);
+            }
+            return false;
         }
     }
 
@@ -248,44 +738,51 @@ public class RedisManager extends ManagerBase {
         if (sessions.isEmpty()) {
             return; // nothing to do
         }
+        long deadline = unloadTimeout > 0 ? System.currentTimeMillis() + unloadTimeout : Long.MAX_VALUE;
 
-        // Keep a note of sessions that are expired
+        // the most recently used sessions first, so that those lost if the deadline expires are the least valuable
         List<StandardSession> list = new ArrayList<>();
+        for (Session s : sessions.values()) list.add((StandardSession) s);
+        list.sort(Comparator.comparingLong(StandardSession::getLastAccessedTimeInternal).reversed());
 
-
-        synchronized (sessions) {
-            // Write the number of active sessions, followed by the details
-
-            for (Session s : sessions.values()) {
-                StandardSession session = (StandardSession) s;
-                list.add(session);
-                session.passivate();
-
+        // Keep a note of sessions that are expired
+        List<StandardSession> unloaded = new ArrayList<>();
+        ForkJoinPool workers = newWorkers();
+        try {
+            for (int from = 0; from < list.size(); from += unloadBatchSize) {
+                if (System.currentTimeMillis() > deadline) {
+                    log.warn("The sessions unload timed out: " + (list.size() - from) + " sessions have not been saved");
+                    break;
+                }
+                List<StandardSession> batch = list.subList(from, Math.min(from + unloadBatchSize, list.size()));
                 try {
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    ObjectOutputStream oos = new ObjectOutputStream(baos);
-                    session.writeObjectData(oos);
-                    oos.flush();
-
-                    RedisConnector.instance().execute(j -> {
-
-                        long ttl = (session.getLastAccessedTime() + (session.getMaxInactiveInterval() * 1000L)) - System.currentTimeMillis();
-                        byte[] k = (getSessionKey(session.getId())).getBytes(StandardCharsets.UTF_8);
-                        j.set(k, baos.toByteArray(), SetParams.setParams().px(ttl));
-                        return null;
-
-                    });
-                } catch (Exception e) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Error unloading session", e);
+                    List<UnloadedSession> encoded = workers.submit(() -> batch.parallelStream()
+                        .map(this::encode)
+                        .filter(Objects::nonNull)
+                        .toList()).get();
+                    if (encoded.size() < batch.size()) {
+                        log.warn("Error unloading sessions: " + (batch.size() - encoded.size())
+                            + " sessions have not been saved, as they could not be serialized or have expired");
+                    }
+                    // the sessions not saved are left to be expired as usual
+                    Set<String> written = write(encoded);
+                    for (StandardSession session : batch) {
+                        if (written.contains(session.getIdInternal())) unloaded.add(session);
                     }
+                } catch (ExecutionException | RuntimeException e) {
+                    // the following batches could be written anyway
+                    log.warn("Error unloading sessions: " + batch.size() + " sessions may not have been saved", e);
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            workers.shutdown();
         }
 
 
         // Expire all the sessions we just wrote
-        for (StandardSession session : list) {
+        for (StandardSession session : unloaded) {
             try {
                 session.expire(false);
             } catch (Throwable t) {
@@ -296,6 +793,131 @@ public class RedisManager extends ManagerBase {
         }
     }
 
+    private record UnloadedSession(String id, String key, byte[] payload, long ttl, long lastAccessed) {
+    }
+
+    /**
+     * Passivate and serialize a session
+     *
+     * @return the session to be written, or {@code null} if it could not be serialized or it is already expired
+     */
+    private UnloadedSession encode(StandardSession session) {
+        session.passivate();
+        // the buffer is reused by the next session, so it grows only up to the size of the biggest one
+        BufferPool.Buffer baos = buffers.acquire(0);
+        try {
+            SessionCodecs.encode(codec, session, baos);
+            long ttl = (session.getLastAccessedTime() + (session.getMaxInactiveInterval() * 1000L)) - System.currentTimeMillis();
+            if (ttl <= 0) return null;
+            return new UnloadedSession(session.getId(), getSessionKey(session.getId()),
+                compressor.compress(baos.array(), baos.size()), ttl, session.getLastAccessedTimeInternal());
+        } catch (Exception e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error unloading session", e);
+            }
+            return null;
+        } finally {
+            buffers.release(baos);
+        }
+    }
+
+    /**
+     * Write a batch of sessions, in a single round trip for each Redis node, and record them into the index of the
+     * unloaded sessions ranked by last access
+     *
+     * @return the identifiers of the sessions written
+     */
+    private Set<String> write(List<UnloadedSession> batch) {
+        if (batch.isEmpty()) return Set.of();
+        Map<String, UnloadedSession> byKey = new HashMap<>();
+        for (UnloadedSession session : batch) byKey.put(session.key(), session);
+
+        RedisConnector connector = RedisConnector.instance();
+        Set<String> written = new HashSet<>();
+        try {
+            connector.executeByNode(byKey.keySet(), (j, keys) -> {
+                Pipeline p = j.pipelined();
+                List<Response<String>> replies = new ArrayList<>(keys.size());
+                for (String key : keys) {
+                    UnloadedSession session = byKey.get(key);
+                    replies.add(p.set(key.getBytes(StandardCharsets.UTF_8), session.payload(), SetParams.setParams().px(session.ttl())));
+                }
+                p.sync();
+
+                int failed = 0;
+                JedisException error = null;
+                for (int i = 0; i < keys.size(); i++) {
+                    UnloadedSession session = byKey.get(keys.get(i));
+                    try {
+                        replies.get(i).get();
+                        written.add(session.id());
+                    } catch (JedisRedirectionException e) {
+                        // the slot has moved in the meanwhile
+                        try {
+                            connector.execute(session.key(), c -> c.set(session.key().getBytes(StandardCharsets.UTF_8),
+                                session.payload(), SetParams.setParams().px(session.ttl())));
+                            written.add(session.id());
+                        } catch (JedisException retry) {
+                            failed++;
+                            error = retry;
+                        }
+                    } catch (JedisDataException e) {
+                        failed++;
+                        error = e;
+                    }
+                }
+                if (failed > 0) log.warn("Error unloading sessions: " + failed + " sessions have not been saved", error);
+            });
+        } catch (RuntimeException e) {
+            // the sessions of the nodes already reached are written anyway
+            log.warn("Error unloading sessions: " + (batch.size() - written.size()) + " sessions have not been saved", e);
+        }
+        if (written.isEmpty()) return written;
+
+        String index = getUnloadedIndexKey();
+        List<byte[]> args = new ArrayList<>(2 * written.size() + 2);
+        long now = System.currentTimeMillis();
+        long ttl = 0;
+        long maxInactive = 0;
+        for (UnloadedSession session : batch) {
+            if (!written.contains(session.id())) continue;
+            args.add(Long.toString(session.lastAccessed()).getBytes(StandardCharsets.UTF_8));
+            args.add(session.id().getBytes(StandardCharsets.UTF_8));
+            ttl = Math.max(ttl, session.ttl());
+            maxInactive = Math.max(maxInactive, now - session.lastAccessed() + session.ttl());
+        }
+        // the entries last accessed before the longest inactive interval of the batch belong to expired sessions
+        args.add(0, Long.toString(now - maxInactive).getBytes(StandardCharsets.UTF_8));
+        args.add(0, Long.toString(ttl).getBytes(StandardCharsets.UTF_8));
+        // the index outlives its sessions, whose entries are dropped when they are not found anymore
+        try {
+            connector.execute(index, j -> INDEX.eval(j, List.of(index.getBytes(StandardCharsets.UTF_8)), args));
+        } catch (RuntimeException e) {
+            // saved anyway, and loaded by the scan or on demand
+            log.warn("Error indexing the unloaded sessions", e);
+        }
+        return written;
+    }
+
+    /**
+     * @return a pool of workers running with the class loader of the web application
+     */
+    private ForkJoinPool newWorkers() {
+        ClassLoader cl = getSessionClassLoader();
+        return new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            t.setName("RedisManager-unload[" + getContext().getName() + "]-" + t.getPoolIndex());
+            t.setContextClassLoader(cl);
+            return t;
+        }, null, false);
+    }
+
+    private ClassLoader getSessionClassLoader() {
+        Loader loader = getContext().getLoader();
+        ClassLoader classLoader = loader == null ? null : loader.getClassLoader();
+        return classLoader == null ? getClass().getClassLoader() : classLoader;
+    }
+
 
     /**
      * Start this component and implement the requirements
@@ -310,14 +932,34 @@ public class RedisManager extends ManagerBase {
         super.startInternal();
 
         // Load unloaded sessions, if any
+        if (backgroundLoad && !lazyLoad) {
+            // the context serves the requests in the meanwhile
+            restoring = true;
+            restorer = new Thread(this::loadInBackground, "RedisManager-restore[" + getContext().getName() + "]");
+            restorer.setDaemon(true);
+            restorer.start();
+        } else if (!lazyLoad) {
+            loadOrLog();
+        }
+
+        setState(LifecycleState.STARTING);
+    }
+
+    private void loadInBackground() {
+        try {
+            loadOrLog();
+        } finally {
+            restoring = false;
+        }
+    }
+
+    private void loadOrLog() {
         try {
             load();
         } catch (Throwable t) {
             ExceptionUtils.handleThrowable(t);
             log.error(sm.getString("standardManager.managerLoad"), t);
         }
-
-        setState(LifecycleState.STARTING);
     }
 
 
@@ -333,6 +975,17 @@ public class RedisManager extends ManagerBase {
 
         setState(LifecycleState.STOPPING);
 
+        // the sessions already taken from Redis are restored before being written out again
+        Thread background = restorer;
+        if (background != null) {
+            try {
+                background.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            restorer = null;
+        }
+
         // Write out sessions
         try {
             unload();
@@ -365,4 +1018,8 @@ public class RedisManager extends ManagerBase {
     private String getSessionKey(String sessionId) {
         return prefix + ":session:" + sessionId;
     }
+
+    private String getUnloadedIndexKey() {
+        return prefix + ":sessions:unloaded";
+    }
 }
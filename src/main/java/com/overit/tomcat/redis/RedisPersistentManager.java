@@ -0,0 +1,34 @@
+package com.overit.tomcat.redis;
+
+import org.apache.catalina.Session;
+import org.apache.catalina.session.PersistentManager;
+import org.apache.catalina.session.PersistentManagerBase;
+
+/**
+ * A persistent manager, equivalent to {@link PersistentManager}, that lets the {@link RedisStore} look up the sessions it
+ * holds in memory without loading them from the store.
+ *
+ * <p>{@link #findSession(String)} loads a missing session from the store, that would in turn ask the other nodes to
+ * drain it: the store uses {@link #findSessionInMemory(String)} to handle the requests of draining a session instead.
+ * With a plain {@link PersistentManager} the store has to scan all the sessions in memory for each request.</p>
+ */
+public class RedisPersistentManager extends PersistentManagerBase {
+
+    /**
+     * The descriptive name of this Manager implementation (for logging).
+     */
+    private static final String NAME = "RedisPersistentManager";
+
+    /**
+     * @param id the session identifier
+     * @return the session, or {@code null} if it is not in memory
+     */
+    public Session findSessionInMemory(String id) {
+        return id == null ? null : sessions.get(id);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+}
@@ -0,0 +1,57 @@
+package com.overit.tomcat.redis;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Lua script executed by its SHA1 digest, so that only the digest is sent to Redis at each call. The script is loaded
+ * again, and the call repeated, if Redis does not know it (i.e. after a restart or a {@code SCRIPT FLUSH}).
+ */
+final class RedisScript {
+
+    private final byte[] source;
+    private final byte[] sha;
+
+    RedisScript(String source) {
+        this.source = source.getBytes(StandardCharsets.UTF_8);
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(this.source);
+            this.sha = HexFormat.of().formatHex(digest).getBytes(StandardCharsets.US_ASCII);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    String getSha() {
+        return new String(sha, StandardCharsets.US_ASCII);
+    }
+
+    void load(Jedis jedis) {
+        jedis.scriptLoad(source);
+    }
+
+    Object eval(Jedis jedis, List<byte[]> keys, List<byte[]> args) {
+        try {
+            return jedis.evalsha(sha, keys, args);
+        } catch (JedisNoScriptException e) {
+            load(jedis);
+            return jedis.evalsha(sha, keys, args);
+        }
+    }
+
+    /**
+     * Queue the script call into a pipeline. The reply throws a {@link JedisNoScriptException} if Redis does not know
+     * the script: it is up to the caller to {@link #load(Jedis) load} it and to send the pipeline again.
+     */
+    Response<Object> eval(Pipeline pipeline, List<byte[]> keys, List<byte[]> args) {
+        return pipeline.evalsha(sha, keys, args);
+    }
+}
@@ -1,20 +1,29 @@
 package com.overit.tomcat.redis;
 
+import jakarta.servlet.http.HttpSessionEvent;
+import jakarta.servlet.http.HttpSessionIdListener;
+import jakarta.servlet.http.HttpSessionListener;
 import org.apache.catalina.*;
-import org.apache.catalina.session.PersistentManager;
+import org.apache.catalina.session.PersistentManagerBase;
 import org.apache.catalina.session.StandardSession;
 import org.apache.catalina.session.StoreBase;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
-import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.jedis.util.KeyValue;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Stream;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Concrete implementation of the <b>Store</b> interface that utilizes
@@ -40,6 +49,30 @@ public class RedisStore extends StoreBase implements LifecycleListener {
     }
     private static final Log log = LogFactory.getLog(RedisStore.class);
     private static final int MAX_AWAITING_LOADING_TIME = 5 * 60 * 1000; // 5min
+    private static final long DRAIN_ACK_TIMEOUT = 1000; // 1s
+    private static final long DRAIN_REPLY_WAIT_SLICE = 5000; // 5s
+    static final String DRAIN_ACK = "ack";
+    static final String DRAIN_READY = "ready";
+    static final String DRAIN_FAILED = "failed";
+    static final String REPLY_KEY_SEPARATOR = " ";
+    private static final long DEFAULT_UNKNOWN_SESSIONS_TTL = 30 * 1000L; // 30s
+    private static final int DEFAULT_UNKNOWN_SESSIONS_SIZE = 10_000;
+    private static final long DEFAULT_DRAIN_REQUEST_WINDOW = 2;
+    private static final long DRAINED_SESSIONS_TTL = 60 * 1000L; // 1min
+    private static final int DRAINED_SESSIONS_SIZE = 10_000;
+    private static final long DEFAULT_KNOWN_SESSIONS_FILTER_SIZE = 1L << 24; // 2MB bitmap
+    private static final int KNOWN_SESSIONS_FILTER_HASHES = 5;
+    private static final int MAX_FINGERPRINTS = 100_000;
+    private static final int MAX_POOLED_BUFFER_SIZE = 4 * 1024 * 1024; // 4MB
+    private static final long DEFAULT_WRITE_BEHIND_FLUSH_INTERVAL = 100;
+    private static final int DEFAULT_WRITE_BEHIND_BATCH_SIZE = 100;
+    private static final int DEFAULT_WRITE_BEHIND_CAPACITY = 10_000;
+    private static final int DEFAULT_INDEX_SHARDS = 16;
+    private static final long NODE_HEARTBEAT_INTERVAL = 5_000; // 5s
+    private static final long NODE_TTL = 3 * NODE_HEARTBEAT_INTERVAL;
+    private static final long ALIVE_NODES_REFRESH = 1_000; // 1s
+    private static final long OWNERS_PRUNE_INTERVAL = 5 * 60 * 1000L; // 5min
+    private static final int OWNERS_PRUNE_BATCH_SIZE = 1000;
     private static final String COUNTING_SESSIONS_ERROR = "Error counting sessions";
     private static final String LISTING_SESSIONS_ERROR = "Error listing sessions";
     private static final String LOADING_SESSION_ERROR = "Error loading session";
@@ -49,7 +82,35 @@ public class RedisStore extends StoreBase implements LifecycleListener {
     static final String STORE_NAME = "redisStore";
 
     private String prefix = "tomcat";
-    private final Set<String> drainedSessions = new HashSet<>();
+    // only needed until the invalidation of a drained session has removed it from the manager
+    private final ExpiringSet drainedSessions = new ExpiringSet(DRAINED_SESSIONS_TTL, DRAINED_SESSIONS_SIZE);
+    private final ActiveRequests activeRequests = new ActiveRequests();
+    private final DrainRequestBatcher drainRequests = new DrainRequestBatcher(
+        (channel, message) -> getSubscriberServiceManager().publish(channel, message), DEFAULT_DRAIN_REQUEST_WINDOW);
+    private ActiveRequestsValve activeRequestsValve;
+    private final ExpiringSet unknownSessions = new ExpiringSet(DEFAULT_UNKNOWN_SESSIONS_TTL, DEFAULT_UNKNOWN_SESSIONS_SIZE);
+    private SessionIdFilter knownSessions = null;
+    private long knownSessionsFilterSize = DEFAULT_KNOWN_SESSIONS_FILTER_SIZE;
+    private final DirtyAttributesTracker dirtyAttributes = new DirtyAttributesTracker();
+    private boolean deltaSave = false;
+    private final SessionFingerprints fingerprints = new SessionFingerprints(MAX_FINGERPRINTS);
+    private final LongAdder skippedSaves = new LongAdder();
+    private final BufferPool buffers = new BufferPool(MAX_POOLED_BUFFER_SIZE);
+    private boolean skipUnchangedSaves = false;
+    private SessionCodec codec = SessionCodecs.forName(JdkSessionCodec.NAME, true);
+    private final PayloadCompressor compressor = new PayloadCompressor();
+    private boolean writeBehind = false;
+    private long writeBehindFlushInterval = DEFAULT_WRITE_BEHIND_FLUSH_INTERVAL;
+    private int writeBehindBatchSize = DEFAULT_WRITE_BEHIND_BATCH_SIZE;
+    private int writeBehindCapacity = DEFAULT_WRITE_BEHIND_CAPACITY;
+    private WriteBehindQueue.OverflowPolicy writeBehindOverflowPolicy = WriteBehindQueue.OverflowPolicy.SYNC;
+    private volatile WriteBehindQueue writes;
+    private int indexShards = DEFAULT_INDEX_SHARDS;
+    private ScheduledExecutorService heartbeat;
+    private volatile long aliveNodes = 0;
+    private volatile long aliveNodesCheckedAt = 0;
+    private volatile long heartbeatStartedAt = 0;
+    private boolean singleNodeDetection = false;
 
     private Activation activation = Activation.AUTO;
 
@@ -95,6 +156,88 @@ public class RedisStore extends StoreBase implements LifecycleListener {
         RedisConnector.setSoTimeout(soTimeout);
     }
 
+    /**
+     * Set the maximum number of connections with each Redis node
+     *
+     * @param poolMaxTotal the maximum number of connections. The default value is {@code 10}.
+     */
+    public void setPoolMaxTotal(int poolMaxTotal) {
+        RedisConnector.getPoolSettings().setMaxTotal(poolMaxTotal);
+    }
+
+    /**
+     * Set the maximum number of idle connections kept with each Redis node
+     *
+     * @param poolMaxIdle the maximum number of idle connections. The default value is {@code 3}.
+     */
+    public void setPoolMaxIdle(int poolMaxIdle) {
+        RedisConnector.getPoolSettings().setMaxIdle(poolMaxIdle);
+    }
+
+    /**
+     * Set the minimum number of idle connections kept with each Redis node
+     *
+     * @param poolMinIdle the minimum number of idle connections. The default value is {@code 1}.
+     */
+    public void setPoolMinIdle(int poolMinIdle) {
+        RedisConnector.getPoolSettings().setMinIdle(poolMinIdle);
+    }
+
+    /**
+     * Set how long a command waits for a connection when all of them are in use
+     *
+     * @param poolMaxWait timeout expressed in millis, or a negative value to wait indefinitely (default)
+     */
+    public void setPoolMaxWait(long poolMaxWait) {
+        RedisConnector.getPoolSettings().setMaxWait(poolMaxWait);
+    }
+
+    /**
+     * @param poolTestOnCreate {@code true} to validate the connections when they are created. The default value is
+     *                         {@code true}.
+     */
+    public void setPoolTestOnCreate(boolean poolTestOnCreate) {
+        RedisConnector.getPoolSettings().setTestOnCreate(poolTestOnCreate);
+    }
+
+    /**
+     * @param poolTestOnBorrow {@code true} to validate the connections, with a round trip, each time they are used.
+     *                         The default value is {@code true}.
+     */
+    public void setPoolTestOnBorrow(boolean poolTestOnBorrow) {
+        RedisConnector.getPoolSettings().setTestOnBorrow(poolTestOnBorrow);
+    }
+
+    /**
+     * @param poolTestWhileIdle {@code true} to validate the idle connections in background. The default value is
+     *                          {@code false}.
+     */
+    public void setPoolTestWhileIdle(boolean poolTestWhileIdle) {
+        RedisConnector.getPoolSettings().setTestWhileIdle(poolTestWhileIdle);
+    }
+
+    /**
+     * Set how often the idle connections are validated, and the exceeding ones closed
+     *
+     * @param poolTimeBetweenEvictionRuns the interval expressed in millis, or a negative value to disable the
+     *                                    background checks (default)
+     */
+    public void setPoolTimeBetweenEvictionRuns(long poolTimeBetweenEvictionRuns) {
+        RedisConnector.getPoolSettings().setTimeBetweenEvictionRuns(poolTimeBetweenEvictionRuns);
+    }
+
+    /**
+     * Enable the adaptive sizing of the connection pools: the idle connections are grown when the commands wait for a
+     * connection, up to {@link #setPoolMaxTotal(int) the maximum}, and shrunk back to the configured values when the
+     * load decreases. The connections are validated in background, every 30 seconds unless
+     * {@link #setPoolTimeBetweenEvictionRuns(long) otherwise set}, instead of each time they are used.
+     *
+     * @param poolAdaptive {@code true} to enable the adaptive sizing. The default value is {@code false}.
+     */
+    public void setPoolAdaptive(boolean poolAdaptive) {
+        RedisConnector.getPoolSettings().setAdaptive(poolAdaptive);
+    }
+
     /**
      * Set the activation mode. Possible values are:
      * <ul>
@@ -118,6 +261,310 @@ public class RedisStore extends StoreBase implements LifecycleListener {
         RedisConnector.setSentinelGroup(sentinelGroup);
     }
 
+    /**
+     * @param drainThreads the maximum number of session draining requests handled at the same time, shared by all the
+     *                     stores of the JVM. The default value is {@value RedisSubscriberService#DEFAULT_HANDLER_THREADS}.
+     */
+    public void setDrainThreads(int drainThreads) {
+        RedisSubscriberService.setHandlerThreads(drainThreads);
+    }
+
+    /**
+     * Set the time window the requests of draining the sessions owned by the same node, or broadcast to all the nodes,
+     * are coalesced within, so that many of them are sent and handled at once. A value less or equal to zero sends
+     * each request on its own.
+     *
+     * @param drainRequestWindow the time window expressed in millis. The default value is 2 milliseconds.
+     */
+    public void setDrainRequestWindow(long drainRequestWindow) {
+        drainRequests.setWindow(drainRequestWindow);
+    }
+
+    /**
+     * Set how the session draining requests are sent to the other nodes: <code>pubsub</code> publishes them to Redis
+     * channels, while <code>streams</code> appends them to Redis streams, so that the requests sent while a node is
+     * reconnecting are read once it is back. All the nodes must use the same transport.
+     *
+     * @param drainTransport the transport name. The default value is <code>pubsub</code>.
+     */
+    public void setDrainTransport(String drainTransport) {
+        RedisSubscriberService.setTransport(RedisSubscriberService.Transport.parse(drainTransport));
+    }
+
+    /**
+     * @param drainVirtualThreads {@code true} to handle the session draining requests in virtual threads, if the JVM
+     *                            supports them. The default value is {@code false}.
+     */
+    public void setDrainVirtualThreads(boolean drainVirtualThreads) {
+        RedisSubscriberService.setVirtualThreads(drainVirtualThreads);
+    }
+
+    /**
+     * Enable the Redis Cluster mode. In this mode each session is stored in its own hash slot, so that the sessions are
+     * spread among all the primary nodes, while the index, the owners and the known sessions filter are split into
+     * {@link #setIndexShards(int) many shards}, each one in its own slot. A session and its shard are updated one after
+     * the other, instead of atomically.
+     *
+     * @param cluster {@code true} to connect with a Redis Cluster. The default value is {@code false}.
+     */
+    public void setCluster(boolean cluster) {
+        RedisConnector.setCluster(cluster);
+    }
+
+    /**
+     * Set the number of indexes the sessions are spread among in cluster mode. All the nodes must use the same value,
+     * otherwise they cannot find the sessions stored by each other.
+     *
+     * @param indexShards the number of indexes. The default value is 16.
+     */
+    public void setIndexShards(int indexShards) {
+        if (indexShards <= 0) throw new IllegalArgumentException("the number of index shards must be positive");
+        this.indexShards = indexShards;
+    }
+
+    /**
+     * Enable the detection of a node running alone, that then stops asking for the draining of the sessions it cannot
+     * find, since nobody else could have them. A node is alone if no other node has sent its heartbeat since it
+     * started sending its own one.
+     * <p>
+     * <em>The nodes running a previous version send no heartbeat, so the detection must be enabled only once all the
+     * nodes of the cluster have been upgraded: a node upgraded first would consider itself alone otherwise.</em>
+     *
+     * @param singleNodeDetection {@code true} to enable the detection. The default value is {@code false}.
+     */
+    public void setSingleNodeDetection(boolean singleNodeDetection) {
+        this.singleNodeDetection = singleNodeDetection;
+    }
+
+    /**
+     * Set how long a session identifier that could not be found, neither in Redis nor in any other node of the
+     * cluster, is remembered as unknown. Within this time the following lookups of the same identifier still read
+     * Redis, but they do not ask the other nodes to drain it. A value less or equal to zero disables the cache.
+     *
+     * @param unknownSessionsTtl time to live expressed in millis. The default value is 30 seconds.
+     */
+    public void setUnknownSessionsTtl(long unknownSessionsTtl) {
+        unknownSessions.setTtl(unknownSessionsTtl);
+    }
+
+    /**
+     * Set the maximum number of unknown session identifiers remembered by this store.
+     *
+     * @param unknownSessionsSize the maximum number of entries. The default value is 10000.
+     */
+    public void setUnknownSessionsSize(int unknownSessionsSize) {
+        unknownSessions.setMaxSize(unknownSessionsSize);
+    }
+
+    /**
+     * Enable the cluster wide filter of the known session identifiers. When enabled, each session created by any node
+     * is recorded into a probabilistic filter stored in Redis, and the lookup of an identifier that has never been
+     * recorded returns immediately instead of asking the other nodes to drain it.
+     * <p>
+     * <em>All the nodes of the cluster must enable the filter at the same time, otherwise the sessions created by
+     * the nodes without the filter cannot be drained anymore.</em>
+     *
+     * @param knownSessionsFilter {@code true} to enable the filter. The default value is {@code false}.
+     */
+    public void setKnownSessionsFilter(boolean knownSessionsFilter) {
+        // in cluster mode the filter is split among the index shards, as each identifier is recorded in its own shard
+        this.knownSessions = knownSessionsFilter
+            ? new SessionIdFilter(Math.max(1, knownSessionsFilterSize / getShards()), KNOWN_SESSIONS_FILTER_HASHES)
+            : null;
+    }
+
+    /**
+     * Set the size of the known session identifiers filter. The bigger the filter, the lower the chance that an
+     * unknown identifier is mistaken as known. With the default size of 16777216 bits (2MB) and up to one million
+     * sessions, the chance of a false positive is about 0.1%. In cluster mode, the size is the total one of the
+     * filter shards.
+     *
+     * @param knownSessionsFilterSize size of the filter expressed in bits
+     */
+    public void setKnownSessionsFilterSize(long knownSessionsFilterSize) {
+        this.knownSessionsFilterSize = knownSessionsFilterSize;
+        if (knownSessions != null) setKnownSessionsFilter(true);
+    }
+
+
+    /**
+     * Enable the delta save mode. In this mode each session is stored as a Redis hash, with one field for each
+     * attribute plus a metadata field, and only the attributes changed since the last save are written again.
+     * <p>
+     * <em>The changes are detected only when the attributes are set or removed: an attribute whose value has been
+     * mutated in place must be set again, otherwise the change is not saved.</em>
+     *
+     * @param deltaSave {@code true} to enable the delta save mode. The default value is {@code false}.
+     */
+    public void setDeltaSave(boolean deltaSave) {
+        this.deltaSave = deltaSave;
+    }
+
+    /**
+     * Enable the detection of the saves that would write again the very same session content. In that case only the
+     * expiration time of the stored session is refreshed.
+     *
+     * @param skipUnchangedSaves {@code true} to skip the unchanged saves. The default value is {@code false}.
+     */
+    public void setSkipUnchangedSaves(boolean skipUnchangedSaves) {
+        this.skipUnchangedSaves = skipUnchangedSaves;
+    }
+
+    /**
+     * Set the codec used to store the sessions. Its values could be:
+     * <ul>
+     *     <li>{@code jdk}: the standard java serialization (default)</li>
+     *     <li>{@code compact}: a compact binary format for the attributes holding dates, primitive arrays and the
+     *     standard collections of the JDK types, and the java serialization for anything else</li>
+     *     <li>the fully qualified class name of a {@link SessionCodec} implementation</li>
+     * </ul>
+     * The sessions are read whatever the codec used to store them, so the codec can be changed on a running cluster.
+     * The delta save mode always uses the java serialization.
+     *
+     * @param codec the name of the codec
+     */
+    public void setCodec(String codec) {
+        this.codec = SessionCodecs.forName(codec, true);
+    }
+
+    /**
+     * Set the size above which the stored sessions are compressed. The compressed sessions are read whatever this
+     * value is, so the compression can be enabled on a running cluster.
+     *
+     * @param compressionThreshold the size in bytes, or a negative value to disable the compression. The default
+     *                             value is {@code -1}.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        compressor.setThreshold(compressionThreshold);
+    }
+
+    /**
+     * Set the level of the compression, from 1 (the fastest) to 9 (the smallest output)
+     *
+     * @param compressionLevel the compression level. The default value is {@code 1}.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        compressor.setLevel(compressionLevel);
+    }
+
+    /**
+     * Set the preset dictionary used to compress the sessions, built by {@link CompressionDictionary}. All the nodes
+     * of the cluster must use the same dictionary, otherwise they cannot read the sessions compressed by each other.
+     *
+     * @param compressionDictionary the path of the dictionary file, relative to {@code catalina.base} if not absolute
+     */
+    public void setCompressionDictionary(String compressionDictionary) {
+        compressor.setDictionary(compressionDictionary);
+    }
+
+    /**
+     * @return the number of sessions, or session fields, that have been compressed
+     */
+    public long getCompressedPayloads() {
+        return compressor.getCompressedPayloads();
+    }
+
+    /**
+     * @return the ratio between the size of the compressed payloads and their original size
+     */
+    public double getCompressionRatio() {
+        return compressor.getCompressionRatio();
+    }
+
+    /**
+     * @return the time, in millis, spent compressing the payloads
+     */
+    public long getCompressionTime() {
+        return compressor.getCompressionTime();
+    }
+
+    /**
+     * @return the time, in millis, spent decompressing the payloads
+     */
+    public long getDecompressionTime() {
+        return compressor.getDecompressionTime();
+    }
+
+    /**
+     * Enable the write-behind mode: the sessions are serialized when they are saved, but they are sent to Redis in
+     * background, in batches. A session saved many times before being sent is sent only once, with its latest content.
+     * The sessions waiting to be sent are returned by the loads of this node. The saves needed by the sessions
+     * draining are still synchronous. The write-behind mode is not available together with the delta save mode.
+     *
+     * @param writeBehind {@code true} to enable the write-behind mode. The default value is {@code false}.
+     */
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * @param writeBehindFlushInterval the maximum time, in millis, a session waits before being sent to Redis. The
+     *                                 default value is {@code 100}.
+     */
+    public void setWriteBehindFlushInterval(long writeBehindFlushInterval) {
+        this.writeBehindFlushInterval = writeBehindFlushInterval;
+    }
+
+    /**
+     * @param writeBehindBatchSize the maximum number of sessions sent to Redis in a single round trip. The default
+     *                             value is {@code 100}.
+     */
+    public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+        this.writeBehindBatchSize = writeBehindBatchSize;
+    }
+
+    /**
+     * @param writeBehindCapacity the maximum number of sessions waiting to be sent to Redis. The default value is
+     *                            {@code 10000}.
+     */
+    public void setWriteBehindCapacity(int writeBehindCapacity) {
+        this.writeBehindCapacity = writeBehindCapacity;
+    }
+
+    /**
+     * Set what to do when a session is saved while the write-behind queue is full. Its values could be:
+     * <ul>
+     *     <li>{@code sync}: the session is queued anyway, and the save waits until it has been sent (default)</li>
+     *     <li>{@code block}: the save waits until there is room in the queue</li>
+     * </ul>
+     *
+     * @param writeBehindOverflowPolicy the overflow policy
+     */
+    public void setWriteBehindOverflowPolicy(String writeBehindOverflowPolicy) {
+        this.writeBehindOverflowPolicy = WriteBehindQueue.OverflowPolicy.parse(writeBehindOverflowPolicy);
+    }
+
+    /**
+     * @return the number of sessions waiting to be sent to Redis by the write-behind mode
+     */
+    public int getPendingWrites() {
+        WriteBehindQueue queue = writes;
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * @return the number of session writes replaced by a later write of the same session before being sent
+     */
+    public long getCoalescedWrites() {
+        WriteBehindQueue queue = writes;
+        return queue == null ? 0 : queue.getCoalescedWrites();
+    }
+
+    /**
+     * Return the number of saves skipped because the session content was unchanged since the previous save.
+     *
+     * @return the number of skipped saves
+     */
+    public long getSkippedSaves() {
+        return skippedSaves.sum();
+    }
+
+    /**
+     * @return the number of sessions recently drained to another node, that are still remembered by this store
+     */
+    public int getDrainedSessions() {
+        return drainedSessions.size();
+    }
 
     /**
      * Return the name for this Store, used for logging.
@@ -131,16 +578,35 @@ public class RedisStore extends StoreBase implements LifecycleListener {
     protected synchronized void startInternal() throws LifecycleException {
         super.startInternal();
         if (isEnabled()) {
+            // the cluster mode could have been set after the filter
+            if (knownSessions != null) setKnownSessionsFilter(true);
             getManager().getContext().addLifecycleListener(this);
+            addActiveRequestsValve();
+            if (writeBehind && deltaSave) {
+                log.warn("The write-behind mode is not available together with the delta save mode: it is ignored");
+            } else if (writeBehind) {
+                writes = new WriteBehindQueue(this::writeBatch, writeBehindFlushInterval, writeBehindBatchSize,
+                    writeBehindCapacity, writeBehindOverflowPolicy);
+                writes.start("RedisStore-writeBehind[" + getManager().getContext().getName() + "]");
+            }
         } else {
-            ((PersistentManager)getManager()).setMaxIdleSwap(-1);
+            ((PersistentManagerBase) getManager()).setMaxIdleSwap(-1);
         }
     }
 
     @Override
     protected synchronized void stopInternal() throws LifecycleException {
-        getConnector().stop();
+        WriteBehindQueue queue = writes;
+        if (queue != null) {
+            queue.stop();
+            writes = null;
+        }
+        stopHeartbeat();
+        drainRequests.stop();
+        removeActiveRequestsValve();
+        // the consumer groups of the streams are removed before disconnecting
         getSubscriberServiceManager().stop();
+        getConnector().stop();
         getManager().getContext().removeLifecycleListener(this);
         super.stopInternal();
     }
@@ -151,7 +617,172 @@ public class RedisStore extends StoreBase implements LifecycleListener {
             // ensure to subscribe to the redis channel after the context start in order to give the opportunity,
             // to the application, to programmatically set the connector URL
             subscribeToSessionDrainRequests();
+            loadScripts();
+            startHeartbeat();
+            addApplicationListener(new SessionOwnersListener());
+            if (activeRequestsValve != null) addApplicationListener(activeRequestsValve);
+            if (knownSessions != null) addApplicationListener(new KnownSessionsListener());
+            if (deltaSave) addApplicationListener(dirtyAttributes);
+        }
+    }
+
+    private void addActiveRequestsValve() {
+        org.apache.catalina.Pipeline pipeline = getManager().getContext().getPipeline();
+        if (pipeline == null || activeRequestsValve != null) return;
+        activeRequestsValve = new ActiveRequestsValve(activeRequests);
+        pipeline.addValve(activeRequestsValve);
+    }
+
+    private void removeActiveRequestsValve() {
+        org.apache.catalina.Pipeline pipeline = getManager().getContext().getPipeline();
+        if (pipeline == null || activeRequestsValve == null) return;
+        pipeline.removeValve(activeRequestsValve);
+        activeRequestsValve = null;
+    }
+
+    ActiveRequests getActiveRequests() {
+        return activeRequests;
+    }
+
+    private void loadScripts() {
+        try {
+            getConnector().executeOnPrimaries(j -> {
+                StoreScripts.loadAll(j);
+                return null;
+            });
+        } catch (Exception e) {
+            // they are loaded on demand anyway
+            logDebug("Error loading the scripts", e);
+        }
+    }
+
+    synchronized void startHeartbeat() {
+        if (heartbeat != null) return;
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "RedisStore-heartbeat[" + getManager().getContext().getName() + "]");
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeatStartedAt = System.currentTimeMillis();
+        heartbeat.scheduleWithFixedDelay(this::sendHeartbeat, 0, NODE_HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+        heartbeat.scheduleWithFixedDelay(this::pruneOwners, OWNERS_PRUNE_INTERVAL, OWNERS_PRUNE_INTERVAL,
+            TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stopHeartbeat() {
+        if (heartbeat == null) return;
+        heartbeat.shutdownNow();
+        heartbeat = null;
+        try {
+            String nodes = getNodesKey();
+            getConnector().execute(nodes, j -> j.zrem(nodes, getNodeId()));
+        } catch (Exception e) {
+            // this node is forgotten once its heartbeat expires
+            logDebug("Error unregistering the node", e);
+        }
+    }
+
+    /**
+     * Record this node as alive, so that the other nodes know they are not alone
+     */
+    private void sendHeartbeat() {
+        try {
+            String nodes = getNodesKey();
+            Object alive = getConnector().execute(nodes, j -> StoreScripts.HEARTBEAT.eval(j, List.of(toBytes(nodes)),
+                List.of(toBytes(getNodeId()), toBytes(Long.toString(NODE_TTL)))));
+            aliveNodes = (Long) alive;
+            aliveNodesCheckedAt = System.currentTimeMillis();
+        } catch (Exception e) {
+            logDebug("Error sending the node heartbeat", e);
+        }
+    }
+
+    /**
+     * Check if this is the only node alive, so that no other node could drain a session. The nodes that never sent a
+     * heartbeat, as the ones running a previous version, are not known, so the check is made only if
+     * {@link #setSingleNodeDetection(boolean) enabled}; and a node is not considered alone until it has been sending its
+     * heartbeat long enough to have received the ones of the other nodes.
+     *
+     * @return {@code true} if this node is known to be the only one
+     */
+    boolean isSingleNode() {
+        if (!singleNodeDetection || heartbeat == null) return false;
+        long now = System.currentTimeMillis();
+        if (now - heartbeatStartedAt <= NODE_TTL) return false;
+        // a node alone checks again before each miss, at most once per period, to find out the nodes just started
+        if (aliveNodes <= 1 && now - aliveNodesCheckedAt > ALIVE_NODES_REFRESH) {
+            try {
+                String nodes = getNodesKey();
+                aliveNodes = (Long) getConnector().execute(nodes,
+                    j -> StoreScripts.ALIVE_NODES.eval(j, List.of(toBytes(nodes)), List.of()));
+                aliveNodesCheckedAt = now;
+            } catch (Exception e) {
+                logDebug("Error counting the nodes", e);
+                return false;
+            }
+        }
+        return aliveNodes == 1;
+    }
+
+    /**
+     * Forget the owners of the sessions whose owner is no longer alive, since it crashed without removing them, and of
+     * the sessions owned by this node that are neither in its memory nor stored anymore, since they expired in Redis
+     */
+    void pruneOwners() {
+        try {
+            String nodes = getNodesKey();
+            Set<String> alive = new HashSet<>(getConnector().execute(nodes, j -> j.zrange(nodes, 0, -1)));
+            String self = getNodeId();
+            for (int shard = 0; shard < getShards(); shard++) {
+                String owners = getOwnersKey(shard);
+                String index = getIndexKey(shard);
+                getConnector().execute(owners, j -> {
+                    ScanParams params = new ScanParams().count(OWNERS_PRUNE_BATCH_SIZE);
+                    String cursor = ScanParams.SCAN_POINTER_START;
+                    do {
+                        ScanResult<Map.Entry<String, String>> page = j.hscan(owners, cursor, params);
+                        cursor = page.getCursor();
+                        forgetOwners(j, owners, index, page.getResult(), alive, self);
+                    } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+                    return null;
+                });
+            }
+        } catch (Exception e) {
+            logDebug("Error pruning the session owners", e);
+        }
+    }
+
+    private void forgetOwners(Jedis j, String owners, String index, List<Map.Entry<String, String>> entries,
+                              Set<String> alive, String self) {
+        List<String> forgotten = new ArrayList<>();
+        Map<Map.Entry<String, String>, Response<Double>> stored = new LinkedHashMap<>();
+        Pipeline p = j.pipelined();
+        for (Map.Entry<String, String> entry : entries) {
+            String id = entry.getKey();
+            if (!alive.contains(entry.getValue())) {
+                Collections.addAll(forgotten, id, entry.getValue());
+            } else if (entry.getValue().equals(self) && findSessionById(id) == null) {
+                // in cluster mode the index shard is in the slot of the owners
+                stored.put(entry, p.zscore(index, id));
+            }
         }
+        p.sync();
+        stored.forEach((entry, score) -> {
+            if (score.get() == null) Collections.addAll(forgotten, entry.getKey(), entry.getValue());
+        });
+        if (!forgotten.isEmpty()) {
+            StoreScripts.FORGET_OWNERS.eval(j, List.of(toBytes(owners)), forgotten.stream().map(RedisStore::toBytes).toList());
+        }
+    }
+
+    @Override
+    public void processExpires() {
+        super.processExpires();
+        // the sessions no longer in memory will be loaded, and fully saved, again before the next save
+        Set<String> active = new HashSet<>();
+        for (Session session : getManager().findSessions()) active.add(session.getIdInternal());
+        dirtyAttributes.retain(active);
+        fingerprints.retain(active);
     }
 
     /**
@@ -160,7 +791,11 @@ public class RedisStore extends StoreBase implements LifecycleListener {
     @Override
     public int getSize() {
         try {
-            long s = getConnector().execute(j -> j.zcount(getIndexKey(), "-inf", "+inf"));
+            long s = 0;
+            for (int shard = 0; shard < getShards(); shard++) {
+                String index = getIndexKey(shard);
+                s += getConnector().execute(index, j -> j.zcount(index, "-inf", "+inf"));
+            }
             return (int) s;
         } catch (Exception e) {
             logDebug(COUNTING_SESSIONS_ERROR, e);
@@ -174,11 +809,16 @@ public class RedisStore extends StoreBase implements LifecycleListener {
     @Override
     public void clear() {
         try {
-            getConnector().del(getSessionKey("*"), "string");
-            getConnector().execute(j -> {
-                j.del(getIndexKey());
-                return null;
-            });
+            getConnector().del(getPrefix() + ":session:*", null);
+            for (int shard = 0; shard < getShards(); shard++) {
+                String index = getIndexKey(shard);
+                String known = getKnownSessionsKey(shard);
+                String owners = getOwnersKey(shard);
+                getConnector().execute(index, j -> j.del(index, known, owners));
+            }
+            unknownSessions.clear();
+            WriteBehindQueue queue = writes;
+            if (queue != null) queue.clear();
 
         } catch (Exception e) {
             logDebug(DELETING_SESSIONS_ERROR, e);
@@ -190,10 +830,14 @@ public class RedisStore extends StoreBase implements LifecycleListener {
     public String[] expiredKeys() {
 
         try {
-            return getConnector().execute(j -> {
-                List<String> s = j.zrangeByScore(getIndexKey(), "0", Long.toString(System.currentTimeMillis()));
-                return s.toArray(new String[]{});
-            });
+            List<String> expired = new ArrayList<>();
+            for (int shard = 0; shard < getShards(); shard++) {
+                String index = getIndexKey(shard);
+                List<?> s = getConnector().execute(index,
+                    j -> (List<?>) StoreScripts.EXPIRED.eval(j, List.of(toBytes(index)), List.of()));
+                for (Object id : s) expired.add(new String((byte[]) id, StandardCharsets.UTF_8));
+            }
+            return expired.toArray(new String[0]);
 
         } catch (Exception e) {
             logDebug(LISTING_SESSIONS_ERROR, e);
@@ -209,10 +853,12 @@ public class RedisStore extends StoreBase implements LifecycleListener {
     @Override
     public String[] keys() {
         try {
-            return getConnector().execute(j -> {
-                List<String> s = j.zrange(getIndexKey(), 0, -1);
-                return s.toArray(new String[0]);
-            });
+            List<String> keys = new ArrayList<>();
+            for (int shard = 0; shard < getShards(); shard++) {
+                String index = getIndexKey(shard);
+                keys.addAll(getConnector().execute(index, j -> j.zrange(index, 0, -1)));
+            }
+            return keys.toArray(new String[0]);
         } catch (Exception e) {
             logDebug(LISTING_SESSIONS_ERROR, e);
             return new String[0];
@@ -234,13 +880,32 @@ public class RedisStore extends StoreBase implements LifecycleListener {
         ClassLoader oldThreadContextCL = context.bind(Globals.IS_SECURITY_ENABLED, null);
 
         try {
+            WriteBehindQueue queue = writes;
+            WriteBehindQueue.Write write;
+            while (queue != null && (write = queue.get(id)) != null) {
+                // the session waiting to be sent is the latest one, and the load removes it from Redis
+                if (write.isRemoval()) return null;
+                if (queue.replaceWithRemoval(write)) {
+                    dirtyAttributes.forget(id);
+                    fingerprints.forget(id);
+                    return restoreSession(write.payload);
+                }
+            }
+
             byte[] raw = loadSession(id);
             if (raw != null) return restoreSession(raw);
+            // saved by another node since the last miss otherwise
+            if (unknownSessions.contains(id)) return null;
 
             long now = System.currentTimeMillis();
-            return askForSessionDraining(id, now, true)
-                ? awaitAndLoad(id, now)
-                : null;
+            if (isKnownSession(id) && !isSingleNode()) {
+                try (DrainReplies replies = new DrainReplies(getConnector(), getDrainReplyKey())) {
+                    if (askForSessionDraining(id, replies, now)) return awaitAndLoad(id, replies, now);
+                }
+            }
+
+            unknownSessions.add(id);
+            return null;
 
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
@@ -265,15 +930,18 @@ public class RedisStore extends StoreBase implements LifecycleListener {
     @Override
     public void remove(String id) {
         if (isSessionDrained(id)) return;
+        dirtyAttributes.forget(id);
+        fingerprints.forget(id);
 
         try {
-            getConnector().execute(j -> {
-                Transaction t = j.multi();
-                t.del(getSessionKey(id));
-                t.zrem(getIndexKey(), id);
-                t.exec();
-                return null;
-            });
+            WriteBehindQueue queue = writes;
+            if (queue != null) {
+                queue.offer(WriteBehindQueue.Write.removal(id), false);
+                return;
+            }
+            getConnector().execute(getSessionKey(id),
+                j -> StoreScripts.REMOVE.eval(j, ownedSessionKeys(id), List.of(toBytes(id))));
+            unindexSession(id, "");
         } catch (Exception e) {
             logDebug(REMOVING_SESSION_ERROR, e);
         }
@@ -289,147 +957,675 @@ public class RedisStore extends StoreBase implements LifecycleListener {
      */
     @Override
     public void save(Session session) throws IOException {
+        save(session, false);
+    }
+
+    /**
+     * Save the specified Session into this Store
+     *
+     * @param session Session to be saved
+     * @param sync    {@code true} to wait until the session has been sent to Redis, even in write-behind mode
+     * @throws NotSerializableException if the session cannot be serialized
+     */
+    private void save(Session session, boolean sync) throws IOException {
 
         if (!isEnabled()) throw new NotSerializableException("store not enabled");
-        if (!isSerializable(session)) throw new NotSerializableException(session.getClass().getName());
 
         String id = session.getIdInternal();
         try {
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            ObjectOutputStream outputStream = new ObjectOutputStream(output);
-            ((StandardSession) session).writeObjectData(outputStream);
-            outputStream.flush();
-
-            getConnector().execute(j -> {
-                long expire = (session.getLastAccessedTime() + (session.getMaxInactiveInterval() * 1000L));
-                long ttl = expire - System.currentTimeMillis();
-                byte[] key = getSessionKey(id).getBytes(StandardCharsets.UTF_8);
-
-                Transaction t = j.multi();
-                t.set(key, output.toByteArray());
-                t.pexpire(key, ttl);
-                t.zadd(getIndexKey(), expire, id);
-                t.exec();
-
-                return null;
-            });
+            if (deltaSave) saveFields((StandardSession) session);
+            else saveBlob((StandardSession) session, sync);
+            unknownSessions.remove(id);
+        } catch (NotSerializableException e) {
+            throw e;
         } catch (Exception e) {
             logDebug(UNLOADING_SESSION_ERROR, e);
             throw new IOException(e);
         }
     }
 
-    private String getIndexKey() {
-        return getPrefix() + ":sessions";
+    private void saveBlob(StandardSession session, boolean sync) throws IOException {
+        String id = session.getIdInternal();
+        BufferPool.Buffer output = buffers.acquire(fingerprints.sizeHint(id));
+        try {
+            SessionCodecs.encode(codec, session, output);
+
+            long fingerprint = SessionFingerprints.of(output.array(), output.size());
+            WriteBehindQueue queue = writes;
+            if (queue != null) {
+                // the unchanged sessions are sent too, in case they are no longer stored when the touch is sent
+                boolean unchanged = skipUnchangedSaves && fingerprints.matches(id, fingerprint);
+                queue.offer(new WriteBehindQueue.Write(id, compressor.compress(output.array(), output.size()),
+                    getExpireTime(session), fingerprint, output.size(), unchanged), sync);
+                return;
+            }
+            if (touchIfUnchanged(session, fingerprint)) return;
+
+            // the client needs an array of the exact size, so this is the only copy of the content
+            byte[] payload = compressor.compress(output.array(), output.size());
+            long ttl = getTimeToLive(session);
+            List<byte[]> args = new ArrayList<>();
+            args.add(toBytes(id));
+            args.add(toBytes(Long.toString(ttl)));
+            args.add(payload);
+            addFilterArguments(args, id);
+            getConnector().execute(getSessionKey(id), j -> StoreScripts.SAVE.eval(j, sessionKeys(id, true), args));
+            indexSession(id, ttl);
+            fingerprints.put(id, fingerprint, output.size());
+        } finally {
+            buffers.release(output);
+        }
+    }
+
+    /**
+     * @return the full write of the given session
+     */
+    private WriteBehindQueue.Write encode(StandardSession session) throws IOException {
+        String id = session.getIdInternal();
+        BufferPool.Buffer output = buffers.acquire(fingerprints.sizeHint(id));
+        try {
+            SessionCodecs.encode(codec, session, output);
+            long fingerprint = SessionFingerprints.of(output.array(), output.size());
+            return new WriteBehindQueue.Write(id, compressor.compress(output.array(), output.size()),
+                getExpireTime(session), fingerprint, output.size(), false);
+        } finally {
+            buffers.release(output);
+        }
+    }
+
+    /**
+     * Send a batch of session writes to Redis, in a single round trip for each Redis node, plus one for each index
+     * shard in cluster mode
+     *
+     * @param batch the writes to be sent
+     * @return the touches that failed because the session is no longer stored
+     */
+    private Collection<WriteBehindQueue.Write> writeBatch(List<WriteBehindQueue.Write> batch) {
+        Map<WriteBehindQueue.Write, Response<Long>> touches = new IdentityHashMap<>();
+        long now = System.currentTimeMillis();
+        Map<String, WriteBehindQueue.Write> byKey = new LinkedHashMap<>();
+        for (WriteBehindQueue.Write write : batch) byKey.put(getSessionKey(write.id), write);
+        getConnector().executeByNode(byKey.keySet(),
+            (j, keys) -> writeSessions(j, keys.stream().map(byKey::get).toList(), touches, now));
+        if (RedisConnector.isCluster()) indexWrites(batch, now);
+
+        List<WriteBehindQueue.Write> missed = new ArrayList<>();
+        for (WriteBehindQueue.Write write : batch) {
+            Response<Long> touched = touches.get(write);
+            if (touched != null && touched.get() != 1L) {
+                fingerprints.forget(write.id);
+                missed.add(write);
+            } else if (touched != null) {
+                skippedSaves.increment();
+            } else if (!write.isRemoval() && write.expireTime > now) {
+                fingerprints.put(write.id, write.fingerprint, write.size);
+            }
+        }
+        return missed;
+    }
+
+    private void writeSessions(Jedis j, List<WriteBehindQueue.Write> writes,
+                               Map<WriteBehindQueue.Write, Response<Long>> touches, long now) {
+        List<Response<Object>> scripts = new ArrayList<>();
+        Pipeline p = j.pipelined();
+        for (WriteBehindQueue.Write write : writes) {
+            long ttl = write.expireTime - now;
+            if (write.isRemoval() || ttl <= 0) {
+                scripts.add(StoreScripts.REMOVE.eval(p, ownedSessionKeys(write.id), List.of(toBytes(write.id))));
+            } else if (write.touch) {
+                touches.put(write, p.pexpire(toBytes(getSessionKey(write.id)), ttl));
+            } else {
+                List<byte[]> args = new ArrayList<>();
+                args.add(toBytes(write.id));
+                args.add(toBytes(Long.toString(ttl)));
+                args.add(write.payload);
+                addFilterArguments(args, write.id);
+                scripts.add(StoreScripts.SAVE.eval(p, sessionKeys(write.id, true), args));
+            }
+        }
+        p.sync();
+        awaitScripts(j, scripts);
+    }
+
+    /**
+     * Update the index shards after a batch of session writes, in cluster mode, in a single round trip for each shard
+     */
+    private void indexWrites(List<WriteBehindQueue.Write> batch, long now) {
+        Map<Integer, List<WriteBehindQueue.Write>> shards = new TreeMap<>();
+        for (WriteBehindQueue.Write write : batch) {
+            // the touches do not change the index, unless they turned into removals
+            if (write.touch && !write.isRemoval() && write.expireTime > now) continue;
+            shards.computeIfAbsent(getShard(write.id), shard -> new ArrayList<>()).add(write);
+        }
+        for (Map.Entry<Integer, List<WriteBehindQueue.Write>> shard : shards.entrySet()) {
+            getConnector().execute(getIndexKey(shard.getKey()), j -> {
+                List<Response<Object>> scripts = new ArrayList<>();
+                Pipeline p = j.pipelined();
+                for (WriteBehindQueue.Write write : shard.getValue()) {
+                    long ttl = write.expireTime - now;
+                    if (write.isRemoval() || ttl <= 0) {
+                        scripts.add(StoreScripts.UNINDEX.eval(p, unindexKeys(write.id), List.of(toBytes(write.id), new byte[0])));
+                    } else {
+                        scripts.add(StoreScripts.INDEX.eval(p, indexKeys(write.id), indexArguments(write.id, ttl)));
+                    }
+                }
+                p.sync();
+                awaitScripts(j, scripts);
+                return null;
+            });
+        }
+    }
+
+    private static void awaitScripts(Jedis j, List<Response<Object>> scripts) {
+        try {
+            scripts.forEach(Response::get);
+        } catch (JedisNoScriptException e) {
+            // the whole batch is sent again once the scripts are loaded
+            StoreScripts.loadAll(j);
+            throw e;
+        }
     }
 
-    private String getSessionKey(String sessionId) {
-        return getPrefix() + ":session:" + sessionId;
+    /**
+     * If the content to be saved is the same of the previous save, just refresh the expiration time of the stored
+     * session. Since the expiration time is computed from the last accessed time, that is part of the content, the
+     * index does not need to be updated.
+     *
+     * @return {@code true} if the session was unchanged and it is still stored, so it does not need to be saved again
+     */
+    private boolean touchIfUnchanged(Session session, long fingerprint) {
+        String id = session.getIdInternal();
+        if (!skipUnchangedSaves || !fingerprints.matches(id, fingerprint)) return false;
+
+        String key = getSessionKey(id);
+        long ttl = getExpireTime(session) - System.currentTimeMillis();
+        // PEXPIRE replies 0 if the key no longer exists (i.e. it expired or it has been loaded by another node)
+        boolean touched = getConnector().execute(key, j -> j.pexpire(key, ttl)) == 1L;
+        if (touched) skippedSaves.increment();
+        else fingerprints.forget(id);
+        return touched;
     }
 
-    private boolean isSerializable(Session session) {
+    private void saveFields(StandardSession session) throws IOException {
+        String id = session.getIdInternal();
+        DirtyAttributesTracker.State state = dirtyAttributes.get(id);
+        Set<String> dirty = state == null ? Set.of() : state.drainDirty();
+
         try {
-            new ObjectOutputStream(new ByteArrayOutputStream()).writeObject(session); // NOSONAR: this is intended to be a test to identify the non-serializable session
+            Map<String, Object> external = new HashMap<>();
+            Map<byte[], byte[]> fields = new HashMap<>();
+            byte[] metadata = DeltaSessionSerializer.writeMetadata(session, external);
+            fields.put(toBytes(DeltaSessionSerializer.METADATA_FIELD), compressor.compress(metadata));
+            for (Map.Entry<String, Object> e : external.entrySet()) {
+                String name = e.getKey();
+                if (state == null || dirty.contains(name) || !state.getStored().contains(name)) {
+                    fields.put(toBytes(DeltaSessionSerializer.attributeField(name)), compressor.compress(DeltaSessionSerializer.writeAttribute(e.getValue())));
+                }
+            }
+            byte[][] removed = state == null
+                ? new byte[0][]
+                : state.getStored().stream()
+                    .filter(name -> !external.containsKey(name))
+                    .map(name -> toBytes(DeltaSessionSerializer.attributeField(name)))
+                    .toArray(byte[][]::new);
+
+            long fingerprint = SessionFingerprints.of(metadata);
+            if (state != null && fields.size() == 1 && removed.length == 0 && touchIfUnchanged(session, fingerprint)) {
+                return;
+            }
+
+            long ttl = getTimeToLive(session);
+            List<byte[]> args = new ArrayList<>();
+            args.add(toBytes(id));
+            args.add(toBytes(Long.toString(ttl)));
+            args.add(toBytes(state == null ? "1" : "0"));
+            args.add(toBytes(Integer.toString(fields.size())));
+            args.add(toBytes(Integer.toString(removed.length)));
+            for (Map.Entry<byte[], byte[]> e : fields.entrySet()) {
+                args.add(e.getKey());
+                args.add(e.getValue());
+            }
+            Collections.addAll(args, removed);
+            addFilterArguments(args, id);
+            Object saved = getConnector().execute(getSessionKey(id),
+                j -> StoreScripts.SAVE_FIELDS.eval(j, sessionKeys(id, true), args));
+
+            if (!Long.valueOf(1L).equals(saved)) {
+                // the hash expired, or has been loaded by another node, in the meanwhile: the delta is not enough
+                dirtyAttributes.forget(id);
+                saveFields(session);
+                return;
+            }
+            indexSession(id, ttl);
+            dirtyAttributes.saved(id, state, external.keySet());
+            fingerprints.put(id, fingerprint, metadata.length);
+        } catch (IOException | RuntimeException e) {
+            dirtyAttributes.failed(state, dirty);
+            throw e;
+        }
+    }
+
+    /**
+     * @param id         the session identifier
+     * @param withFilter {@code true} to include the known sessions filter, if enabled
+     * @return the keys used by the scripts that save the given session: in cluster mode, the session key only
+     */
+    private List<byte[]> sessionKeys(String id, boolean withFilter) {
+        if (RedisConnector.isCluster()) return List.of(toBytes(getSessionKey(id)));
+        List<byte[]> keys = new ArrayList<>(3);
+        keys.add(toBytes(getSessionKey(id)));
+        keys.addAll(indexKeys(id, withFilter));
+        return keys;
+    }
+
+    /**
+     * @param id the session identifier
+     * @return the keys used by the scripts that load or remove the given session, and update its owner: in cluster
+     * mode, the session key only
+     */
+    private List<byte[]> ownedSessionKeys(String id) {
+        if (RedisConnector.isCluster()) return List.of(toBytes(getSessionKey(id)));
+        List<byte[]> keys = new ArrayList<>(3);
+        keys.add(toBytes(getSessionKey(id)));
+        keys.addAll(unindexKeys(id));
+        return keys;
+    }
+
+    private List<byte[]> indexKeys(String id) {
+        return indexKeys(id, true);
+    }
+
+    private List<byte[]> indexKeys(String id, boolean withFilter) {
+        int shard = getShard(id);
+        List<byte[]> keys = new ArrayList<>(2);
+        keys.add(toBytes(getIndexKey(shard)));
+        if (withFilter && knownSessions != null) keys.add(toBytes(getKnownSessionsKey(shard)));
+        return keys;
+    }
+
+    private List<byte[]> unindexKeys(String id) {
+        int shard = getShard(id);
+        return List.of(toBytes(getIndexKey(shard)), toBytes(getOwnersKey(shard)));
+    }
+
+    private List<byte[]> indexArguments(String id, long ttl) {
+        List<byte[]> args = new ArrayList<>();
+        args.add(toBytes(id));
+        args.add(toBytes(Long.toString(ttl)));
+        addFilterArguments(args, id);
+        return args;
+    }
+
+    /**
+     * Record the given session, just stored, into its index shard and into the known sessions filter. It is needed in
+     * cluster mode only, where the session is not in the slot of its shard, otherwise the scripts do it themselves.
+     *
+     * @param id  the session identifier
+     * @param ttl the time to live of the session
+     */
+    private void indexSession(String id, long ttl) {
+        if (!RedisConnector.isCluster()) return;
+        getConnector().execute(getIndexKey(getShard(id)),
+            j -> StoreScripts.INDEX.eval(j, indexKeys(id), indexArguments(id, ttl)));
+    }
+
+    /**
+     * Remove the given session, just loaded or removed, from its index shard, in cluster mode only as
+     * {@link #indexSession(String, long)}
+     *
+     * @param id    the session identifier
+     * @param owner the node that loaded the session, an empty string to forget its owner or {@code null} to leave it
+     */
+    private void unindexSession(String id, String owner) {
+        if (!RedisConnector.isCluster()) return;
+        List<byte[]> args = owner == null ? List.of(toBytes(id)) : List.of(toBytes(id), toBytes(owner));
+        getConnector().execute(getIndexKey(getShard(id)), j -> StoreScripts.UNINDEX.eval(j, unindexKeys(id), args));
+    }
+
+    private void addFilterArguments(List<byte[]> args, String id) {
+        SessionIdFilter filter = knownSessions;
+        if (filter == null) return;
+        for (String arg : filter.addArguments(id)) args.add(toBytes(arg));
+    }
+
+    private static long getExpireTime(Session session) {
+        return session.getLastAccessedTime() + (session.getMaxInactiveInterval() * 1000L);
+    }
+
+    /**
+     * @return the time, in millis, the session has still to live. Being relative, it is not affected by the clock
+     * skew between this node and Redis.
+     */
+    private static long getTimeToLive(Session session) {
+        return getExpireTime(session) - System.currentTimeMillis();
+    }
+
+    private static byte[] toBytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the number of indexes the sessions are spread among: only one, unless in cluster mode
+     */
+    private int getShards() {
+        return RedisConnector.isCluster() ? indexShards : 1;
+    }
+
+    private int getShard(String sessionId) {
+        return Math.floorMod(sessionId.hashCode(), getShards());
+    }
+
+    /**
+     * @return the hash tag that puts all the keys of the given index shard in the same hash slot, in cluster mode. The
+     * shards hold the identifiers of the sessions only, while the sessions are tagged by their own identifier.
+     */
+    private static String getShardTag(int shard) {
+        return RedisConnector.isCluster() ? ":{" + shard + "}" : "";
+    }
+
+    String getIndexKey(int shard) {
+        return getPrefix() + ":sessions" + getShardTag(shard);
+    }
+
+    private String getKnownSessionsKey(int shard) {
+        return getPrefix() + ":sessions:known" + getShardTag(shard);
+    }
+
+    String getSessionKey(String sessionId) {
+        // each session in its own slot, so that they are spread among all the nodes of the cluster
+        return getPrefix() + ":session:" + (RedisConnector.isCluster() ? "{" + sessionId + "}" : sessionId);
+    }
+
+    private String getOwnersKey(int shard) {
+        return getPrefix() + ":sessions:owners" + getShardTag(shard);
+    }
+
+    private String getNodesKey() {
+        return getPrefix() + ":nodes";
+    }
+
+    private String getNodeId() {
+        return getSubscriberServiceManager().getNodeId();
+    }
+
+    boolean askForSessionDraining(String id, DrainReplies replies, long start) {
+        if (!sendSessionDrainingRequest(id, replies.getKey())) return false;
+        long remaining = DRAIN_ACK_TIMEOUT - (System.currentTimeMillis() - start);
+        return remaining > 0 && DRAIN_ACK.equals(replies.await(remaining));
+    }
+
+    /**
+     * Ask the node owning the session to drain it or, if the owner is not known, all the nodes
+     *
+     * @param id       the session identifier
+     * @param replyKey the key of the list the draining node pushes its replies to
+     * @return {@code false} if the request surely reached nobody, so no answer is coming
+     */
+    boolean sendSessionDrainingRequest(String id, String replyKey) {
+        RedisSubscriberServiceManager subscribers = getSubscriberServiceManager();
+        String owners = getOwnersKey(getShard(id));
+        String owner = getConnector().execute(owners, j -> j.hget(owners, id));
+        String request = id + REPLY_KEY_SEPARATOR + replyKey;
+        if (owner == null || owner.equals(subscribers.getNodeId())) {
+            drainRequests.send(subscribers.getSubscribeChannel(), request);
             return true;
-        } catch (IOException e) {
+        }
+
+        long receivers = drainRequests.send(subscribers.getInboxChannel(owner), request);
+        // in cluster mode the subscribers of the other Redis nodes are not counted, so the heartbeat of the owner is
+        // checked instead
+        if (receivers == 0 && (!RedisConnector.isCluster() || !isNodeAlive(owner))) {
+            // the owner is no longer running, and the session has gone with it
+            getConnector().execute(owners, j -> j.hdel(owners, id));
             return false;
         }
+        return true;
     }
 
-    boolean askForSessionDraining(String id, long start, boolean firstRetry) throws InterruptedException {
-        if (System.currentTimeMillis() - start > 1000) return false;
-        if (firstRetry) sendSessionDrainingRequest(id);
-        if (someOneAnsweredMe(id)) return true;
-        TimeUnit.MILLISECONDS.sleep(100);
-        return askForSessionDraining(id, start, false);
+    private boolean isNodeAlive(String node) {
+        String nodes = getNodesKey();
+        return getConnector().execute(nodes, j -> j.zscore(nodes, node)) != null;
     }
 
-    void sendSessionDrainingRequest(String id) {
-        getConnector().publish(RedisSubscriberServiceManager.getInstance().getSubscribeChannel(), id);
+    /**
+     * Push a reply to the nodes waiting for the sessions to be drained; the reply lists expire on their own if nobody
+     * is waiting anymore
+     *
+     * @param ids       the session identifiers
+     * @param replyKeys the keys of the reply lists of each session
+     * @param reply     the reply
+     */
+    private void sendDrainReplies(Collection<String> ids, Map<String, List<String>> replyKeys, String reply) {
+        List<String> keys = ids.stream().flatMap(id -> replyKeys.getOrDefault(id, List.of()).stream()).toList();
+        if (keys.isEmpty()) return;
+        getConnector().executeByNode(keys, (client, nodeKeys) -> {
+            Pipeline p = client.pipelined();
+            for (String key : nodeKeys) {
+                p.rpush(key, reply);
+                p.pexpire(key, MAX_AWAITING_LOADING_TIME);
+            }
+            p.sync();
+        });
     }
 
-    boolean someOneAnsweredMe(String id) {
-        return getConnector().execute(client -> {
-            String key = getSessionRequestKey(id);
-            Transaction t = client.multi();
-            t.get(key);
-            t.del(key);
-            return t.exec().get(0) != null;
-        });
+    /**
+     * @return a new key for the replies to a session draining request, unique for each request so that the concurrent
+     * requests of the same session do not steal the replies of each other
+     */
+    String getDrainReplyKey() {
+        return getPrefix() + ":drain:" + UUID.randomUUID();
+    }
+
+    boolean isKnownSession(String id) {
+        SessionIdFilter filter = knownSessions;
+        if (filter == null) return true;
+        String key = getKnownSessionsKey(getShard(id));
+        return SessionIdFilter.mightContain(getConnector().execute(key, j -> j.bitfield(key, filter.checkArguments(id))));
     }
 
-    String getSessionRequestKey(String id) {
-        return getSessionKey(id) + ":request";
+    void addKnownSession(String id) {
+        unknownSessions.remove(id);
+        SessionIdFilter filter = knownSessions;
+        if (filter == null) return;
+        try {
+            String key = getKnownSessionsKey(getShard(id));
+            getConnector().execute(key, j -> j.bitfield(key, filter.addArguments(id)));
+        } catch (Exception e) {
+            logDebug("Error recording known session", e);
+        }
+    }
+
+    private void addApplicationListener(Object listener) {
+        Context context = getManager().getContext();
+
+        // the session lifecycle events are sent to the lifecycle listeners, while the attributes and id changes to
+        // the event listeners: each session fires its events only to the listeners of the right type
+        context.setApplicationLifecycleListeners(append(context.getApplicationLifecycleListeners(), listener));
+        context.setApplicationEventListeners(append(context.getApplicationEventListeners(), listener));
+    }
+
+    private static Object[] append(Object[] listeners, Object listener) {
+        if (listeners == null) return new Object[]{listener};
+        Object[] result = Arrays.copyOf(listeners, listeners.length + 1);
+        result[listeners.length] = listener;
+        return result;
     }
 
     private StandardSession restoreSession(byte[] raw) throws IOException, ClassNotFoundException {
-        try (ObjectInputStream input = getObjectInputStream(new ByteArrayInputStream(raw))) {
-            StandardSession session = (StandardSession) manager.createEmptySession();
-            session.readObjectData(input);
-            session.setManager(manager);
-            return session;
+        StandardSession session = (StandardSession) manager.createEmptySession();
+        if (DeltaSessionSerializer.isPacked(raw)) {
+            Map<String, byte[]> fields = DeltaSessionSerializer.unpack(raw);
+            for (Map.Entry<String, byte[]> e : fields.entrySet()) e.setValue(compressor.decompress(e.getValue()));
+            DeltaSessionSerializer.read(fields, session, this::getObjectInputStream);
+        } else {
+            SessionCodecs.decode(compressor.decompress(raw), session, this::getObjectInputStream, codec);
         }
+        session.setManager(manager);
+        // back from another node, so its removal must reach Redis again
+        drainedSessions.remove(session.getIdInternal());
+        return session;
     }
 
+    /**
+     * Remove the session from Redis and return its serialized content. The sessions stored as a hash, by the delta
+     * save mode, are returned {@link DeltaSessionSerializer#pack(Map) packed} in a single payload.
+     *
+     * @param id the session identifier
+     * @return the session payload, or {@code null} if the session is not stored
+     */
     byte[] loadSession(String id) {
-        byte[] key = getSessionKey(id).getBytes(StandardCharsets.UTF_8);
-        return getConnector().execute(j -> {
-            Transaction t = j.multi();
-            t.get(key);
-            t.del(key);
-            t.zrem(getIndexKey(), id);
-            return (byte[]) t.exec().get(0);
-        });
+        dirtyAttributes.forget(id);
+        fingerprints.forget(id);
+        Object content = getConnector().execute(getSessionKey(id),
+            j -> StoreScripts.LOAD.eval(j, ownedSessionKeys(id), List.of(toBytes(id), toBytes(getNodeId()))));
+        boolean found = content instanceof byte[] || content instanceof List<?> fields && !fields.isEmpty();
+        unindexSession(id, found ? getNodeId() : null);
+
+        if (content instanceof byte[] blob) return blob;
+        if (content instanceof List<?> hash && !hash.isEmpty()) {
+            // HGETALL replies with a flat list of fields and values
+            Map<byte[], byte[]> fields = new LinkedHashMap<>();
+            for (int i = 0; i + 1 < hash.size(); i += 2) fields.put((byte[]) hash.get(i), (byte[]) hash.get(i + 1));
+            return DeltaSessionSerializer.pack(fields);
+        }
+        return null;
     }
 
-    Session awaitAndLoad(String id, long start) throws Exception {
-        if (System.currentTimeMillis() - start > MAX_AWAITING_LOADING_TIME) return null;
+    Session awaitAndLoad(String id, DrainReplies replies, long start) throws Exception {
+        while (true) {
+            long remaining = MAX_AWAITING_LOADING_TIME - (System.currentTimeMillis() - start);
+            if (remaining <= 0) return null;
 
-        byte[] raw = loadSession(id);
-        if (raw != null) return restoreSession(raw);
+            // the owner replies as soon as the session is saved; the wait is sliced to recover a lost reply
+            String reply = replies.await(Math.min(remaining, DRAIN_REPLY_WAIT_SLICE));
+            if (DRAIN_FAILED.equals(reply)) return null;
 
-        TimeUnit.MILLISECONDS.sleep(500);
-        return awaitAndLoad(id, start);
+            byte[] raw = loadSession(id);
+            if (raw != null) return restoreSession(raw);
+            // saved, but already taken by someone else
+            if (DRAIN_READY.equals(reply)) return null;
+        }
     }
 
     void onSessionDrainRequest(String sessionId) {
-        try {
-            // do not call the findSession(String) otherwise it calls the load method that fire another session drain broadcast message (indirect loop)
-            Session session = findSessionById(sessionId);
-            if (session == null) return;
+        onSessionDrainRequests(List.of(sessionId));
+    }
 
-            String key = getSessionRequestKey(sessionId);
-            getConnector().execute(client -> client.setex(key, 5, "true"));
+    /**
+     * @param requests the session identifiers, each one followed by the key of the list the requesting node awaits
+     *                 the replies on
+     */
+    void onSessionDrainRequests(List<String> requests) {
+        Map<String, List<String>> replyKeys = new LinkedHashMap<>();
+        for (String request : requests) {
+            int separator = request.indexOf(REPLY_KEY_SEPARATOR);
+            String id = separator < 0 ? request : request.substring(0, separator);
+            List<String> keys = replyKeys.computeIfAbsent(id, k -> new ArrayList<>());
+            if (separator >= 0) keys.add(request.substring(separator + REPLY_KEY_SEPARATOR.length()));
+        }
 
-            while (isProcessing(session)) {
-                // wait until the end of te processing
+        List<Session> sessions = new ArrayList<>();
+        for (String id : replyKeys.keySet()) {
+            // do not call the findSession(String) otherwise it calls the load method that fire another session drain broadcast message (indirect loop)
+            Session session = findSessionById(id);
+            if (session != null) sessions.add(session);
+        }
+        if (sessions.isEmpty()) return;
+
+        sendDrainReplies(sessions.stream().map(Session::getIdInternal).toList(), replyKeys, DRAIN_ACK);
+
+        // the idle sessions are drained right now and together, the other ones as soon as the last request in progress
+        // on each of them ends, in a thread handling the drain requests rather than in the one ending the request
+        List<Session> idle = new ArrayList<>();
+        for (Session session : sessions) {
+            String id = session.getIdInternal();
+            if (activeRequests.isActive(id)) {
+                activeRequests.whenIdle(id, () -> getSubscriberServiceManager().execute(
+                    () -> drain(List.of(session), replyKeys)));
+            } else {
+                idle.add(session);
             }
+        }
+        if (!idle.isEmpty()) drain(idle, replyKeys);
+    }
 
-            passivateAndDrain(session);
-        } catch (IOException e) {
-            logDebug("error loading/saving session", e);
+    private void drain(List<Session> sessions, Map<String, List<String>> replyKeys) {
+        List<String> ready = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        List<StandardSession> valid = new ArrayList<>();
+        for (Session session : sessions) {
+            // already drained for a previous request, or not drainable at all
+            if (!session.isValid() || !(session instanceof StandardSession)) ready.add(session.getIdInternal());
+            else valid.add((StandardSession) session);
         }
+
+        // the write-behind queue could hold older writes of the same sessions, sent after the batch
+        if (valid.size() > 1 && !deltaSave && writes == null) {
+            passivateAndDrain(valid, ready, failed);
+        } else {
+            for (StandardSession session : valid) {
+                try {
+                    passivateAndDrain(session);
+                    ready.add(session.getIdInternal());
+                } catch (IOException e) {
+                    failed.add(session.getIdInternal());
+                    logDebug("error loading/saving session", e);
+                }
+            }
+        }
+
+        if (!ready.isEmpty()) sendDrainReplies(ready, replyKeys, DRAIN_READY);
+        if (!failed.isEmpty()) sendDrainReplies(failed, replyKeys, DRAIN_FAILED);
     }
 
     private Session findSessionById(String sessionId) {
-        Session[] sessions = getManager().findSessions();
-        return Stream.of(sessions)
-            .filter(s -> s.getIdInternal().equals(sessionId))
-            .findAny()
-            .orElse(null);
+        return InMemorySessions.find(getManager(), sessionId);
     }
 
     private void passivateAndDrain(Session session) throws IOException {
         if (session instanceof StandardSession standardSession) {
             standardSession.passivate();
-            save(standardSession);
+            save(standardSession, true);
             markSessionAsDrained(standardSession);
             standardSession.invalidate();
         }
     }
 
-    private boolean isProcessing(Session session) {
-        return Boolean.TRUE.equals(session.getSession().getAttribute("processing"));
+    /**
+     * Drain many sessions at once, saving them in a single round trip for each index shard
+     */
+    private void passivateAndDrain(List<StandardSession> sessions, List<String> ready, List<String> failed) {
+        List<StandardSession> encoded = new ArrayList<>();
+        List<WriteBehindQueue.Write> batch = new ArrayList<>();
+        for (StandardSession session : sessions) {
+            session.passivate();
+            try {
+                batch.add(encode(session));
+                encoded.add(session);
+            } catch (IOException e) {
+                failed.add(session.getIdInternal());
+                logDebug(UNLOADING_SESSION_ERROR, e);
+            }
+        }
+
+        try {
+            try {
+                writeBatch(batch);
+            } catch (JedisNoScriptException e) {
+                // the scripts have been loaded in the meanwhile
+                writeBatch(batch);
+            }
+        } catch (Exception e) {
+            encoded.forEach(session -> failed.add(session.getIdInternal()));
+            logDebug(UNLOADING_SESSION_ERROR, e);
+            return;
+        }
+        for (StandardSession session : encoded) {
+            unknownSessions.remove(session.getIdInternal());
+            markSessionAsDrained(session);
+            session.invalidate();
+            ready.add(session.getIdInternal());
+        }
     }
 
     private void markSessionAsDrained(Session session) {
@@ -453,7 +1649,52 @@ public class RedisStore extends StoreBase implements LifecycleListener {
     }
 
     void subscribeToSessionDrainRequests() {
-        getSubscriberServiceManager().subscribe(this, this::onSessionDrainRequest);
+        getSubscriberServiceManager().subscribe(this, this::onSessionDrainRequests);
+    }
+
+    void setSessionOwner(String id) {
+        try {
+            String owners = getOwnersKey(getShard(id));
+            getConnector().execute(owners, j -> j.hset(owners, id, getNodeId()));
+        } catch (Exception e) {
+            logDebug("Error recording session owner", e);
+        }
+    }
+
+    /**
+     * Record this node as the owner of the sessions it creates, so that the other nodes can ask it for their draining
+     * directly. A node alone does not record anything: the other nodes, once started, ask all the nodes for the
+     * sessions without an owner.
+     */
+    private class SessionOwnersListener implements HttpSessionListener, HttpSessionIdListener {
+
+        @Override
+        public void sessionCreated(HttpSessionEvent se) {
+            if (!isSingleNode()) setSessionOwner(se.getSession().getId());
+        }
+
+        @Override
+        public void sessionIdChanged(HttpSessionEvent se, String oldSessionId) {
+            // the old identifier has already been removed from the store, together with its owner
+            if (!isSingleNode()) setSessionOwner(se.getSession().getId());
+        }
+    }
+
+    /**
+     * Record the identifiers of the sessions created by this node, or changed by it, into the filter of the known
+     * sessions, so that the other nodes can ask for their draining.
+     */
+    private class KnownSessionsListener implements HttpSessionListener, HttpSessionIdListener {
+
+        @Override
+        public void sessionCreated(HttpSessionEvent se) {
+            addKnownSession(se.getSession().getId());
+        }
+
+        @Override
+        public void sessionIdChanged(HttpSessionEvent se, String oldSessionId) {
+            addKnownSession(se.getSession().getId());
+        }
     }
 
     private boolean isEnabled() {
@@ -463,4 +1704,49 @@ public class RedisStore extends StoreBase implements LifecycleListener {
         if (enabled == null) enabled = System.getenv("tomcat.redis.manager.enabled");
         return Boolean.parseBoolean(enabled);
     }
+
+    /**
+     * The list the node draining a session pushes its replies to. It is read through a dedicated connection, opened on
+     * the first wait, since the blocking waits would hold a pooled connection for seconds.
+     */
+    static final class DrainReplies implements Closeable {
+
+        private final RedisConnector connector;
+        private final String key;
+        private Jedis connection;
+
+        DrainReplies(RedisConnector connector, String key) {
+            this.connector = connector;
+            this.key = key;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        /**
+         * Wait for the next reply, blocking on the list instead of polling it
+         *
+         * @param timeout the maximum time to wait, in millis
+         * @return the reply, or {@code null} if none arrived in time
+         */
+        String await(long timeout) {
+            if (connection == null) connection = connector.connect(key);
+            KeyValue<String, String> reply = connection.blpop(Math.max(timeout, 1) / 1000.0, key);
+            return reply == null ? null : reply.getValue();
+        }
+
+        @Override
+        public void close() {
+            if (connection == null) return;
+            try {
+                // the replies sent after the end of the wait
+                connection.del(key);
+            } catch (RuntimeException e) {
+                // the list expires on its own
+            } finally {
+                connection.close();
+            }
+        }
+    }
 }
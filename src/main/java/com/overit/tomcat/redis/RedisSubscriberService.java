@@ -1,39 +1,417 @@
 package com.overit.tomcat.redis;
 
 import org.apache.catalina.Store;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.params.XAddParams;
+import redis.clients.jedis.params.XReadGroupParams;
+import redis.clients.jedis.resps.StreamConsumersInfo;
+import redis.clients.jedis.resps.StreamEntry;
+import redis.clients.jedis.resps.StreamGroupInfo;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
+/**
+ * Receive the session draining requests through a dedicated connection, both the ones broadcast to all the nodes and
+ * the ones sent to the inbox of this node, identified by a {@link #getNodeId() node identifier} unique for each run
+ * of the JVM. If the connection breaks, the service subscribes again after a backoff time, that grows at each failed
+ * attempt and is randomized, so that the nodes of the cluster do not reconnect all at the same time once Redis is
+ * back.
+ *
+ * <p>The requests are handled concurrently by a bounded pool of threads, optionally virtual ones, so that a slow drain
+ * doesn't delay the following ones; when the pool is full, the subscription thread handles the request itself. The
+ * requests for a session already waiting to be handled are discarded. A message may ask for
+ * {@link DrainRequestBatcher many sessions} at once: they are handed over together.</p>
+ *
+ * <p>The requests travel by {@link Transport#PUBSUB pub/sub} or by {@link Transport#STREAMS streams}: in the latter
+ * case the requests sent while a node is reconnecting are not lost, but read as soon as it is back. The consumer groups
+ * left by the nodes that crashed are destroyed by the next node starting to read the streams.</p>
+ */
 class RedisSubscriberService implements Runnable {
 
-    private static final String SESSION_DRAINING_CHANNEL = "SESSION_DRAINING_CHANNEL";
+    enum Transport {
+        /**
+         * The requests are published to channels, and lost if nobody is subscribed at that time
+         */
+        PUBSUB,
+        /**
+         * The requests are appended to streams, trimmed to their latest {@value #STREAM_MAX_LENGTH} entries, that each
+         * node reads through its own consumer group, acknowledging the requests as they are received
+         */
+        STREAMS;
 
-    private final Map<Store, Consumer<String>> subscribers = new ConcurrentHashMap<>();
-    private final JedisPubSub subscriber = new JedisPubSub() {
-        @Override
-        public void onMessage(String channel, String sessionId) {
-            subscribers.forEach((store, handler) -> handler.accept(sessionId));
+        static Transport parse(String transport) {
+            return switch (transport.trim().toLowerCase(Locale.ROOT)) {
+                case "pubsub" -> PUBSUB;
+                case "streams" -> STREAMS;
+                default -> throw new IllegalArgumentException("unsupported drain transport");
+            };
         }
-    };
+    }
+
+    private static final Log log = LogFactory.getLog(RedisSubscriberService.class);
+    private static final String SESSION_DRAINING_CHANNEL = "SESSION_DRAINING_CHANNEL";
+    static final long MIN_BACKOFF = 100;
+    static final long MAX_BACKOFF = 30_000;
+    static final int DEFAULT_HANDLER_THREADS = 4;
+    private static final int HANDLER_QUEUE_CAPACITY = 1000;
+    private static volatile int handlerThreads = DEFAULT_HANDLER_THREADS;
+    private static volatile boolean virtualThreads = false;
+    private static volatile Transport transport = Transport.PUBSUB;
+    static final long STREAM_MAX_LENGTH = 10_000;
+    private static final String STREAM_FIELD = "ids";
+    private static final int STREAM_BLOCK = 5_000;
+    private static final int STREAM_READ_COUNT = 100;
+    // the inbox of a node that is no longer running expires, so that the requests to it are known to reach nobody,
+    // while the one of a node reconnecting outlives the longest backoff, twice to absorb a slow reconnection
+    static final long INBOX_TTL = 2 * (MAX_BACKOFF + STREAM_BLOCK);
+    // the consumers of the running nodes read at least once per block, and reconnect within the maximum backoff
+    static final long GROUP_MAX_IDLE = 10L * MAX_BACKOFF;
+
+    private final Map<Store, Consumer<List<String>>> subscribers = new ConcurrentHashMap<>();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final String nodeId = UUID.randomUUID().toString();
+    private ThreadPoolExecutor handlers;
+    private ExecutorService overflow;
+    private volatile JedisPubSub subscriber;
+    private volatile Jedis streams;
+    private volatile boolean stopped = false;
+    private int attempts = 0;
 
     @Override
     public void run() {
-        RedisConnector.instance().subscribe(subscriber, getSubscribeChannel());
+        while (!stopped && !Thread.currentThread().isInterrupted()) {
+            try {
+                if (transport == Transport.STREAMS) consumeStreams();
+                else subscribePubSub();
+            } catch (Exception e) {
+                if (log.isDebugEnabled()) log.debug("Subscription to the session draining requests lost", e);
+            }
+            if (stopped) return;
+
+            try {
+                TimeUnit.MILLISECONDS.sleep(backoff(attempts++));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void subscribePubSub() {
+        subscriber = new JedisPubSub() {
+            @Override
+            public void onSubscribe(String channel, int subscribedChannels) {
+                attempts = 0;
+            }
+
+            @Override
+            public void onMessage(String channel, String message) {
+                dispatch(DrainRequestBatcher.split(message));
+            }
+        };
+        // unsubscribed in the meanwhile
+        if (stopped) return;
+        RedisConnector.instance().subscribe(subscriber, getSubscribeChannel(), getInboxChannel(nodeId));
+    }
+
+    /**
+     * Read the requests from the broadcast stream and from the inbox of this node, blocking until they arrive. The
+     * requests received but not acknowledged before the connection broke are read first.
+     */
+    private void consumeStreams() {
+        String broadcast = getSubscribeChannel();
+        String inbox = getInboxChannel(nodeId);
+        try (Jedis j = RedisConnector.instance().connect(broadcast)) {
+            streams = j;
+            // unsubscribed in the meanwhile
+            if (stopped) return;
+            createGroup(j, broadcast);
+            createGroup(j, inbox);
+            attempts = 0;
+            try {
+                pruneGroups(j, broadcast, GROUP_MAX_IDLE);
+            } catch (JedisDataException e) {
+                // pruned by the next node starting
+                if (log.isDebugEnabled()) log.debug("Error pruning the consumer groups of the session draining requests", e);
+            }
+
+            boolean pendingOnly = true;
+            while (!stopped) {
+                j.pexpire(inbox, INBOX_TTL);
+                StreamEntryID from = pendingOnly ? new StreamEntryID() : StreamEntryID.XREADGROUP_UNDELIVERED_ENTRY;
+                XReadGroupParams params = XReadGroupParams.xReadGroupParams().count(STREAM_READ_COUNT);
+                if (!pendingOnly) params.block(STREAM_BLOCK);
+                List<Map.Entry<String, List<StreamEntry>>> read =
+                    j.xreadGroup(nodeId, nodeId, params, Map.of(broadcast, from, inbox, from));
+
+                int entries = 0;
+                if (read != null) {
+                    for (Map.Entry<String, List<StreamEntry>> stream : read) {
+                        if (stream.getValue() == null || stream.getValue().isEmpty()) continue;
+                        StreamEntryID[] ids = new StreamEntryID[stream.getValue().size()];
+                        for (int i = 0; i < ids.length; i++) {
+                            StreamEntry entry = stream.getValue().get(i);
+                            ids[i] = entry.getID();
+                            String message = entry.getFields() == null ? null : entry.getFields().get(STREAM_FIELD);
+                            if (message != null) dispatch(DrainRequestBatcher.split(message));
+                        }
+                        j.xack(stream.getKey(), nodeId, ids);
+                        entries += ids.length;
+                    }
+                }
+                // the pending requests are read until none is left
+                if (entries == 0) pendingOnly = false;
+            }
+        } finally {
+            streams = null;
+        }
+    }
+
+    private void createGroup(Jedis j, String stream) {
+        try {
+            j.xgroupCreate(stream, nodeId, StreamEntryID.XGROUP_LAST_ENTRY, true);
+        } catch (JedisDataException e) {
+            // the group already exists since a previous connection
+            if (e.getMessage() == null || !e.getMessage().startsWith("BUSYGROUP")) throw e;
+        }
+    }
+
+    /**
+     * Destroy the consumer groups of the broadcast stream left by the nodes that stopped without removing them, as the
+     * crashed ones: the groups whose consumers have all been idle for longer than the given time. The groups with no
+     * consumer yet are kept, since their node could be starting.
+     *
+     * @param j       the connection
+     * @param stream  the stream
+     * @param maxIdle the maximum idle time of a consumer of a running node, in millis
+     * @return the number of groups destroyed
+     */
+    static int pruneGroups(Jedis j, String stream, long maxIdle) {
+        int pruned = 0;
+        for (StreamGroupInfo group : j.xinfoGroups(stream)) {
+            if (group.getConsumers() == 0) continue;
+            List<StreamConsumersInfo> consumers = j.xinfoConsumers(stream, group.getName());
+            if (consumers.isEmpty() || consumers.stream().anyMatch(c -> c.getIdle() <= maxIdle)) continue;
+            pruned += (int) j.xgroupDestroy(stream, group.getName());
+        }
+        return pruned;
+    }
+
+    /**
+     * Send a request through the selected transport
+     *
+     * @param channel the channel, or the stream, of the request
+     * @param message the identifiers of the sessions to drain
+     * @return the number of nodes that received the request. With the streams, it is 1 if the request has been
+     * appended to the stream, since it is not known who is going to read it, and 0 if the inbox of the node does not
+     * exist anymore
+     */
+    long publish(String channel, String message) {
+        RedisConnector connector = RedisConnector.instance();
+        if (transport != Transport.STREAMS) return connector.publish(channel, message);
+
+        XAddParams params = XAddParams.xAddParams().maxLen(STREAM_MAX_LENGTH).approximateTrimming();
+        // the broadcast stream is created by the first reader
+        if (!channel.equals(getSubscribeChannel())) params.noMkStream();
+        StreamEntryID id = connector.execute(channel, j -> j.xadd(channel, params, Map.of(STREAM_FIELD, message)));
+        return id == null ? 0 : 1;
+    }
+
+    /**
+     * @param attempt the number of the failed attempts in a row
+     * @return the time to wait before the next attempt, in millis: at least half of the exponential backoff, plus a
+     * random part up to the other half
+     */
+    static long backoff(int attempt) {
+        long max = MIN_BACKOFF << Math.min(attempt, 20);
+        if (max > MAX_BACKOFF) max = MAX_BACKOFF;
+        return max / 2 + ThreadLocalRandom.current().nextLong(max / 2 + 1);
+    }
+
+    /**
+     * @param threads the maximum number of drain requests handled at the same time. It must be set before the first
+     *                request is received. The default value is {@value #DEFAULT_HANDLER_THREADS}.
+     */
+    static void setHandlerThreads(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("At least one thread is required to handle the drain requests");
+        handlerThreads = threads;
+    }
+
+    /**
+     * @param virtual {@code true} to handle the drain requests in virtual threads, if the JVM supports them. It must be
+     *                set before the first request is received. The default value is {@code false}.
+     */
+    static void setVirtualThreads(boolean virtual) {
+        virtualThreads = virtual;
     }
 
-    public void subscribe(Store store, Consumer<String> handler) {
+    /**
+     * @param drainTransport the transport of the drain requests. All the nodes must use the same one, and it must be
+     *                       set before the subscription. The default value is {@link Transport#PUBSUB}.
+     */
+    static void setTransport(Transport drainTransport) {
+        transport = drainTransport;
+    }
+
+    static Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Hand the request over to the handlers of the subscribed stores, in a thread of the pool
+     *
+     * @param sessionIds the sessions to drain
+     */
+    void dispatch(List<String> sessionIds) {
+        List<String> ids = new ArrayList<>(sessionIds.size());
+        for (String id : sessionIds) {
+            // collapsed with the same request still waiting in the queue
+            if (pending.add(id)) ids.add(id);
+        }
+        if (ids.isEmpty()) return;
+        Runnable task = () -> {
+            ids.forEach(pending::remove);
+            subscribers.forEach((store, handler) -> handler.accept(ids));
+        };
+        try {
+            getHandlers().execute(task);
+        } catch (RejectedExecutionException e) {
+            if (stopped) {
+                ids.forEach(pending::remove);
+            } else {
+                // the pool is full: the subscription thread handles the request itself
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * Run a task of the subscribed stores in a thread of the pool handling the requests, never in the calling thread:
+     * if the pool is full, the task waits for the overflow thread, which runs the tasks one at a time. Once stopped,
+     * the task is run right away instead, so that it is not lost.
+     *
+     * @param task the task to run
+     */
+    void execute(Runnable task) {
+        try {
+            getHandlers().execute(task);
+        } catch (RejectedExecutionException e) {
+            try {
+                getOverflow().execute(task);
+            } catch (RejectedExecutionException stopping) {
+                task.run();
+            }
+        }
+    }
+
+    private synchronized ExecutorService getOverflow() {
+        if (stopped) throw new RejectedExecutionException("stopped");
+        if (overflow == null) {
+            overflow = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "RedisSubscriberService-overflow");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return overflow;
+    }
+
+    private synchronized ThreadPoolExecutor getHandlers() {
+        if (stopped) throw new RejectedExecutionException("stopped");
+        if (handlers == null) {
+            int threads = handlerThreads;
+            handlers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(HANDLER_QUEUE_CAPACITY), getThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy());
+            handlers.allowCoreThreadTimeOut(true);
+        }
+        return handlers;
+    }
+
+    private static ThreadFactory getThreadFactory() {
+        if (virtualThreads) {
+            try {
+                // Thread.ofVirtual().factory(), on the JVMs supporting it
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                log.warn("The virtual threads are not supported by this JVM: the drain requests are handled by platform threads");
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, "RedisSubscriberService-handler-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    public void subscribe(Store store, Consumer<List<String>> handler) {
         subscribers.putIfAbsent(store, handler);
     }
 
     public void unsubscribe() {
-        if (subscriber.isSubscribed()) subscriber.unsubscribe();
+        stopped = true;
+        JedisPubSub s = subscriber;
+        if (s != null && s.isSubscribed()) s.unsubscribe();
+        Jedis j = streams;
+        if (j != null) {
+            // break the blocking read
+            j.close();
+            removeGroups();
+        }
         subscribers.clear();
+        synchronized (this) {
+            if (handlers != null) handlers.shutdown();
+            handlers = null;
+            if (overflow != null) overflow.shutdown();
+            overflow = null;
+        }
+        pending.clear();
     }
 
+    private void removeGroups() {
+        String broadcast = getSubscribeChannel();
+        String inbox = getInboxChannel(nodeId);
+        try {
+            RedisConnector connector = RedisConnector.instance();
+            connector.execute(broadcast, j -> j.xgroupDestroy(broadcast, nodeId));
+            connector.execute(inbox, j -> j.del(inbox));
+        } catch (Exception e) {
+            // they are left to the trimming and to the expiration
+            if (log.isDebugEnabled()) log.debug("Error removing the consumer groups of the session draining requests", e);
+        }
+    }
+
+    /**
+     * @return the channel of the requests broadcast to all the nodes. The streams share a hash tag, so that a node
+     * reads both of them from the same connection in cluster mode
+     */
     public String getSubscribeChannel() {
-        return SESSION_DRAINING_CHANNEL;
+        return transport == Transport.STREAMS ? "{" + SESSION_DRAINING_CHANNEL + "}" : SESSION_DRAINING_CHANNEL;
+    }
+
+    /**
+     * @param node the node identifier
+     * @return the channel of the requests sent to the given node only
+     */
+    public String getInboxChannel(String node) {
+        return getSubscribeChannel() + ":" + node;
+    }
+
+    public String getNodeId() {
+        return nodeId;
     }
 }
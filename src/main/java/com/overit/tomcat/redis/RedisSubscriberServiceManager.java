@@ -2,6 +2,7 @@ package com.overit.tomcat.redis;
 
 import org.apache.catalina.Store;
 
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.function.Consumer;
@@ -32,11 +33,27 @@ class RedisSubscriberServiceManager {
         task.cancel(true);
     }
 
-    public void subscribe(Store store, Consumer<String> handler) {
+    public void subscribe(Store store, Consumer<List<String>> handler) {
         service.subscribe(store, handler);
     }
 
+    public long publish(String channel, String message) {
+        return service.publish(channel, message);
+    }
+
+    void execute(Runnable task) {
+        service.execute(task);
+    }
+
     public String getSubscribeChannel() {
         return service.getSubscribeChannel();
     }
+
+    public String getInboxChannel(String node) {
+        return service.getInboxChannel(node);
+    }
+
+    public String getNodeId() {
+        return service.getNodeId();
+    }
 }
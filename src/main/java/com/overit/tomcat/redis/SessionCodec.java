@@ -0,0 +1,57 @@
+package com.overit.tomcat.redis;
+
+import org.apache.catalina.session.StandardSession;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+
+/**
+ * Encoder and decoder of the sessions stored into Redis.
+ *
+ * <p>Each payload starts with a header holding the {@link #getFormat() format} of the codec used to encode it, so that
+ * the sessions encoded by different codecs can coexist, for example while a new codec is being rolled out. The payloads
+ * of the built-in {@code jdk} codec have no header, in order to be readable by the previous versions of this
+ * library.</p>
+ *
+ * <p>The implementations must be thread safe and must provide a public constructor without arguments.</p>
+ */
+public interface SessionCodec {
+
+    /**
+     * Factory of the streams used to deserialize objects, that resolve the classes through the web application class
+     * loader and enforce the configured session attributes filter.
+     */
+    @FunctionalInterface
+    interface ObjectInputStreamFactory {
+        ObjectInputStream create(InputStream is) throws IOException;
+    }
+
+    /**
+     * Return the identifier of the format produced by this codec, written in the header of each payload. The values
+     * from 0 to 127 are reserved to the built-in codecs.
+     *
+     * @return a value between 0 and 255
+     */
+    int getFormat();
+
+    /**
+     * Encode the given session
+     *
+     * @param session the session to be encoded
+     * @param out     the destination of the encoded session
+     * @throws java.io.NotSerializableException if the session holds an attribute that cannot be encoded
+     */
+    void encode(StandardSession session, OutputStream out) throws IOException;
+
+    /**
+     * Decode a session
+     *
+     * @param in      the encoded session, without the header
+     * @param session the empty session to be filled
+     * @param factory the factory of the streams used to deserialize the java serialized objects
+     */
+    void decode(InputStream in, StandardSession session, ObjectInputStreamFactory factory)
+        throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,96 @@
+package com.overit.tomcat.redis;
+
+import org.apache.catalina.session.StandardSession;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * Registry of the {@link SessionCodec session codecs}, that writes and reads the header of the payloads.
+ *
+ * <p>The payloads of the {@code jdk} codec have no header, and they start with the magic number of the java
+ * serialization stream. The payloads of any other codec start with the {@link #HEADER} byte, followed by the format of
+ * the codec.</p>
+ */
+final class SessionCodecs {
+
+    static final byte HEADER = (byte) 0xC5;
+
+    private static final int CUSTOM_FORMAT = 128;
+
+    private SessionCodecs() {
+    }
+
+    /**
+     * Return the codec with the given name
+     *
+     * @param name   {@code jdk}, {@code compact} or the fully qualified class name of a {@link SessionCodec}
+     * @param strict if {@code true} the built-in codecs reject the sessions holding a non-serializable object,
+     *               otherwise they drop the non-serializable attributes as done by Tomcat
+     * @return the codec
+     * @throws IllegalArgumentException if the codec cannot be created
+     */
+    static SessionCodec forName(String name, boolean strict) {
+        if (name == null || name.isEmpty() || JdkSessionCodec.NAME.equalsIgnoreCase(name)) {
+            return new JdkSessionCodec(strict);
+        }
+        if (CompactSessionCodec.NAME.equalsIgnoreCase(name)) return new CompactSessionCodec(strict);
+
+        SessionCodec codec;
+        try {
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            if (classLoader == null) classLoader = SessionCodecs.class.getClassLoader();
+            codec = (SessionCodec) Class.forName(name, true, classLoader).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Invalid session codec " + name, e);
+        }
+        if (codec.getFormat() < CUSTOM_FORMAT || codec.getFormat() > 255) {
+            throw new IllegalArgumentException("The format of the session codec " + name + " must be between "
+                + CUSTOM_FORMAT + " and 255");
+        }
+        return codec;
+    }
+
+    /**
+     * Encode the session, preceded by the header
+     *
+     * @param codec   the codec to be used
+     * @param session the session to be encoded
+     * @param out     the destination of the payload
+     */
+    static void encode(SessionCodec codec, StandardSession session, OutputStream out) throws IOException {
+        if (codec.getFormat() != JdkSessionCodec.FORMAT) {
+            out.write(HEADER);
+            out.write(codec.getFormat());
+        }
+        codec.encode(session, out);
+    }
+
+    /**
+     * Decode the session, using the codec named by the header of the payload
+     *
+     * @param payload    the payload
+     * @param session    the empty session to be filled
+     * @param factory    the factory of the streams used to deserialize the java serialized objects
+     * @param configured the configured codec, used to decode the payloads of its format
+     */
+    static void decode(byte[] payload, StandardSession session, SessionCodec.ObjectInputStreamFactory factory,
+                       SessionCodec configured) throws IOException, ClassNotFoundException {
+        if (payload.length < 2 || payload[0] != HEADER) {
+            codec(JdkSessionCodec.FORMAT, configured).decode(new ByteArrayInputStream(payload), session, factory);
+        } else {
+            codec(payload[1] & 0xFF, configured)
+                .decode(new ByteArrayInputStream(payload, 2, payload.length - 2), session, factory);
+        }
+    }
+
+    private static SessionCodec codec(int format, SessionCodec configured) throws IOException {
+        if (configured.getFormat() == format) return configured;
+        // the payloads of the built-in formats are readable whatever the codec is, the strictness only affects writes
+        if (format == JdkSessionCodec.FORMAT) return new JdkSessionCodec(true);
+        if (format == CompactSessionCodec.FORMAT) return new CompactSessionCodec(true);
+        throw new StreamCorruptedException("unsupported session format " + format);
+    }
+}
@@ -0,0 +1,78 @@
+package com.overit.tomcat.redis;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded map of the fingerprints of the last content saved for each session, used to detect the saves that would
+ * write again the very same content. The size of the content is kept as well, as a hint to size the serialization
+ * buffer of the next save.
+ */
+class SessionFingerprints {
+
+    private record Entry(long fingerprint, int size) {
+    }
+
+    private final Map<String, Entry> fingerprints = new ConcurrentHashMap<>();
+    private final int maxSize;
+
+    SessionFingerprints(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    static long of(byte[] content) {
+        return of(content, content.length);
+    }
+
+    static long of(byte[] content, int length) {
+        return Hash64.hash(content, 0, length, 0);
+    }
+
+    /**
+     * @param id          the session identifier
+     * @param fingerprint the fingerprint of the content to be saved
+     * @return {@code true} if the last content saved for the session had the same fingerprint
+     */
+    boolean matches(String id, long fingerprint) {
+        Entry previous = fingerprints.get(id);
+        return previous != null && previous.fingerprint() == fingerprint;
+    }
+
+    /**
+     * @param id the session identifier
+     * @return the size of the last content saved for the session, or zero if it is unknown
+     */
+    int sizeHint(String id) {
+        Entry previous = fingerprints.get(id);
+        return previous == null ? 0 : previous.size();
+    }
+
+    void put(String id, long fingerprint, int size) {
+        if (fingerprints.size() >= maxSize && !fingerprints.containsKey(id)) evict();
+        fingerprints.put(id, new Entry(fingerprint, size));
+    }
+
+    void forget(String id) {
+        fingerprints.remove(id);
+    }
+
+    void retain(Set<String> ids) {
+        fingerprints.keySet().retainAll(ids);
+    }
+
+    int size() {
+        return fingerprints.size();
+    }
+
+    private void evict() {
+        // a forgotten fingerprint only costs a full save, so there is no need to pick the entries carefully
+        int excess = Math.max(1, maxSize / 10);
+        Iterator<String> it = fingerprints.keySet().iterator();
+        while (it.hasNext() && excess-- > 0) {
+            it.next();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.overit.tomcat.redis;
+
+import java.util.List;
+
+/**
+ * Bloom filter, stored as a Redis bitmap, that keeps track of the session identifiers known by the whole cluster.
+ *
+ * <p>It never answers {@code false} for an identifier that has been {@link #addArguments(String) added}, while it may
+ * answer {@code true} for an identifier never seen before (false positive). Bloom filters cannot forget an element,
+ * so the bitmap only grows until it is deleted.</p>
+ *
+ * <p>This class only computes the bit offsets: the caller is in charge of sending them to Redis using the
+ * {@code BITFIELD} command, so that both the check and the update cost a single round trip.</p>
+ */
+class SessionIdFilter {
+
+    private static final long SEED = 0x9747b28cL;
+
+    private final long bits;
+    private final int hashes;
+
+    /**
+     * @param bits   size of the bitmap expressed in bits
+     * @param hashes number of bits set for each identifier
+     */
+    SessionIdFilter(long bits, int hashes) {
+        if (bits <= 0) throw new IllegalArgumentException("the filter size must be positive");
+        if (hashes <= 0) throw new IllegalArgumentException("the number of hashes must be positive");
+        this.bits = bits;
+        this.hashes = hashes;
+    }
+
+    long getBits() {
+        return bits;
+    }
+
+    /**
+     * @param id the session identifier
+     * @return the {@code BITFIELD} arguments that set all the bits of the given identifier
+     */
+    String[] addArguments(String id) {
+        return arguments(id, "SET", "1");
+    }
+
+    /**
+     * @param id the session identifier
+     * @return the {@code BITFIELD} arguments that read all the bits of the given identifier
+     */
+    String[] checkArguments(String id) {
+        return arguments(id, "GET", null);
+    }
+
+    /**
+     * @param reply the {@code BITFIELD} reply to the {@link #checkArguments(String) check} command
+     * @return {@code true} if the identifier may be known, {@code false} if it has never been added
+     */
+    static boolean mightContain(List<Long> reply) {
+        return reply.stream().allMatch(bit -> bit != null && bit == 1L);
+    }
+
+    private String[] arguments(String id, String operation, String value) {
+        int step = value == null ? 3 : 4;
+        String[] args = new String[hashes * step];
+
+        // Kirsch-Mitzenmacher double hashing: the i-th offset is h1 + i * h2
+        long h1 = Hash64.hash(id, SEED);
+        long h2 = Hash64.hash(id, h1);
+        for (int i = 0; i < hashes; i++) {
+            long offset = Math.floorMod(h1 + i * h2, bits);
+            args[i * step] = operation;
+            args[i * step + 1] = "u1";
+            args[i * step + 2] = Long.toString(offset);
+            if (value != null) args[i * step + 3] = value;
+        }
+        return args;
+    }
+}
@@ -0,0 +1,170 @@
+package com.overit.tomcat.redis;
+
+import org.apache.catalina.session.StandardSession;
+
+import java.io.*;
+import java.security.Principal;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Serialize the session through {@link StandardSession#writeObjectData(ObjectOutputStream)}, so that its internal
+ * state is handled by Tomcat itself, but replace the value of some attributes with a placeholder referring to the
+ * attribute name. Those values can then be stored separately, and in a different format.
+ *
+ * <p>An attribute value shared by many attributes is replaced once, by the placeholder of the first attribute, so
+ * that the sharing is preserved when the session is read back. A value is replaced only where it is written as an
+ * attribute value, so the values kept in the metadata must not reference the replaced ones: a reference written
+ * before the attribute itself, as the one held by the session principal, raises a {@link SharedObjectException}.</p>
+ */
+final class SessionMetadata {
+
+    private static final String PLACEHOLDER_PREFIX = "\u0000tomcat-redis-attribute\u0000";
+
+    /**
+     * Resolve the value of the attributes replaced by a placeholder
+     */
+    @FunctionalInterface
+    interface Resolver {
+        /**
+         * @param name the name of the attribute, whose value has been replaced
+         * @return the attribute value
+         */
+        Object resolve(String name) throws IOException, ClassNotFoundException;
+    }
+
+    /**
+     * Thrown when an object is referenced both by a replaced value and by the rest of the session, so that the
+     * sharing would be lost by storing the replaced value separately.
+     */
+    static final class SharedObjectException extends RuntimeException {
+        SharedObjectException() {
+            super(null, null, false, false);
+        }
+    }
+
+    private SessionMetadata() {
+    }
+
+    /**
+     * Serialize the session metadata
+     *
+     * @param session  the session to be serialized
+     * @param replaced the attribute values to be replaced
+     * @param external filled with the attributes whose value has been replaced by a placeholder
+     * @param out      the destination of the metadata
+     * @throws NotSerializableException if the session holds an object that cannot be serialized
+     */
+    static void write(StandardSession session, Predicate<Object> replaced, Map<String, Object> external,
+                      OutputStream out) throws IOException {
+        write(session, replaced, external, true, out);
+    }
+
+    /**
+     * Serialize the session metadata
+     *
+     * @param session  the session to be serialized
+     * @param replaced the attribute values to be replaced
+     * @param external filled with the attributes whose value has been replaced by a placeholder
+     * @param strict   if {@code true} the sessions holding a non-serializable object are rejected, otherwise the
+     *                 non-serializable attributes are dropped as done by Tomcat
+     * @param out      the destination of the metadata
+     * @throws NotSerializableException if the session holds an object that cannot be serialized
+     * @throws SharedObjectException    if a replaced value is referenced by the rest of the session
+     */
+    static void write(StandardSession session, Predicate<Object> replaced, Map<String, Object> external,
+                      boolean strict, OutputStream out) throws IOException {
+        Map<Object, String> names = new IdentityHashMap<>();
+        Map<String, Object> values = new HashMap<>();
+        for (String name : Collections.list(session.getAttributeNames())) {
+            Object value = session.getAttribute(name);
+            if (value == null || value instanceof Principal) continue;
+            if (names.containsKey(value) || replaced.test(value)) {
+                names.putIfAbsent(value, name);
+                values.put(name, value);
+            }
+        }
+        CheckedObjectOutputStream.writeSession(session,
+            new MetadataOutputStream(out, names, values, external, strict));
+    }
+
+    /**
+     * Check if the value is of an immutable type, cheap to serialize, that can be kept inline in the metadata
+     *
+     * @param value the attribute value
+     * @return {@code true} for strings and boxed primitives
+     */
+    static boolean isInline(Object value) {
+        return value instanceof String
+            || value instanceof Boolean
+            || value instanceof Character
+            || (value instanceof Number && value.getClass().getName().startsWith("java.lang."));
+    }
+
+    /**
+     * Restore the given session from its metadata
+     *
+     * @param in       the serialized metadata
+     * @param session  the empty session to be filled
+     * @param factory  the factory of the stream used to deserialize the metadata
+     * @param resolver the resolver of the replaced attribute values
+     */
+    static void read(InputStream in, StandardSession session, SessionCodec.ObjectInputStreamFactory factory,
+                     Resolver resolver) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = factory.create(in)) {
+            session.readObjectData(ois);
+        }
+
+        Enumeration<String> names;
+        try {
+            names = session.getAttributeNames();
+        } catch (IllegalStateException e) {
+            return; // the session was already invalid, it is going to be discarded anyway
+        }
+
+        Map<String, Object> values = new HashMap<>();
+        for (String name : Collections.list(names)) {
+            Object value = session.getAttribute(name);
+            if (!(value instanceof String placeholder) || !placeholder.startsWith(PLACEHOLDER_PREFIX)) continue;
+
+            String owner = placeholder.substring(PLACEHOLDER_PREFIX.length());
+            Object resolved = values.get(owner);
+            if (resolved == null) {
+                resolved = resolver.resolve(owner);
+                values.put(owner, resolved);
+            }
+            session.setAttribute(name, resolved, false);
+        }
+    }
+
+    private static final class MetadataOutputStream extends CheckedObjectOutputStream {
+
+        private final Map<Object, String> names;
+        private final Map<String, Object> values;
+        private final Map<String, Object> external;
+        private Object expected;
+
+        MetadataOutputStream(OutputStream out, Map<Object, String> names, Map<String, Object> values,
+                             Map<String, Object> external, boolean strict) throws IOException {
+            super(out, strict);
+            this.names = names;
+            this.values = values;
+            this.external = external;
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException {
+            super.replaceObject(obj);
+            // the session writes each attribute name followed by its value, so the object following the name of a
+            // replaced attribute is its value; anywhere else, the value is referenced by another object
+            boolean attributeValue = obj == expected;
+            expected = obj instanceof String ? values.get(obj) : null;
+
+            String name = names.get(obj);
+            if (name == null) return obj;
+            if (!attributeValue) throw new SharedObjectException();
+            external.put(name, obj);
+            return PLACEHOLDER_PREFIX + name;
+        }
+    }
+}
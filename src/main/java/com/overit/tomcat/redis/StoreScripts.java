@@ -0,0 +1,188 @@
+package com.overit.tomcat.redis;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * The Lua scripts used by {@link RedisStore}, so that each operation on a session takes a single request and a single
+ * reply.
+ *
+ * <p>The scripts receive the time to live of the session, computed from its last access, and compute its expiration
+ * time on the Redis clock, so that the index is not affected by the clock skew between the nodes.</p>
+ *
+ * <p>In cluster mode each session is in its own hash slot, while the index, the owners and the known sessions filter
+ * are in the slot of their shard: the scripts of a session then receive the session key only, and the shard is updated
+ * by {@link #INDEX} and {@link #UNINDEX}.</p>
+ */
+final class StoreScripts {
+
+    private static final String NOW = """
+        local function now()
+          local t = redis.call('TIME')
+          return tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+        end
+        """;
+
+    /**
+     * Store a session as a string.
+     * <p>KEYS: session, and optionally index and known sessions filter.
+     * ARGV: id, ttl, payload and the {@code BITFIELD} arguments of the filter.</p>
+     */
+    static final RedisScript SAVE = new RedisScript(NOW + """
+        local ttl = tonumber(ARGV[2])
+        if ttl <= 0 then
+          redis.call('DEL', KEYS[1])
+          if KEYS[2] then redis.call('ZREM', KEYS[2], ARGV[1]) end
+          return 0
+        end
+        redis.call('SET', KEYS[1], ARGV[3], 'PX', ttl)
+        if KEYS[2] then redis.call('ZADD', KEYS[2], now() + ttl, ARGV[1]) end
+        if KEYS[3] then redis.call('BITFIELD', KEYS[3], unpack(ARGV, 4)) end
+        return 1
+        """);
+
+    /**
+     * Store some fields of a session saved as a hash. A partial save is refused, returning 0, if the hash is no longer
+     * stored.
+     * <p>KEYS: session, and optionally index and known sessions filter.
+     * ARGV: id, ttl, 1 for a full save or 0 for a partial one, the number of fields to be set, the number of fields to
+     * be removed, the names and values of the fields to be set, the names of the fields to be removed and the
+     * {@code BITFIELD} arguments of the filter.</p>
+     */
+    static final RedisScript SAVE_FIELDS = new RedisScript(NOW + """
+        local ttl = tonumber(ARGV[2])
+        local full = ARGV[3] == '1'
+        if not full and redis.call('EXISTS', KEYS[1]) == 0 then return 0 end
+        if ttl <= 0 then
+          redis.call('DEL', KEYS[1])
+          if KEYS[2] then redis.call('ZREM', KEYS[2], ARGV[1]) end
+          return 1
+        end
+        if full then redis.call('DEL', KEYS[1]) end
+        local i = 6
+        for _ = 1, tonumber(ARGV[4]) do
+          redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1])
+          i = i + 2
+        end
+        for _ = 1, tonumber(ARGV[5]) do
+          redis.call('HDEL', KEYS[1], ARGV[i])
+          i = i + 1
+        end
+        redis.call('PEXPIRE', KEYS[1], ttl)
+        if KEYS[2] then redis.call('ZADD', KEYS[2], now() + ttl, ARGV[1]) end
+        if KEYS[3] then redis.call('BITFIELD', KEYS[3], unpack(ARGV, i)) end
+        return 1
+        """);
+
+    /**
+     * Remove a session and return its content: a string, the flat list of the fields and values of a hash, or nil.
+     * The loading node is recorded as the owner of the session.
+     * <p>KEYS: session, and optionally index and owners. ARGV: id and the loading node.</p>
+     */
+    static final RedisScript LOAD = new RedisScript("""
+        local type = redis.call('TYPE', KEYS[1])['ok']
+        local content = false
+        if type == 'string' then
+          content = redis.call('GET', KEYS[1])
+        elseif type == 'hash' then
+          content = redis.call('HGETALL', KEYS[1])
+        end
+        redis.call('DEL', KEYS[1])
+        if KEYS[2] then redis.call('ZREM', KEYS[2], ARGV[1]) end
+        if content and KEYS[3] then redis.call('HSET', KEYS[3], ARGV[1], ARGV[2]) end
+        return content
+        """);
+
+    /**
+     * Remove a session and its owner.
+     * <p>KEYS: session, and optionally index and owners. ARGV: id.</p>
+     */
+    static final RedisScript REMOVE = new RedisScript("""
+        redis.call('DEL', KEYS[1])
+        if KEYS[2] then redis.call('ZREM', KEYS[2], ARGV[1]) end
+        if KEYS[3] then redis.call('HDEL', KEYS[3], ARGV[1]) end
+        return 1
+        """);
+
+    /**
+     * Record a stored session into the index shard, or remove it if its time to live is over, and optionally into the
+     * known sessions filter.
+     * <p>KEYS: index and optionally the known sessions filter. ARGV: id, ttl and the {@code BITFIELD} arguments of
+     * the filter.</p>
+     */
+    static final RedisScript INDEX = new RedisScript(NOW + """
+        local ttl = tonumber(ARGV[2])
+        if ttl <= 0 then
+          redis.call('ZREM', KEYS[1], ARGV[1])
+          return 0
+        end
+        redis.call('ZADD', KEYS[1], now() + ttl, ARGV[1])
+        if KEYS[2] then redis.call('BITFIELD', KEYS[2], unpack(ARGV, 3)) end
+        return 1
+        """);
+
+    /**
+     * Remove a session from the index shard and, if given, record its new owner or forget the old one.
+     * <p>KEYS: index and owners. ARGV: id and optionally the new owner, or an empty string to forget the owner.</p>
+     */
+    static final RedisScript UNINDEX = new RedisScript("""
+        redis.call('ZREM', KEYS[1], ARGV[1])
+        if ARGV[2] == '' then
+          redis.call('HDEL', KEYS[2], ARGV[1])
+        elseif ARGV[2] then
+          redis.call('HSET', KEYS[2], ARGV[1], ARGV[2])
+        end
+        return 1
+        """);
+
+    /**
+     * Return the identifiers of the expired sessions, according to the Redis clock.
+     * <p>KEYS: index.</p>
+     */
+    static final RedisScript EXPIRED = new RedisScript(NOW + """
+        return redis.call('ZRANGEBYSCORE', KEYS[1], 0, now())
+        """);
+
+    /**
+     * Record a node as alive for the given time, forget the nodes no longer alive and return the number of the alive
+     * ones.
+     * <p>KEYS: nodes. ARGV: node and ttl.</p>
+     */
+    static final RedisScript HEARTBEAT = new RedisScript(NOW + """
+        local now = now()
+        redis.call('ZREMRANGEBYSCORE', KEYS[1], '-inf', now)
+        redis.call('ZADD', KEYS[1], now + tonumber(ARGV[2]), ARGV[1])
+        return redis.call('ZCARD', KEYS[1])
+        """);
+
+    /**
+     * Return the number of the alive nodes.
+     * <p>KEYS: nodes.</p>
+     */
+    static final RedisScript ALIVE_NODES = new RedisScript(NOW + """
+        return redis.call('ZCOUNT', KEYS[1], '(' .. now(), '+inf')
+        """);
+
+    /**
+     * Forget the owners of the given sessions, unless they have changed in the meanwhile.
+     * <p>KEYS: owners. ARGV: pairs of id and owner.</p>
+     */
+    static final RedisScript FORGET_OWNERS = new RedisScript("""
+        local forgotten = 0
+        for i = 1, #ARGV, 2 do
+          if redis.call('HGET', KEYS[1], ARGV[i]) == ARGV[i + 1] then
+            forgotten = forgotten + redis.call('HDEL', KEYS[1], ARGV[i])
+          end
+        end
+        return forgotten
+        """);
+
+    private StoreScripts() {
+    }
+
+    static void loadAll(Jedis jedis) {
+        for (RedisScript script : new RedisScript[]{SAVE, SAVE_FIELDS, LOAD, REMOVE, INDEX, UNINDEX, EXPIRED, HEARTBEAT,
+            ALIVE_NODES, FORGET_OWNERS}) {
+            script.load(jedis);
+        }
+    }
+}
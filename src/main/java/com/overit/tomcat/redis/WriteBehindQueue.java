@@ -0,0 +1,316 @@
+package com.overit.tomcat.redis;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Queue of the session writes that are sent to Redis in background, in batches, by a single drainer thread.
+ *
+ * <p>The queue holds at most one write for each session: a new write of a session replaces the pending one, so that
+ * only the latest state of the session is sent. A write stays in the queue until it has been sent, so that the pending
+ * content of a session can always be {@link #get(String) read back}.</p>
+ */
+final class WriteBehindQueue {
+
+    private static final Log log = LogFactory.getLog(WriteBehindQueue.class);
+    private static final long MAX_AWAIT_TIME = 5000;
+    private static final long STOP_TIMEOUT = 10000;
+
+    /**
+     * What to do when a session is saved while the queue is full
+     */
+    enum OverflowPolicy {
+        /**
+         * Queue the write anyway, and wait until it has been sent as in the synchronous mode
+         */
+        SYNC,
+        /**
+         * Wait until there is room in the queue
+         */
+        BLOCK;
+
+        static OverflowPolicy parse(String policy) {
+            return switch (policy.trim().toLowerCase(Locale.ROOT)) {
+                case "sync" -> SYNC;
+                case "block" -> BLOCK;
+                default -> throw new IllegalArgumentException("unsupported overflow policy");
+            };
+        }
+    }
+
+    /**
+     * A pending write of a session
+     */
+    static final class Write {
+        final String id;
+        /**
+         * the content to be stored, or {@code null} if the session has to be removed
+         */
+        final byte[] payload;
+        final long expireTime;
+        final long fingerprint;
+        final int size;
+        /**
+         * if {@code true} the stored session is expected to hold the very same content, so only its expiration has to
+         * be refreshed
+         */
+        final boolean touch;
+        private long sequence;
+        private volatile boolean inFlight;
+
+        Write(String id, byte[] payload, long expireTime, long fingerprint, int size, boolean touch) {
+            this.id = id;
+            this.payload = payload;
+            this.expireTime = expireTime;
+            this.fingerprint = fingerprint;
+            this.size = size;
+            this.touch = touch;
+        }
+
+        static Write removal(String id) {
+            return new Write(id, null, 0, 0, 0, false);
+        }
+
+        boolean isRemoval() {
+            return payload == null;
+        }
+
+        private Write fully() {
+            Write write = new Write(id, payload, expireTime, fingerprint, size, false);
+            write.sequence = sequence;
+            return write;
+        }
+    }
+
+    /**
+     * Send a batch of writes to Redis
+     */
+    @FunctionalInterface
+    interface Writer {
+        /**
+         * @param writes the writes to be sent
+         * @return the touches that failed because the session was no longer stored, so that it must be fully written
+         */
+        Collection<Write> write(List<Write> writes) throws Exception;
+    }
+
+    private final Writer writer;
+    private final Map<String, Write> pending = new ConcurrentHashMap<>();
+    private final Queue<String> order = new ConcurrentLinkedQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder coalescedWrites = new LongAdder();
+    private final Object monitor = new Object();
+
+    private final long flushInterval;
+    private final int batchSize;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+
+    private volatile boolean running;
+    private boolean flushRequested;
+    private Thread drainer;
+
+    WriteBehindQueue(Writer writer, long flushInterval, int batchSize, int capacity, OverflowPolicy overflowPolicy) {
+        this.writer = writer;
+        this.flushInterval = flushInterval;
+        this.batchSize = batchSize;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    void start(String name) {
+        running = true;
+        drainer = new Thread(this::drain, name);
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Stop the drainer, once all the pending writes have been sent or the stop timeout elapsed
+     */
+    void stop() {
+        running = false;
+        synchronized (monitor) {
+            monitor.notifyAll();
+        }
+        try {
+            if (drainer != null) drainer.join(STOP_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!pending.isEmpty()) log.warn(pending.size() + " session writes have not been sent to Redis");
+    }
+
+    /**
+     * Queue a write, replacing the pending write of the same session if any
+     *
+     * @param write the write
+     * @param sync  {@code true} to wait until the write has been sent
+     * @throws IOException if the write has to be waited, but it has not been sent in time
+     */
+    void offer(Write write, boolean sync) throws IOException {
+        boolean full = pending.size() >= capacity && !pending.containsKey(write.id);
+        if (full && overflowPolicy == OverflowPolicy.BLOCK) awaitRoom();
+
+        write.sequence = sequence.incrementAndGet();
+        Write previous = pending.put(write.id, write);
+        if (previous == null) order.add(write.id);
+        else coalescedWrites.increment();
+        // the previous write could be landing right now, so the session could no longer hold the expected content
+        if (previous != null && previous.inFlight && write.touch) pending.replace(write.id, write, write.fully());
+
+        if (sync || full || pending.size() >= batchSize) {
+            synchronized (monitor) {
+                flushRequested = true;
+                monitor.notifyAll();
+            }
+        }
+        if (sync || full) awaitSent(write);
+    }
+
+    /**
+     * @param id the session identifier
+     * @return the pending write of the session, or {@code null} if none
+     */
+    Write get(String id) {
+        return pending.get(id);
+    }
+
+    /**
+     * Replace the pending write of the session with its removal, if it is still the given one
+     *
+     * @return {@code true} if the write has been replaced
+     */
+    boolean replaceWithRemoval(Write write) {
+        Write removal = Write.removal(write.id);
+        removal.sequence = sequence.incrementAndGet();
+        return pending.replace(write.id, write, removal);
+    }
+
+    void clear() {
+        pending.clear();
+        order.clear();
+    }
+
+    int size() {
+        return pending.size();
+    }
+
+    long getCoalescedWrites() {
+        return coalescedWrites.sum();
+    }
+
+    private void awaitRoom() throws IOException {
+        long deadline = System.currentTimeMillis() + MAX_AWAIT_TIME;
+        await(() -> pending.size() < capacity, deadline);
+    }
+
+    private void awaitSent(Write write) throws IOException {
+        long deadline = System.currentTimeMillis() + MAX_AWAIT_TIME;
+        await(() -> {
+            Write current = pending.get(write.id);
+            return current == null || current.sequence > write.sequence;
+        }, deadline);
+    }
+
+    private void await(BooleanSupplier condition, long deadline) throws IOException {
+        synchronized (monitor) {
+            while (!condition.getAsBoolean()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || !running) throw new IOException("The session write has not been sent in time");
+                try {
+                    monitor.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+        }
+    }
+
+    private void drain() {
+        while (running) {
+            try {
+                synchronized (monitor) {
+                    if (running && !flushRequested && pending.size() < batchSize) monitor.wait(flushInterval);
+                    flushRequested = false;
+                }
+                flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                if (log.isDebugEnabled()) log.debug("Error sending the session writes", e);
+                sleep();
+            }
+        }
+
+        // last attempt to send the pending writes
+        try {
+            flush();
+        } catch (Exception e) {
+            log.warn("Error sending the pending session writes", e);
+        }
+    }
+
+    private void flush() throws Exception {
+        String id;
+        while ((id = order.peek()) != null) {
+            List<Write> batch = new ArrayList<>(batchSize);
+            Set<String> ids = new HashSet<>();
+            while (batch.size() < batchSize && (id = order.poll()) != null) {
+                if (!ids.add(id)) continue;
+                Write write = pending.computeIfPresent(id, (k, w) -> {
+                    w.inFlight = true;
+                    return w;
+                });
+                if (write != null) batch.add(write);
+            }
+            if (batch.isEmpty()) continue;
+
+            Collection<Write> missed;
+            try {
+                missed = writer.write(batch);
+            } catch (Exception e) {
+                for (Write write : batch) order.add(write.id);
+                throw e;
+            }
+
+            for (Write write : batch) {
+                if (missed.contains(write)) pending.replace(write.id, write, write.fully());
+                else if (pending.remove(write.id, write)) continue;
+                // either to be fully written, or superseded while being sent: the session must be written again
+                order.add(write.id);
+            }
+            synchronized (monitor) {
+                monitor.notifyAll();
+            }
+        }
+    }
+
+    private void sleep() {
+        synchronized (monitor) {
+            try {
+                if (running) monitor.wait(Math.max(flushInterval, 100));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
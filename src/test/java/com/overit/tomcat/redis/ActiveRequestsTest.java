@@ -0,0 +1,77 @@
+package com.overit.tomcat.redis;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ActiveRequestsTest {
+
+    @Test
+    void whenIdle_givenNoRequestInProgress_shouldRunTheActionImmediately() {
+        // given
+        ActiveRequests requests = new ActiveRequests();
+        AtomicInteger runs = new AtomicInteger();
+
+        // when
+        requests.whenIdle("a", runs::incrementAndGet);
+
+        // then
+        assertThat(runs).hasValue(1);
+    }
+
+    @Test
+    void whenIdle_givenRequestsInProgress_shouldRunTheActionAtTheEndOfTheLastOne() {
+        // given
+        ActiveRequests requests = new ActiveRequests();
+        AtomicInteger runs = new AtomicInteger();
+        requests.begin("a");
+        requests.begin("a");
+
+        // when
+        requests.whenIdle("a", runs::incrementAndGet);
+        requests.end("a");
+
+        // then
+        assertThat(runs).hasValue(0);
+        assertThat(requests.isActive("a")).isTrue();
+
+        // when
+        requests.end("a");
+
+        // then
+        assertThat(runs).hasValue(1);
+        assertThat(requests.isActive("a")).isFalse();
+    }
+
+    @Test
+    void whenIdle_givenConcurrentRequests_shouldRunTheActionOnce() throws InterruptedException {
+        // given
+        ActiveRequests requests = new ActiveRequests();
+        AtomicInteger runs = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        int count = 10_000;
+        CountDownLatch done = new CountDownLatch(count);
+
+        // when
+        for (int i = 0; i < count; i++) {
+            executor.execute(() -> {
+                requests.begin("a");
+                requests.end("a");
+                done.countDown();
+            });
+        }
+        requests.whenIdle("a", runs::incrementAndGet);
+        assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+        executor.shutdown();
+
+        // then
+        assertThat(runs).hasValue(1);
+        assertThat(requests.isActive("a")).isFalse();
+    }
+}
@@ -0,0 +1,110 @@
+package com.overit.tomcat.redis;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.http.HttpSession;
+import jakarta.servlet.http.HttpSessionEvent;
+import org.apache.catalina.Session;
+import org.apache.catalina.Valve;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class ActiveRequestsValveTest {
+
+    private ActiveRequests activeRequests;
+    private ActiveRequestsValve valve;
+    private Valve next;
+    private Request request;
+
+    @BeforeEach
+    void setUp() {
+        activeRequests = new ActiveRequests();
+        valve = new ActiveRequestsValve(activeRequests);
+        next = mock(Valve.class);
+        valve.setNext(next);
+        request = mock(Request.class);
+    }
+
+    @Test
+    void invoke_givenARequestCreatingASession_shouldTrackItUntilTheEnd() throws Exception {
+        // given
+        AtomicBoolean activeDuringTheRequest = new AtomicBoolean();
+        doAnswer(invocation -> {
+            valve.sessionCreated(createEvent("created"));
+            activeDuringTheRequest.set(activeRequests.isActive("created"));
+            return null;
+        }).when(next).invoke(any(), any());
+
+        // when
+        valve.invoke(request, mock(Response.class));
+
+        // then
+        assertThat(activeDuringTheRequest).isTrue();
+        assertThat(activeRequests.isActive("created")).isFalse();
+    }
+
+    @Test
+    void invoke_givenARequestChangingTheSessionId_shouldTrackBothUntilTheEnd() throws Exception {
+        // given
+        when(request.getRequestedSessionId()).thenReturn("old");
+        AtomicBoolean activeDuringTheRequest = new AtomicBoolean();
+        doAnswer(invocation -> {
+            valve.sessionIdChanged(createEvent("new"), "old");
+            activeDuringTheRequest.set(activeRequests.isActive("old") && activeRequests.isActive("new"));
+            return null;
+        }).when(next).invoke(any(), any());
+
+        // when
+        valve.invoke(request, mock(Response.class));
+
+        // then
+        assertThat(activeDuringTheRequest).isTrue();
+        assertThat(activeRequests.isActive("old")).isFalse();
+        assertThat(activeRequests.isActive("new")).isFalse();
+    }
+
+    @Test
+    void invoke_givenAnAsyncRequestWithASessionCreatedElsewhere_shouldTrackItUntilTheCompletion() throws Exception {
+        // given
+        Session session = mock(Session.class);
+        when(session.getIdInternal()).thenReturn("async");
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        when(request.isAsync()).thenReturn(true);
+        when(request.getSessionInternal(false)).thenReturn(session);
+        when(request.getAsyncContext()).thenReturn(asyncContext);
+
+        // when
+        valve.invoke(request, mock(Response.class));
+
+        // then
+        assertThat(activeRequests.isActive("async")).isTrue();
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+        listener.getValue().onComplete(null);
+        assertThat(activeRequests.isActive("async")).isFalse();
+    }
+
+    @Test
+    void sessionCreated_givenNoRequestInProgress_shouldNotTrackIt() {
+        // when
+        valve.sessionCreated(createEvent("background"));
+
+        // then
+        assertThat(activeRequests.isActive("background")).isFalse();
+    }
+
+    private static HttpSessionEvent createEvent(String id) {
+        HttpSession session = mock(HttpSession.class);
+        when(session.getId()).thenReturn(id);
+        return new HttpSessionEvent(session);
+    }
+}
@@ -0,0 +1,63 @@
+package com.overit.tomcat.redis;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdaptivePoolSizerTest {
+
+    @Test
+    void resize_whenTheBorrowsWait_shouldGrowTheIdleConnections() {
+        // given
+        AdaptivePoolSizer sizer = new AdaptivePoolSizer(1, 3, 50);
+
+        // when
+        boolean resized = sizer.resize(8, 4, 5, 100);
+
+        // then
+        assertThat(resized).isTrue();
+        assertThat(sizer.getMaxIdle()).isEqualTo(12);
+        assertThat(sizer.getMinIdle()).isEqualTo(6);
+    }
+
+    @Test
+    void resize_whenTheBorrowsWait_shouldNotExceedTheMaximumNumberOfConnections() {
+        // given
+        AdaptivePoolSizer sizer = new AdaptivePoolSizer(1, 3, 10);
+
+        // when
+        sizer.resize(10, 30, 50, 100);
+
+        // then
+        assertThat(sizer.getMaxIdle()).isEqualTo(10);
+        assertThat(sizer.getMinIdle()).isEqualTo(10);
+    }
+
+    @Test
+    void resize_whenTheBorrowsAreFast_shouldKeepTheSizes() {
+        // given
+        AdaptivePoolSizer sizer = new AdaptivePoolSizer(1, 3, 10);
+
+        // when
+        boolean resized = sizer.resize(2, 0, 0, 100);
+
+        // then
+        assertThat(resized).isFalse();
+        assertThat(sizer.getMaxIdle()).isEqualTo(3);
+        assertThat(sizer.getMinIdle()).isEqualTo(1);
+    }
+
+    @Test
+    void resize_afterManyQuietPeriods_shouldShrinkBackToTheConfiguredSizes() {
+        // given
+        AdaptivePoolSizer sizer = new AdaptivePoolSizer(1, 3, 50);
+        sizer.resize(16, 0, 5, 100);
+
+        // when
+        for (int i = 0; i < 10 * AdaptivePoolSizer.QUIET_PERIODS; i++) sizer.resize(0, 0, 0, 0);
+
+        // then
+        assertThat(sizer.getMaxIdle()).isEqualTo(3);
+        assertThat(sizer.getMinIdle()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,50 @@
+package com.overit.tomcat.redis;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BufferPoolTest {
+
+    @Test
+    void acquire_afterARelease_shouldReuseTheBufferEmpty() {
+        // given
+        BufferPool pool = new BufferPool(1024 * 1024);
+        BufferPool.Buffer buffer = pool.acquire(0);
+        buffer.write(new byte[]{1, 2, 3}, 0, 3);
+        pool.release(buffer);
+
+        // when
+        BufferPool.Buffer reused = pool.acquire(0);
+
+        // then
+        assertThat(reused).isSameAs(buffer);
+        assertThat(reused.size()).isZero();
+    }
+
+    @Test
+    void acquire_givenASizeHint_shouldReturnABufferBigEnough() {
+        // given
+        BufferPool pool = new BufferPool(1024 * 1024);
+
+        // when
+        BufferPool.Buffer buffer = pool.acquire(100_000);
+
+        // then
+        assertThat(buffer.capacity()).isGreaterThanOrEqualTo(100_000);
+    }
+
+    @Test
+    void release_givenABufferTooBig_shouldDropIt() {
+        // given
+        BufferPool pool = new BufferPool(1024);
+        BufferPool.Buffer buffer = pool.acquire(10_000);
+        pool.release(buffer);
+
+        // when
+        BufferPool.Buffer other = pool.acquire(0);
+
+        // then
+        assertThat(other).isNotSameAs(buffer);
+    }
+}
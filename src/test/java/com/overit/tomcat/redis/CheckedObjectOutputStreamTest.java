@@ -0,0 +1,67 @@
+package com.overit.tomcat.redis;
+
+import com.overit.tomcat.TesterContext;
+import com.overit.tomcat.TesterServletContext;
+import org.apache.catalina.session.PersistentManager;
+import org.apache.catalina.session.StandardSession;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.NotSerializableException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.assertThatNoException;
+
+class CheckedObjectOutputStreamTest {
+
+    private StandardSession session;
+
+    @BeforeEach
+    public void setUp() {
+        TesterContext testerContext = new TesterContext();
+        testerContext.setServletContext(new TesterServletContext());
+        PersistentManager manager = new PersistentManager();
+        manager.setContext(testerContext);
+
+        session = new StandardSession(manager);
+        session.setValid(true);
+        session.setCreationTime(System.currentTimeMillis());
+        session.setId("s1", false);
+        session.setAttribute("key", "val");
+    }
+
+    @Test
+    void writeSession_givenASerializableSession_shouldWriteIt() {
+        assertThatNoException().isThrownBy(() -> write(session));
+    }
+
+    @Test
+    void writeSession_givenANonSerializableAttribute_shouldThrowsAndKeepTheAttribute() {
+        // given
+        Object value = new Object();
+        session.setAttribute("notserializable", value);
+
+        // then
+        assertThatExceptionOfType(NotSerializableException.class).isThrownBy(() -> write(session));
+        assertThat(session.getAttribute("notserializable")).isSameAs(value);
+    }
+
+    @Test
+    void writeSession_givenANestedNonSerializableObject_shouldThrows() {
+        // given
+        List<Object> list = new ArrayList<>();
+        list.add(new Object());
+        session.setAttribute("list", list);
+
+        // then
+        assertThatExceptionOfType(NotSerializableException.class).isThrownBy(() -> write(session));
+    }
+
+    private static void write(StandardSession session) throws Exception {
+        CheckedObjectOutputStream.writeSession(session, new CheckedObjectOutputStream(new ByteArrayOutputStream()));
+    }
+}
@@ -0,0 +1,91 @@
+package com.overit.tomcat.redis;
+
+import com.overit.tomcat.TesterContext;
+import com.overit.tomcat.TesterServletContext;
+import org.apache.catalina.session.PersistentManager;
+import org.apache.catalina.session.StandardSession;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DeltaSessionSerializerTest {
+
+    private PersistentManager manager;
+
+    @BeforeEach
+    public void setUp() {
+        TesterContext testerContext = new TesterContext();
+        testerContext.setServletContext(new TesterServletContext());
+        manager = new PersistentManager();
+        manager.setContext(testerContext);
+    }
+
+    @Test
+    void writeMetadata_shouldKeepOnlyTheMutableAttributesOutside() throws IOException {
+        // given
+        StandardSession session = createSession("s1");
+        session.setAttribute("name", "val");
+        session.setAttribute("count", 42);
+        session.setAttribute("list", new ArrayList<>(List.of("a", "b")));
+
+        // when
+        Map<String, Object> external = new HashMap<>();
+        DeltaSessionSerializer.writeMetadata(session, external);
+
+        // then
+        assertThat(external).containsOnlyKeys("list");
+    }
+
+    @Test
+    void read_givenThePackedFields_shouldRestoreTheSession() throws Exception {
+        // given
+        StandardSession session = createSession("s1");
+        session.setAttribute("name", "val");
+        session.setAttribute("count", 42);
+        ArrayList<String> list = new ArrayList<>(List.of("a", "b"));
+        session.setAttribute("list", list);
+        session.setAttribute("alias", list);
+
+        Map<String, Object> external = new HashMap<>();
+        Map<byte[], byte[]> hash = new HashMap<>();
+        hash.put(bytes(DeltaSessionSerializer.METADATA_FIELD), DeltaSessionSerializer.writeMetadata(session, external));
+        for (Map.Entry<String, Object> e : external.entrySet()) {
+            hash.put(bytes(DeltaSessionSerializer.attributeField(e.getKey())), DeltaSessionSerializer.writeAttribute(e.getValue()));
+        }
+        byte[] payload = DeltaSessionSerializer.pack(hash);
+
+        // when
+        StandardSession restored = new StandardSession(manager);
+        DeltaSessionSerializer.read(DeltaSessionSerializer.unpack(payload), restored, ObjectInputStream::new);
+
+        // then
+        assertThat(DeltaSessionSerializer.isPacked(payload)).isTrue();
+        assertThat(restored.getIdInternal()).isEqualTo("s1");
+        assertThat(restored.getAttribute("name")).isEqualTo("val");
+        assertThat(restored.getAttribute("count")).isEqualTo(42);
+        assertThat(restored.getAttribute("list")).isEqualTo(list);
+        assertThat(restored.getAttribute("alias")).isSameAs(restored.getAttribute("list"));
+    }
+
+    private StandardSession createSession(String id) {
+        StandardSession session = new StandardSession(manager);
+        session.setValid(true);
+        session.setCreationTime(System.currentTimeMillis());
+        session.setMaxInactiveInterval(60);
+        session.setId(id, false);
+        return session;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
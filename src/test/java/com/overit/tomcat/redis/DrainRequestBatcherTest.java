@@ -0,0 +1,102 @@
+package com.overit.tomcat.redis;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DrainRequestBatcherTest {
+
+    @Test
+    void send_givenManyRequestsWithinTheWindow_shouldPublishASingleMessage() throws Exception {
+        // given
+        List<String> messages = new CopyOnWriteArrayList<>();
+        DrainRequestBatcher batcher = new DrainRequestBatcher((channel, message) -> {
+            messages.add(channel + ":" + message);
+            return 2;
+        }, 200);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+
+        try {
+            // when
+            Future<Long> a = executor.submit(() -> batcher.send("c", "a"));
+            Future<Long> b = executor.submit(() -> batcher.send("c", "b"));
+            Future<Long> other = executor.submit(() -> batcher.send("d", "a"));
+
+            // then
+            assertThat(a.get()).isEqualTo(2);
+            assertThat(b.get()).isEqualTo(2);
+            assertThat(other.get()).isEqualTo(2);
+            assertThat(messages).hasSize(2).contains("d:a").containsAnyOf("c:a,b", "c:b,a");
+        } finally {
+            executor.shutdown();
+            batcher.stop();
+        }
+    }
+
+    @Test
+    void send_whenTheBatchIsFull_shouldPublishItImmediately() throws InterruptedException {
+        // given
+        List<String> messages = new CopyOnWriteArrayList<>();
+        DrainRequestBatcher batcher = new DrainRequestBatcher((channel, message) -> {
+            messages.add(message);
+            return 1;
+        }, 60_000);
+        ExecutorService executor = Executors.newFixedThreadPool(DrainRequestBatcher.MAX_BATCH_SIZE);
+
+        try {
+            // when
+            for (int i = 0; i < DrainRequestBatcher.MAX_BATCH_SIZE; i++) {
+                String id = "s" + i;
+                executor.execute(() -> batcher.send("c", id));
+            }
+            executor.shutdown();
+
+            // then
+            assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(messages).hasSize(1);
+            assertThat(DrainRequestBatcher.split(messages.get(0))).hasSize(DrainRequestBatcher.MAX_BATCH_SIZE);
+        } finally {
+            batcher.stop();
+        }
+    }
+
+    @Test
+    void send_whenTheWindowIsDisabled_shouldPublishEachRequest() {
+        // given
+        List<String> messages = new CopyOnWriteArrayList<>();
+        DrainRequestBatcher batcher = new DrainRequestBatcher((channel, message) -> {
+            messages.add(message);
+            return 1;
+        }, 0);
+
+        // when
+        batcher.send("c", "a");
+        batcher.send("c", "b");
+
+        // then
+        assertThat(messages).containsExactly("a", "b");
+    }
+
+    @Test
+    void send_whenThePublishFails_shouldThrowTheError() {
+        // given
+        DrainRequestBatcher batcher = new DrainRequestBatcher((channel, message) -> {
+            throw new IllegalStateException("broken");
+        }, 1);
+
+        try {
+            // when, then
+            assertThatThrownBy(() -> batcher.send("c", "a")).isInstanceOf(IllegalStateException.class);
+        } finally {
+            batcher.stop();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.overit.tomcat.redis;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ExpiringSetTest {
+
+    @Test
+    void contains_givenAnAddedKey_shouldReturnTrue() {
+        // given
+        ExpiringSet set = new ExpiringSet(60_000, 10);
+
+        // when
+        set.add("a");
+
+        // then
+        assertThat(set.contains("a")).isTrue();
+        assertThat(set.contains("b")).isFalse();
+    }
+
+    @Test
+    void contains_givenAnExpiredKey_shouldReturnFalseAndForgetIt() throws InterruptedException {
+        // given
+        ExpiringSet set = new ExpiringSet(50, 10);
+        set.add("a");
+
+        // when
+        TimeUnit.MILLISECONDS.sleep(100);
+
+        // then
+        assertThat(set.contains("a")).isFalse();
+        assertThat(set.size()).isZero();
+    }
+
+    @Test
+    void add_whenTheSetIsFull_shouldEvictTheOldestEntries() throws InterruptedException {
+        // given
+        ExpiringSet set = new ExpiringSet(60_000, 3);
+        set.add("a");
+        TimeUnit.MILLISECONDS.sleep(5);
+        set.add("b");
+        set.add("c");
+
+        // when
+        set.add("d");
+
+        // then
+        assertThat(set.size()).isLessThanOrEqualTo(3);
+        assertThat(set.contains("a")).isFalse();
+        assertThat(set.contains("d")).isTrue();
+    }
+
+    @Test
+    void add_whenDisabled_shouldNotAddAnything() {
+        // given
+        ExpiringSet set = new ExpiringSet(0, 10);
+
+        // when
+        set.add("a");
+
+        // then
+        assertThat(set.contains("a")).isFalse();
+        assertThat(set.size()).isZero();
+    }
+
+    @Test
+    void remove_givenAnAddedKey_shouldForgetIt() {
+        // given
+        ExpiringSet set = new ExpiringSet(60_000, 10);
+        set.add("a");
+
+        // when
+        set.remove("a");
+
+        // then
+        assertThat(set.contains("a")).isFalse();
+    }
+}
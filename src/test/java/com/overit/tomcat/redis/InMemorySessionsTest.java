@@ -0,0 +1,64 @@
+package com.overit.tomcat.redis;
+
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+import org.apache.catalina.Store;
+import org.apache.catalina.session.StandardManager;
+import org.apache.catalina.session.StandardSession;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class InMemorySessionsTest {
+
+    @Test
+    void find_givenARedisPersistentManager_shouldNotLoadTheMissingSessions() throws Exception {
+        // given
+        RedisPersistentManager manager = new RedisPersistentManager();
+        Store store = mock(Store.class);
+        manager.setStore(store);
+        StandardSession session = new StandardSession(manager);
+        session.setId("a", false);
+
+        // when
+        Session found = InMemorySessions.find(manager, "a");
+
+        // then
+        assertThat(found).isSameAs(session);
+        assertThat(InMemorySessions.find(manager, "b")).isNull();
+        verify(store, never()).load(any());
+    }
+
+    @Test
+    void find_givenASessionInMemory_shouldReturnIt() {
+        // given
+        StandardManager manager = new StandardManager();
+        StandardSession session = new StandardSession(manager);
+        session.setId("a", false);
+
+        // when
+        Session found = InMemorySessions.find(manager, "a");
+
+        // then
+        assertThat(found).isSameAs(session);
+        assertThat(InMemorySessions.find(manager, "b")).isNull();
+    }
+
+    @Test
+    void find_givenAnyOtherManager_shouldScanItsSessions() {
+        // given
+        Manager manager = mock(Manager.class);
+        StandardSession session = new StandardSession(null);
+        session.setId("a", false);
+        when(manager.findSessions()).thenReturn(new Session[]{session});
+
+        // when
+        Session found = InMemorySessions.find(manager, "a");
+
+        // then
+        assertThat(found).isSameAs(session);
+        assertThat(InMemorySessions.find(manager, "b")).isNull();
+    }
+}
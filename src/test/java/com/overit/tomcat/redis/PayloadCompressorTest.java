@@ -0,0 +1,86 @@
+package com.overit.tomcat.redis;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PayloadCompressorTest {
+
+    @Test
+    void compress_givenAPayloadBelowTheThreshold_shouldKeepItAsIs() {
+        PayloadCompressor compressor = new PayloadCompressor();
+        compressor.setThreshold(1024);
+        byte[] payload = repeated(100);
+
+        assertThat(compressor.compress(payload)).isSameAs(payload);
+        assertThat(compressor.getCompressedPayloads()).isZero();
+    }
+
+    @Test
+    void decompress_givenACompressedPayload_shouldRestoreIt() throws IOException {
+        PayloadCompressor compressor = new PayloadCompressor();
+        compressor.setThreshold(0);
+        byte[] payload = repeated(10000);
+
+        byte[] compressed = compressor.compress(payload, payload.length);
+
+        assertThat(PayloadCompressor.isCompressed(compressed)).isTrue();
+        assertThat(compressed.length).isLessThan(payload.length);
+        assertThat(compressor.decompress(compressed)).isEqualTo(payload);
+        assertThat(compressor.getCompressedPayloads()).isEqualTo(1);
+        assertThat(compressor.getCompressionRatio()).isLessThan(1);
+    }
+
+    @Test
+    void compress_givenAnIncompressiblePayload_shouldKeepItAsIs() throws IOException {
+        PayloadCompressor compressor = new PayloadCompressor();
+        compressor.setThreshold(0);
+        byte[] payload = new byte[1000];
+        new Random(0).nextBytes(payload);
+
+        byte[] compressed = compressor.compress(payload);
+
+        assertThat(compressed).isSameAs(payload);
+        assertThat(compressor.decompress(compressed)).isSameAs(payload);
+    }
+
+    @Test
+    void decompress_givenAPayloadCompressedWithADictionary_shouldRequireTheSameDictionary() throws IOException {
+        List<byte[]> samples = new ArrayList<>();
+        for (int i = 0; i < 20; i++) samples.add(sample(i));
+        byte[] dictionary = CompressionDictionary.train(samples, 4096);
+
+        PayloadCompressor plain = new PayloadCompressor();
+        plain.setThreshold(0);
+        PayloadCompressor trained = new PayloadCompressor();
+        trained.setThreshold(0);
+        trained.setDictionary(dictionary);
+
+        byte[] payload = sample(100);
+        byte[] compressed = trained.compress(payload);
+
+        assertThat(dictionary).isNotEmpty();
+        assertThat(compressed.length).isLessThan(plain.compress(payload).length);
+        assertThat(trained.decompress(compressed)).isEqualTo(payload);
+        assertThatThrownBy(() -> plain.decompress(compressed)).isInstanceOf(IOException.class);
+    }
+
+    private static byte[] repeated(int size) {
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) payload[i] = (byte) ('a' + i % 7);
+        return payload;
+    }
+
+    private static byte[] sample(int i) {
+        return ("org.apache.catalina.session.StandardSession com.example.ShoppingCart items java.util.ArrayList "
+            + "user-" + i + " java.lang.Integer value " + i * 31 + " com.example.Preferences locale it_IT theme dark")
+            .getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -5,6 +5,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 
 import java.util.Set;
 
@@ -37,6 +38,20 @@ class RedisConnectorTest {
         assertThrows(Exception.class, () -> instance.execute(Jedis::ping));
     }
 
+    @Test
+    void publishWhenRedisIsUnreachable() {
+        RedisConnector.dispose();
+        RedisConnector.setUrl("redis://localhost:1");
+        try {
+            RedisConnector instance = RedisConnector.instance();
+            assertThrows(JedisConnectionException.class, () -> instance.publish("channel", "message"));
+            assertThrows(JedisConnectionException.class, () -> instance.publish("channel", "message"));
+        } finally {
+            RedisConnector.dispose();
+            RedisConnector.setUrl("redis://localhost:6379");
+        }
+    }
+
     @Test
     void execute() {
         String pong = RedisConnector.instance().execute(Jedis::ping);
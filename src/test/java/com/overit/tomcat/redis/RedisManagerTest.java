@@ -9,9 +9,12 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class RedisManagerTest {
@@ -62,6 +65,20 @@ public class RedisManagerTest {
         assertTrue(keys.containsAll(Stream.of("s1", "s2").map(this::getSessionKey).toList()));
     }
 
+    @Test
+    void unloadBatchesOfShorterSessions() throws Exception {
+        manager.setUnloadBatchSize(1);
+        manager.start();
+        manager.createSession("s1").setMaxInactiveInterval(60);
+        TimeUnit.MILLISECONDS.sleep(10);
+        // the most recently used session is written first
+        manager.createSession("s2").setMaxInactiveInterval(3600);
+        manager.stop();
+
+        long ttl = RedisConnector.instance().execute(j -> j.pttl("tomcat:sessions:unloaded"));
+        assertTrue(ttl > 60_000);
+    }
+
     @Test
     void load() throws Exception {
         manager.start();
@@ -71,6 +88,7 @@ public class RedisManagerTest {
 
         assertEquals(1, manager.getActiveSessions());
         assertEquals("s1", manager.findSession("s1").getId());
+        assertEquals(0L, unloadedCount());
     }
 
     @Test
@@ -86,8 +104,100 @@ public class RedisManagerTest {
         assertEquals("s2", manager.findSession("s2").getId());
     }
 
+    @Test
+    void loadAfterTheScriptsAreFlushed() throws Exception {
+        manager.start();
+        manager.createSession("s1");
+        manager.createSession("s2");
+        manager.stop();
+        RedisConnector.instance().executeOnPrimaries(j -> j.scriptFlush());
+        manager.start();
+
+        assertEquals(2, manager.getActiveSessions());
+        assertEquals("s1", manager.findSession("s1").getId());
+    }
+
+    @Test
+    void unloadDropsTheExpiredSessionsFromTheIndex() throws Exception {
+        String index = "tomcat:sessions:unloaded";
+        Long added = RedisConnector.instance().execute(index, j -> j.zadd(index, 1, "expired"));
+        assertEquals(1L, added);
+        manager.start();
+        manager.createSession("s1");
+        manager.stop();
+
+        Double score = RedisConnector.instance().execute(index, j -> j.zscore(index, "expired"));
+        assertNull(score);
+        assertEquals(1L, unloadedCount());
+    }
+
+    @Test
+    void lazyLoad() throws Exception {
+        manager.start();
+        manager.createSession("s1");
+        manager.stop();
+        manager.setLazyLoad(true);
+        manager.start();
+
+        assertEquals(0, manager.getActiveSessions());
+        assertEquals("s1", manager.findSession("s1").getId());
+        assertEquals(1, manager.getActiveSessions());
+        assertTrue(RedisConnector.instance().keys(getSessionKey("*"), "string").isEmpty());
+        assertEquals(0L, unloadedCount());
+    }
+
+    @Test
+    void preloadMaxSessions() throws Exception {
+        manager.start();
+        manager.createSession("s1");
+        manager.createSession("s2");
+        manager.stop();
+        manager.setPreloadMaxSessions(1);
+        manager.start();
+
+        assertEquals(1, manager.getActiveSessions());
+        assertEquals("s1", manager.findSession("s1").getId());
+        assertEquals("s2", manager.findSession("s2").getId());
+        assertEquals(2, manager.getActiveSessions());
+    }
+
+    @Test
+    void backgroundLoad() throws Exception {
+        manager.start();
+        manager.createSession("s1");
+        manager.createSession("s2");
+        manager.stop();
+        manager.setBackgroundLoad(true);
+        manager.start();
+
+        assertEquals("s1", manager.findSession("s1").getId());
+        assertEquals("s2", manager.findSession("s2").getId());
+        assertEquals(2, manager.getActiveSessions());
+        assertTrue(RedisConnector.instance().keys(getSessionKey("*"), "string").isEmpty());
+    }
+
+    @Test
+    void backgroundLoadRacingTheLookups() throws Exception {
+        int count = 3000;
+        manager.start();
+        for (int i = 0; i < count; i++) manager.createSession("s" + i);
+        manager.stop();
+        manager.setBackgroundLoad(true);
+        manager.start();
+
+        // looked up while the background restore takes them from Redis
+        for (int i = 0; i < count; i++) assertNotNull(manager.findSession("s" + i), "s" + i);
+        assertEquals(count, manager.getActiveSessions());
+    }
+
 
     private String getSessionKey(String sessionId) {
         return "tomcat:session:" + sessionId;
     }
+
+    private long unloadedCount() {
+        String index = "tomcat:sessions:unloaded";
+        Long count = RedisConnector.instance().execute(index, j -> j.zcard(index));
+        return count;
+    }
 }
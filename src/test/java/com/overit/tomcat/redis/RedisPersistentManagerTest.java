@@ -0,0 +1,33 @@
+package com.overit.tomcat.redis;
+
+import com.overit.tomcat.TesterContext;
+import com.overit.tomcat.TesterServletContext;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RedisPersistentManagerTest {
+
+    @Test
+    void start_givenADisabledStore_shouldDisableTheSwap() throws Exception {
+        // given
+        TesterContext testerContext = new TesterContext();
+        testerContext.setServletContext(new TesterServletContext());
+        RedisPersistentManager manager = new RedisPersistentManager();
+        manager.setContext(testerContext);
+        manager.setMaxIdleSwap(60);
+        RedisStore store = new RedisStore();
+        store.setActivation("manual");
+        manager.setStore(store);
+
+        try {
+            // when
+            store.start();
+
+            // then
+            assertThat(manager.getMaxIdleSwap()).isEqualTo(-1);
+        } finally {
+            store.stop();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.overit.tomcat.redis;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RedisScriptTest {
+
+    @Test
+    void getSha_shouldMatchTheDigestComputedByRedis() {
+        // SCRIPT LOAD "return 1"
+        assertThat(new RedisScript("return 1").getSha()).isEqualTo("e0e1f9fabfc9d4800c877a703b823ac0578ff8db");
+    }
+}
@@ -0,0 +1,129 @@
+package com.overit.tomcat.redis;
+
+import com.overit.tomcat.TesterContext;
+import com.overit.tomcat.TesterServletContext;
+import org.apache.catalina.Session;
+import org.apache.catalina.session.PersistentManager;
+import org.apache.catalina.session.StandardSession;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import redis.clients.jedis.util.JedisClusterCRC16;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * The key layout of the cluster mode, and the store against a Redis Cluster. The latter tests are run only if the
+ * {@value RedisConnector#PROPERTY_CLUSTER} property is {@code true}, with the seed nodes in the
+ * {@value RedisConnector#PROPERTY_URL} property.
+ */
+class RedisStoreClusterTest {
+
+    private RedisStore store;
+    private PersistentManager manager;
+
+    @BeforeEach
+    void setUp() {
+        RedisConnector.setCluster(true);
+        TesterContext testerContext = new TesterContext();
+        testerContext.setServletContext(new TesterServletContext());
+        store = new RedisStore();
+        manager = new PersistentManager();
+        manager.setStore(store);
+        manager.setContext(testerContext);
+    }
+
+    @AfterEach
+    void tearDown() {
+        RedisConnector.setCluster(false);
+        RedisConnector.dispose();
+    }
+
+    @Test
+    void getSessionKey_givenManySessions_shouldSpreadThemAmongTheSlots() {
+        // when
+        Set<Integer> slots = new HashSet<>();
+        for (int i = 0; i < 1000; i++) slots.add(JedisClusterCRC16.getSlot(store.getSessionKey("s" + i)));
+
+        // then
+        assertThat(slots).hasSizeGreaterThan(900);
+    }
+
+    @Test
+    void getIndexKey_givenEachShard_shouldPutItInItsOwnSlot() {
+        // when
+        Set<Integer> slots = new HashSet<>();
+        for (int shard = 0; shard < 16; shard++) slots.add(JedisClusterCRC16.getSlot(store.getIndexKey(shard)));
+
+        // then
+        assertThat(slots).hasSize(16);
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = RedisConnector.PROPERTY_CLUSTER, matches = "true")
+    void save_givenManySessions_shouldIndexThemAll() throws IOException {
+        try {
+            // when
+            for (int i = 0; i < 100; i++) store.save(createSession("s" + i));
+
+            // then
+            assertThat(store.getSize()).isEqualTo(100);
+            assertThat(store.keys()).hasSize(100).contains("s0", "s99");
+        } finally {
+            store.clear();
+        }
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = RedisConnector.PROPERTY_CLUSTER, matches = "true")
+    void load_givenASavedSession_shouldRemoveItFromItsShard() throws IOException {
+        try {
+            // given
+            store.save(createSession("s1"));
+            store.save(createSession("s2"));
+
+            // when
+            Session loaded = store.load("s1");
+
+            // then
+            assertThat(loaded.getIdInternal()).isEqualTo("s1");
+            assertThat(store.keys()).containsExactly("s2");
+        } finally {
+            store.clear();
+        }
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = RedisConnector.PROPERTY_CLUSTER, matches = "true")
+    void remove_givenASavedSession_shouldRemoveItFromItsShard() throws IOException {
+        try {
+            // given
+            store.save(createSession("s1"));
+
+            // when
+            store.remove("s1");
+
+            // then
+            assertThat(store.getSize()).isZero();
+            assertThat(store.loadSession("s1")).isNull();
+        } finally {
+            store.clear();
+        }
+    }
+
+    private Session createSession(String id) {
+        StandardSession session = new StandardSession(manager);
+        session.setNew(true);
+        session.setValid(true);
+        session.setCreationTime(System.currentTimeMillis());
+        session.setMaxInactiveInterval(manager.getContext().getSessionTimeout() * 60);
+        session.setAttribute("key", "val");
+        session.setId(id);
+        return session;
+    }
+}
@@ -12,8 +12,6 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.ArgumentCaptor;
-import org.mockito.Captor;
 import org.mockito.MockedStatic;
 import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
@@ -21,6 +19,11 @@ import org.mockito.stubbing.Answer;
 
 import java.io.IOException;
 import java.io.NotSerializableException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -34,8 +37,6 @@ import static org.mockito.Mockito.*;
 public class RedisStoreTest {
     @Spy
     private RedisStore store;
-    @Captor
-    private ArgumentCaptor<Session> sessionArgumentCaptor;
 
     private PersistentManager manager;
 
@@ -143,6 +144,66 @@ public class RedisStoreTest {
         assertThat(store.keys()).containsExactlyInAnyOrder("s1", "s2", "s3");
     }
 
+    @Test
+    void save_givenAnUnchangedSession_shouldSkipTheWrite() throws IOException {
+        // given
+        store.setSkipUnchangedSaves(true);
+        Session session = createSession("s3");
+        store.save(session);
+
+        // when
+        store.save(session);
+
+        // then
+        assertThat(store.getSkippedSaves()).isEqualTo(1);
+        assertThat(store.load("s3").getIdInternal()).isEqualTo("s3");
+    }
+
+    @Test
+    void save_givenAnUnchangedSessionAndTheDefaultSettings_shouldWriteIt() throws IOException {
+        // given
+        Session session = createSession("s3");
+        store.save(session);
+
+        // when
+        store.save(session);
+
+        // then
+        assertThat(store.getSkippedSaves()).isZero();
+    }
+
+    @Test
+    void save_givenAChangedSession_shouldWriteIt() throws IOException {
+        // given
+        store.setSkipUnchangedSaves(true);
+        Session session = createSession("s3");
+        store.save(session);
+
+        // when
+        session.getSession().setAttribute("key", "changed");
+        store.save(session);
+
+        // then
+        assertThat(store.getSkippedSaves()).isZero();
+        assertThat(store.load("s3").getSession().getAttribute("key")).isEqualTo("changed");
+    }
+
+    @Test
+    void save_givenAnUnchangedSessionNoLongerStored_shouldWriteIt() throws IOException {
+        // given
+        store.setSkipUnchangedSaves(true);
+        Session session = createSession("s3");
+        store.save(session);
+        RedisConnector.instance().execute(j -> j.del("tomcat:session:s3"));
+
+        // when
+        store.save(session);
+
+        // then
+        assertThat(store.getSkippedSaves()).isZero();
+        assertThat(store.load("s3")).isNotNull();
+    }
+
     @Test
     void save_nonSerializableSession_shouldThrows() {
         // given
@@ -154,12 +215,41 @@ public class RedisStoreTest {
             .isThrownBy(() -> store.save(session));
     }
 
+    @Test
+    void save_sessionWithNestedNonSerializableObject_shouldThrows() {
+        // given
+        Session session = createSession("s");
+        session.getSession().setAttribute("list", new ArrayList<>(List.of(new Object())));
+
+        // when()
+        Assertions.assertThatExceptionOfType(NotSerializableException.class)
+            .isThrownBy(() -> store.save(session));
+    }
+
     @Test
     void load() {
         Session s2 = store.load("s2");
         assertThat(s2.getIdInternal()).isEqualTo("s2");
     }
 
+    @Test
+    void load_givenASessionSavedInDeltaMode_shouldRestoreIt() throws IOException {
+        // given
+        store.setDeltaSave(true);
+        Session session = createSession("delta");
+        session.getSession().setAttribute("list", new ArrayList<>(List.of("a", "b")));
+        store.save(session);
+        store.save(session);
+
+        // when
+        Session loaded = store.load("delta");
+
+        // then
+        assertThat(loaded.getIdInternal()).isEqualTo("delta");
+        assertThat(loaded.getSession().getAttribute("key")).isEqualTo("val");
+        assertThat(loaded.getSession().getAttribute("list")).isEqualTo(List.of("a", "b"));
+    }
+
     @Test
     void load_havingNoStoredSessionAndNoOneCanDrainIt_shouldReturnNullIn2Seconds() {
         // given
@@ -174,15 +264,76 @@ public class RedisStoreTest {
         assertThat(end - start).isBetween(1000L, 1500L);
     }
 
+    @Test
+    void load_havingAlreadyLookedForAnUnknownSession_shouldReturnNullImmediately() {
+        // given
+        store.load("unknown");
+        long start = System.currentTimeMillis();
+
+        // when
+        Session session = store.load("unknown");
+
+        // then
+        long end = System.currentTimeMillis();
+        assertThat(session).isNull();
+        assertThat(end - start).isLessThan(100L);
+        verify(store, times(1)).sendSessionDrainingRequest(eq("unknown"), anyString());
+    }
+
+    @Test
+    void load_havingAlreadyLookedForASessionSavedLaterByAnotherNode_shouldReturnIt() throws IOException {
+        // given
+        store.save(createSession("late"));
+        byte[] raw = store.loadSession("late");
+        store.load("late");
+        RedisConnector.instance().execute(j -> j.set("tomcat:session:late".getBytes(StandardCharsets.UTF_8), raw));
+
+        // when
+        Session session = store.load("late");
+
+        // then
+        assertThat(session.getIdInternal()).isEqualTo("late");
+    }
+
+    @Test
+    void load_havingKnownSessionsFilterAndNeverSeenSession_shouldNotAskForDraining() {
+        // given
+        store.setKnownSessionsFilter(true);
+        long start = System.currentTimeMillis();
+
+        // when
+        Session session = store.load("unknown");
+
+        // then
+        long end = System.currentTimeMillis();
+        assertThat(session).isNull();
+        assertThat(end - start).isLessThan(500L);
+        verify(store, never()).sendSessionDrainingRequest(any(), any());
+    }
+
+    @Test
+    void isKnownSession_givenASavedSession_shouldReturnTrue() throws IOException {
+        // given
+        store.setKnownSessionsFilter(true);
+
+        // when
+        store.save(createSession("known"));
+
+        // then
+        assertThat(store.isKnownSession("known")).isTrue();
+    }
+
     @Test
     void load_havingNoStoredSessionButSomeoneThatCanDrainIt_shouldReturnNotNull() throws Exception {
         // give
         String sessionId = "s4";
         AtomicLong start = new AtomicLong();
         AtomicLong stop = new AtomicLong();
-        when(store.askForSessionDraining(eq(sessionId), anyLong(), eq(true))).thenAnswer(updateTimeAndCallRealMethod(start));
-        when(store.awaitAndLoad(eq(sessionId), anyLong())).thenAnswer(updateTimeAndCallRealMethod(stop));
-        scheduleResponseExecution(sessionId);
+        when(store.askForSessionDraining(eq(sessionId), any(), anyLong())).thenAnswer(invocation -> {
+            scheduleResponseExecution(invocation.<RedisStore.DrainReplies>getArgument(1).getKey());
+            return updateTimeAndCallRealMethod(start).answer(invocation);
+        });
+        when(store.awaitAndLoad(eq(sessionId), any(), anyLong())).thenAnswer(updateTimeAndCallRealMethod(stop));
 
         // when
         Session session = store.load(sessionId);
@@ -197,34 +348,39 @@ public class RedisStoreTest {
     void onSessionDrainRequest_whenReceiveARequestNotification_shouldCallTheMethod() throws InterruptedException {
         // when
         store.subscribeToSessionDrainRequests();
-        store.sendSessionDrainingRequest("");
+        store.sendSessionDrainingRequest("", store.getDrainReplyKey());
         TimeUnit.MILLISECONDS.sleep(100);
 
         // then
-        verify(store).onSessionDrainRequest("");
+        verify(store).onSessionDrainRequests(anyList());
     }
 
     @Test
     void onSessionDrainRequest_whenReceiveARequestNotificationOfUnknownSession_shouldNotWriteAnything() {
+        // given
+        String key = store.getDrainReplyKey();
+
         // when
-        store.sendSessionDrainingRequest("unknown");
+        store.sendSessionDrainingRequest("unknown", key);
 
         // then
-        String key = store.getSessionRequestKey("unknown");
-        String value = RedisConnector.instance().execute(client -> client.get(key));
+        String value = RedisConnector.instance().execute(client -> client.lindex(key, 0));
         assertThat(value).isNull();
     }
 
     @Test
     void onSessionDrainRequest_whenReceiveARequestNotification_shouldAddResponseIntoRedisEntry() throws InterruptedException {
+        // given
+        store.subscribeToSessionDrainRequests();
+        String key = store.getDrainReplyKey();
+
         // when
-        store.sendSessionDrainingRequest("s1");
+        store.sendSessionDrainingRequest("s1", key);
         TimeUnit.MILLISECONDS.sleep(100);
 
         // then
-        String key = store.getSessionRequestKey("s1");
-        String value = RedisConnector.instance().execute(client -> client.get(key));
-        assertThat(value).isEqualTo("true");
+        String value = RedisConnector.instance().execute(client -> client.lindex(key, 0));
+        assertThat(value).isEqualTo(RedisStore.DRAIN_ACK);
     }
 
     @Test
@@ -232,7 +388,7 @@ public class RedisStoreTest {
         // when
         store.subscribeToSessionDrainRequests();
         createSession("sd");
-        store.sendSessionDrainingRequest("sd");
+        store.sendSessionDrainingRequest("sd", store.getDrainReplyKey());
         TimeUnit.MILLISECONDS.sleep(500);
 
         // then
@@ -250,8 +406,59 @@ public class RedisStoreTest {
         store.onSessionDrainRequest("s3");
 
         // then
-        verify(store, atLeastOnce()).save(sessionArgumentCaptor.capture());
-        assertThat(sessionArgumentCaptor.getValue().isValid()).isFalse();
+        assertThat(session.isValid()).isTrue();
+        verify(store, timeout(2000)).remove("s3");
+        assertThat(session.isValid()).isFalse();
+    }
+
+    @Test
+    void onSessionDrainRequests_givenManyRequestsOfTheSameSession_shouldReplyToEachOne() {
+        // given
+        createSession("s5");
+        String first = store.getDrainReplyKey();
+        String second = store.getDrainReplyKey();
+
+        // when
+        store.onSessionDrainRequests(List.of(
+            "s5" + RedisStore.REPLY_KEY_SEPARATOR + first,
+            "s5" + RedisStore.REPLY_KEY_SEPARATOR + second));
+
+        // then
+        List<String> firstReplies = RedisConnector.instance().execute(j -> j.lrange(first, 0, -1));
+        List<String> secondReplies = RedisConnector.instance().execute(j -> j.lrange(second, 0, -1));
+        assertThat(firstReplies).containsExactly(RedisStore.DRAIN_ACK, RedisStore.DRAIN_READY);
+        assertThat(secondReplies).containsExactly(RedisStore.DRAIN_ACK, RedisStore.DRAIN_READY);
+    }
+
+    @Test
+    void drainReplies_givenAReply_shouldReturnItAndForgetTheListOnceClosed() {
+        // given
+        String key = store.getDrainReplyKey();
+        RedisConnector.instance().execute(j -> j.rpush(key, RedisStore.DRAIN_ACK, RedisStore.DRAIN_READY));
+
+        // when
+        String reply;
+        try (RedisStore.DrainReplies replies = new RedisStore.DrainReplies(RedisConnector.instance(), key)) {
+            reply = replies.await(100);
+        }
+
+        // then
+        assertThat(reply).isEqualTo(RedisStore.DRAIN_ACK);
+        Boolean exists = RedisConnector.instance().execute(j -> j.exists(key));
+        assertThat(exists).isFalse();
+    }
+
+    @Test
+    void onSessionDrainRequest_whenTheSessionIsDrained_shouldKeepItInRedis() {
+        // given
+        createSession("s5");
+
+        // when
+        store.onSessionDrainRequest("s5");
+
+        // then
+        assertThat(store.getDrainedSessions()).isEqualTo(1);
+        assertThat(store.loadSession("s5")).isNotEmpty();
     }
 
     @Test
@@ -301,6 +508,125 @@ public class RedisStoreTest {
         assertThat(s.isValid()).isFalse();
     }
 
+    @Test
+    void loadSession_givenASavedSession_shouldRecordThisNodeAsItsOwner() {
+        // when
+        store.loadSession("s1");
+
+        // then
+        String owner = RedisConnector.instance().execute(j -> j.hget("tomcat:sessions:owners", "s1"));
+        assertThat(owner).isEqualTo(store.getSubscriberServiceManager().getNodeId());
+    }
+
+    @Test
+    void remove_givenAnOwnedSession_shouldForgetItsOwner() {
+        // given
+        store.loadSession("s1");
+
+        // when
+        store.remove("s1");
+
+        // then
+        Boolean owned = RedisConnector.instance().execute(j -> j.hexists("tomcat:sessions:owners", "s1"));
+        assertThat(owned).isFalse();
+    }
+
+    @Test
+    void sendSessionDrainingRequest_givenAnOwnerNoLongerRunning_shouldForgetIt() {
+        // given
+        RedisConnector.instance().execute(j -> j.hset("tomcat:sessions:owners", "s9", "gone"));
+
+        // when
+        boolean sent = store.sendSessionDrainingRequest("s9", store.getDrainReplyKey());
+
+        // then
+        assertThat(sent).isFalse();
+        Boolean owned = RedisConnector.instance().execute(j -> j.hexists("tomcat:sessions:owners", "s9"));
+        assertThat(owned).isFalse();
+    }
+
+    @Test
+    void onSessionDrainRequest_givenARequestIntoTheInboxOfThisNode_shouldSaveTheSession() throws InterruptedException {
+        // given
+        store.subscribeToSessionDrainRequests();
+        createSession("sd");
+        RedisSubscriberServiceManager subscribers = store.getSubscriberServiceManager();
+
+        // when
+        subscribers.publish(subscribers.getInboxChannel(subscribers.getNodeId()), "sd");
+        TimeUnit.MILLISECONDS.sleep(500);
+
+        // then
+        verify(store).onSessionDrainRequest("sd");
+        assertThat(store.loadSession("sd")).isNotEmpty();
+    }
+
+    @Test
+    void startHeartbeat_shouldRecordThisNodeAsAliveUntilStopped() throws InterruptedException {
+        // given
+        String node = store.getSubscriberServiceManager().getNodeId();
+
+        // when
+        store.startHeartbeat();
+        TimeUnit.MILLISECONDS.sleep(100);
+
+        // then
+        Double alive = RedisConnector.instance().execute(j -> j.zscore("tomcat:nodes", node));
+        assertThat(alive).isNotNull();
+        store.stopHeartbeat();
+        alive = RedisConnector.instance().execute(j -> j.zscore("tomcat:nodes", node));
+        assertThat(alive).isNull();
+    }
+
+    @Test
+    void isSingleNode_havingTheDetectionDisabled_shouldReturnFalse() throws InterruptedException {
+        // given
+        store.startHeartbeat();
+        TimeUnit.MILLISECONDS.sleep(100);
+
+        // when
+        boolean single = store.isSingleNode();
+
+        // then
+        assertThat(single).isFalse();
+        store.stopHeartbeat();
+    }
+
+    @Test
+    void isSingleNode_givenAJustStartedNode_shouldReturnFalse() throws InterruptedException {
+        // given
+        store.setSingleNodeDetection(true);
+        store.startHeartbeat();
+        TimeUnit.MILLISECONDS.sleep(100);
+
+        // when
+        boolean single = store.isSingleNode();
+
+        // then
+        assertThat(single).isFalse();
+        store.stopHeartbeat();
+    }
+
+    @Test
+    void pruneOwners_givenStaleOwners_shouldForgetThemOnly() throws InterruptedException {
+        // given
+        String node = store.getSubscriberServiceManager().getNodeId();
+        store.startHeartbeat();
+        TimeUnit.MILLISECONDS.sleep(100);
+        RedisConnector.instance().execute(j -> j.hset("tomcat:sessions:owners", Map.of(
+            "s1", node, // in memory
+            "s7", node, // neither in memory nor stored
+            "s8", "gone"))); // owned by a node no longer running
+
+        // when
+        store.pruneOwners();
+
+        // then
+        Set<String> owned = RedisConnector.instance().execute(j -> j.hkeys("tomcat:sessions:owners"));
+        assertThat(owned).containsExactly("s1");
+        store.stopHeartbeat();
+    }
+
     @Test
     void setPrefix_givenAString_shouldSetIt() {
         // given
@@ -387,13 +713,13 @@ public class RedisStoreTest {
         return session;
     }
 
-    private void scheduleResponseExecution(String sessionId) {
-        String key = store.getSessionRequestKey(sessionId);
-        RedisConnector.instance().execute(j -> j.set(key, "true"));
+    private void scheduleResponseExecution(String key) {
+        RedisConnector.instance().execute(j -> j.rpush(key, RedisStore.DRAIN_ACK));
         Executors.newSingleThreadScheduledExecutor().schedule(
             () -> {
                 try {
                     store.save(createSession("s4"));
+                    RedisConnector.instance().execute(j -> j.rpush(key, RedisStore.DRAIN_READY));
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
@@ -410,9 +736,9 @@ public class RedisStoreTest {
     }
 
     private void simulateTaskProcessingOnSession(Session session) {
-        session.getSession().setAttribute("processing", true);
+        store.getActiveRequests().begin(session.getIdInternal());
         Executors.newSingleThreadScheduledExecutor().schedule(
-            () -> session.getSession().setAttribute("processing", false),
+            () -> store.getActiveRequests().end(session.getIdInternal()),
             1L, TimeUnit.SECONDS
         );
     }
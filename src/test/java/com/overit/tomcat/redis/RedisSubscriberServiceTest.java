@@ -0,0 +1,203 @@
+package com.overit.tomcat.redis;
+
+import org.apache.catalina.Store;
+import org.junit.jupiter.api.Test;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.params.XReadGroupParams;
+import redis.clients.jedis.resps.StreamGroupInfo;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+
+class RedisSubscriberServiceTest {
+
+    @Test
+    void backoff_givenTheFirstAttempt_shouldWaitAboutTheMinimumTime() {
+        for (int i = 0; i < 100; i++) {
+            assertThat(RedisSubscriberService.backoff(0))
+                .isBetween(RedisSubscriberService.MIN_BACKOFF / 2, RedisSubscriberService.MIN_BACKOFF);
+        }
+    }
+
+    @Test
+    void backoff_givenManyAttempts_shouldNotExceedTheMaximumTime() {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            assertThat(RedisSubscriberService.backoff(attempt)).isLessThanOrEqualTo(RedisSubscriberService.MAX_BACKOFF);
+        }
+        assertThat(RedisSubscriberService.backoff(100)).isGreaterThanOrEqualTo(RedisSubscriberService.MAX_BACKOFF / 2);
+    }
+
+    @Test
+    void dispatch_givenManyRequestsForTheSameSession_shouldCollapseTheWaitingOnes() throws InterruptedException {
+        // given
+        RedisSubscriberService service = new RedisSubscriberService();
+        CountDownLatch busy = new CountDownLatch(1);
+        List<String> handled = new CopyOnWriteArrayList<>();
+        service.subscribe(mock(Store.class), ids -> {
+            try {
+                busy.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            handled.addAll(ids);
+        });
+
+        try {
+            // when
+            for (int i = 0; i < RedisSubscriberService.DEFAULT_HANDLER_THREADS; i++) service.dispatch(List.of("busy" + i));
+            for (int i = 0; i < 10; i++) service.dispatch(List.of("a"));
+            busy.countDown();
+            TimeUnit.MILLISECONDS.sleep(500);
+
+            // then
+            assertThat(handled).filteredOn("a"::equals).hasSize(1);
+            assertThat(handled).hasSize(RedisSubscriberService.DEFAULT_HANDLER_THREADS + 1);
+        } finally {
+            service.unsubscribe();
+        }
+    }
+
+    @Test
+    void execute_givenAFullPool_shouldNotRunTheTaskInTheCallingThread() throws InterruptedException {
+        // given
+        RedisSubscriberService service = new RedisSubscriberService();
+        CountDownLatch busy = new CountDownLatch(1);
+        Runnable blocked = () -> {
+            try {
+                busy.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        CountDownLatch ran = new CountDownLatch(1);
+        List<Thread> runners = new CopyOnWriteArrayList<>();
+
+        try {
+            // when
+            for (int i = 0; i < RedisSubscriberService.DEFAULT_HANDLER_THREADS + 1000; i++) service.execute(blocked);
+            service.execute(() -> {
+                runners.add(Thread.currentThread());
+                ran.countDown();
+            });
+
+            // then
+            assertThat(ran.await(1, TimeUnit.SECONDS)).isTrue();
+            assertThat(runners).doesNotContain(Thread.currentThread());
+        } finally {
+            busy.countDown();
+            service.unsubscribe();
+        }
+    }
+
+    @Test
+    void consumeStreams_givenRequestsToAllTheNodesAndToThisOne_shouldHandleThemAll() throws InterruptedException {
+        // given
+        RedisSubscriberService.setTransport(RedisSubscriberService.Transport.STREAMS);
+        RedisSubscriberService service = new RedisSubscriberService();
+        List<String> handled = new CopyOnWriteArrayList<>();
+        service.subscribe(mock(Store.class), handled::addAll);
+        Thread consumer = new Thread(service);
+        consumer.start();
+
+        try {
+            String broadcast = service.getSubscribeChannel();
+            String inbox = service.getInboxChannel(service.getNodeId());
+            awaitGroup(broadcast, service.getNodeId());
+
+            // when
+            service.publish(broadcast, "a,b");
+            long receivers = service.publish(inbox, "c");
+            TimeUnit.MILLISECONDS.sleep(500);
+
+            // then
+            assertThat(receivers).isEqualTo(1);
+            assertThat(handled).containsExactlyInAnyOrder("a", "b", "c");
+        } finally {
+            service.unsubscribe();
+            consumer.interrupt();
+            RedisSubscriberService.setTransport(RedisSubscriberService.Transport.PUBSUB);
+            RedisConnector.instance().del("*", "stream");
+        }
+    }
+
+    @Test
+    void publish_givenTheInboxOfANodeNoLongerRunning_shouldReachNobody() {
+        // given
+        RedisSubscriberService.setTransport(RedisSubscriberService.Transport.STREAMS);
+        RedisSubscriberService service = new RedisSubscriberService();
+
+        try {
+            // when
+            long receivers = service.publish(service.getInboxChannel("gone"), "a");
+
+            // then
+            assertThat(receivers).isZero();
+        } finally {
+            RedisSubscriberService.setTransport(RedisSubscriberService.Transport.PUBSUB);
+        }
+    }
+
+    @Test
+    void pruneGroups_givenTheGroupOfACrashedNode_shouldDestroyItOnly() throws InterruptedException {
+        // given
+        String stream = "{pruneGroups}";
+        RedisConnector connector = RedisConnector.instance();
+        try {
+            connector.execute(j -> j.xadd(stream, StreamEntryID.NEW_ENTRY, Map.of("ids", "a")));
+            read(stream, "crashed");
+            TimeUnit.MILLISECONDS.sleep(300);
+            read(stream, "alive");
+            connector.execute(j -> j.xgroupCreate(stream, "starting", StreamEntryID.XGROUP_LAST_ENTRY, false));
+
+            // when
+            int pruned = connector.execute(j -> RedisSubscriberService.pruneGroups(j, stream, 200));
+
+            // then
+            List<StreamGroupInfo> groups = connector.execute(j -> j.xinfoGroups(stream));
+            assertThat(pruned).isEqualTo(1);
+            assertThat(groups).extracting(StreamGroupInfo::getName).containsExactlyInAnyOrder("alive", "starting");
+        } finally {
+            connector.execute(j -> j.del(stream));
+        }
+    }
+
+    private static void read(String stream, String node) {
+        RedisConnector.instance().execute(j -> {
+            j.xgroupCreate(stream, node, new StreamEntryID(), false);
+            return j.xreadGroup(node, node, XReadGroupParams.xReadGroupParams().count(1),
+                Map.of(stream, StreamEntryID.XREADGROUP_UNDELIVERED_ENTRY));
+        });
+    }
+
+    private static void awaitGroup(String stream, String group) throws InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            try {
+                List<StreamGroupInfo> groups = RedisConnector.instance().execute(j -> j.xinfoGroups(stream));
+                if (groups.stream().anyMatch(g -> g.getName().equals(group))) return;
+            } catch (JedisDataException e) {
+                // the stream is not created yet
+            }
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+    }
+
+    @Test
+    void inboxTtl_shouldOutliveTheLongestReconnection() {
+        assertThat(RedisSubscriberService.INBOX_TTL).isGreaterThan(RedisSubscriberService.MAX_BACKOFF + 5_000);
+    }
+
+    @Test
+    void transport_givenItsName_shouldBeParsed() {
+        assertThat(RedisSubscriberService.Transport.parse(" PubSub ")).isEqualTo(RedisSubscriberService.Transport.PUBSUB);
+        assertThat(RedisSubscriberService.Transport.parse("streams")).isEqualTo(RedisSubscriberService.Transport.STREAMS);
+        assertThatThrownBy(() -> RedisSubscriberService.Transport.parse("queue")).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,153 @@
+package com.overit.tomcat.redis;
+
+import com.overit.tomcat.TesterContext;
+import com.overit.tomcat.TesterServletContext;
+import org.apache.catalina.session.PersistentManager;
+import org.apache.catalina.session.StandardSession;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SessionCodecsTest {
+
+    private PersistentManager manager;
+
+    @BeforeEach
+    public void setUp() {
+        TesterContext testerContext = new TesterContext();
+        testerContext.setServletContext(new TesterServletContext());
+        manager = new PersistentManager();
+        manager.setContext(testerContext);
+    }
+
+    @Test
+    void encode_givenTheJdkCodec_shouldWriteAPlainSerializationStream() throws IOException {
+        // given
+        StandardSession session = createSession("s1");
+        session.setAttribute("name", "val");
+
+        // when
+        byte[] payload = encode(SessionCodecs.forName("jdk", true), session);
+
+        // then
+        assertThat(payload[0]).isEqualTo((byte) 0xAC);
+        assertThat(payload[1]).isEqualTo((byte) 0xED);
+    }
+
+    @Test
+    void decode_givenTheCompactCodec_shouldRestoreTheSession() throws Exception {
+        // given
+        StandardSession session = createSession("s1");
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("list", new ArrayList<>(List.of(1, 2L, "three")));
+        map.put("set", new HashSet<>(Set.of(UUID.randomUUID())));
+        map.put("nothing", null);
+        Date date = new Date();
+        session.setAttribute("name", "val");
+        session.setAttribute("count", 42);
+        session.setAttribute("map", map);
+        session.setAttribute("alias", map);
+        session.setAttribute("date", date);
+        session.setAttribute("bytes", new byte[]{1, 2, 3});
+        session.setAttribute("bean", new Bean(new ArrayList<>(List.of("a"))));
+
+        // when
+        byte[] payload = encode(SessionCodecs.forName("compact", true), session);
+        StandardSession restored = new StandardSession(manager);
+        SessionCodecs.decode(payload, restored, ObjectInputStream::new, SessionCodecs.forName("jdk", true));
+
+        // then
+        assertThat(payload[0]).isEqualTo(SessionCodecs.HEADER);
+        assertThat(restored.getIdInternal()).isEqualTo("s1");
+        assertThat(restored.getAttribute("name")).isEqualTo("val");
+        assertThat(restored.getAttribute("count")).isEqualTo(42);
+        assertThat(restored.getAttribute("map")).isEqualTo(map).isInstanceOf(LinkedHashMap.class);
+        assertThat(restored.getAttribute("alias")).isSameAs(restored.getAttribute("map"));
+        assertThat(restored.getAttribute("date")).isEqualTo(date);
+        assertThat(restored.getAttribute("bytes")).isEqualTo(new byte[]{1, 2, 3});
+        assertThat(((Bean) restored.getAttribute("bean")).values).containsExactly("a");
+    }
+
+    @Test
+    void decode_givenTheCompactCodecAndAnyChar_shouldRestoreTheStringsExactly() throws Exception {
+        // given
+        StandardSession session = createSession("s1");
+        String name = "unpaired \uD800 surrogate";
+        List<String> values = new ArrayList<>(List.of("nul \u0000", "accented \u00E8", "emoji \uD83D\uDE00",
+            "reversed \uDE00\uD83D", "long " + "\u20AC".repeat(70_000)));
+        session.setAttribute(name, values);
+
+        // when
+        byte[] payload = encode(SessionCodecs.forName("compact", true), session);
+        StandardSession restored = new StandardSession(manager);
+        SessionCodecs.decode(payload, restored, ObjectInputStream::new, SessionCodecs.forName("jdk", true));
+
+        // then
+        assertThat(restored.getAttribute(name)).isEqualTo(values);
+    }
+
+    @Test
+    void decode_givenAValueSharedWithASerializedObject_shouldPreserveTheSharing() throws Exception {
+        // given
+        StandardSession session = createSession("s1");
+        ArrayList<String> list = new ArrayList<>(List.of("a"));
+        session.setAttribute("bean", new Bean(list));
+        session.setAttribute("list", list);
+
+        // when
+        byte[] payload = encode(SessionCodecs.forName("compact", true), session);
+        StandardSession restored = new StandardSession(manager);
+        SessionCodecs.decode(payload, restored, ObjectInputStream::new, SessionCodecs.forName("jdk", true));
+
+        // then
+        assertThat(restored.getAttribute("list")).isSameAs(((Bean) restored.getAttribute("bean")).values);
+    }
+
+    @Test
+    void decode_givenAnUnknownFormat_shouldFail() {
+        byte[] payload = {SessionCodecs.HEADER, (byte) 200, 0};
+        StandardSession restored = new StandardSession(manager);
+
+        assertThatThrownBy(() -> SessionCodecs.decode(payload, restored, ObjectInputStream::new,
+            SessionCodecs.forName("jdk", true)))
+            .isInstanceOf(StreamCorruptedException.class);
+    }
+
+    @Test
+    void forName_givenAnInvalidClass_shouldFail() {
+        assertThatThrownBy(() -> SessionCodecs.forName("com.example.Missing", true))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private StandardSession createSession(String id) {
+        StandardSession session = new StandardSession(manager);
+        session.setValid(true);
+        session.setCreationTime(System.currentTimeMillis());
+        session.setMaxInactiveInterval(60);
+        session.setId(id, false);
+        return session;
+    }
+
+    private static byte[] encode(SessionCodec codec, StandardSession session) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        SessionCodecs.encode(codec, session, output);
+        return output.toByteArray();
+    }
+
+    private static final class Bean implements Serializable {
+        private final List<String> values;
+
+        Bean(List<String> values) {
+            this.values = values;
+        }
+    }
+}
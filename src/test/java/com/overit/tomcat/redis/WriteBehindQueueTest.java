@@ -0,0 +1,136 @@
+package com.overit.tomcat.redis;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class WriteBehindQueueTest {
+
+    private final List<WriteBehindQueue.Write> sent = new CopyOnWriteArrayList<>();
+    private WriteBehindQueue queue;
+
+    @AfterEach
+    void tearDown() {
+        if (queue != null) queue.stop();
+    }
+
+    @Test
+    void offer_givenManyWritesOfTheSameSession_shouldSendOnlyTheLatest() throws Exception {
+        // given
+        CountDownLatch paused = new CountDownLatch(1);
+        queue = new WriteBehindQueue(batch -> {
+            paused.await();
+            sent.addAll(batch);
+            return Collections.emptyList();
+        }, 10, 100, 100, WriteBehindQueue.OverflowPolicy.SYNC);
+        queue.start("test");
+
+        // when
+        queue.offer(write("s1", 1), false);
+        queue.offer(write("s1", 2), false);
+        queue.offer(write("s2", 3), false);
+
+        // then
+        assertThat(queue.get("s1").payload).containsExactly(2);
+        assertThat(queue.getCoalescedWrites()).isEqualTo(1);
+
+        paused.countDown();
+        awaitEmpty();
+        assertThat(sent).extracting(w -> w.id).containsExactlyInAnyOrder("s1", "s2");
+        assertThat(sent).filteredOn(w -> w.id.equals("s1")).extracting(w -> w.payload[0]).containsExactly((byte) 2);
+    }
+
+    @Test
+    void offer_givenASyncWrite_shouldReturnOnceSent() throws Exception {
+        // given
+        queue = new WriteBehindQueue(batch -> {
+            sent.addAll(batch);
+            return Collections.emptyList();
+        }, 10_000, 100, 100, WriteBehindQueue.OverflowPolicy.SYNC);
+        queue.start("test");
+
+        // when
+        queue.offer(write("s1", 1), true);
+
+        // then
+        assertThat(sent).extracting(w -> w.id).containsExactly("s1");
+        assertThat(queue.get("s1")).isNull();
+    }
+
+    @Test
+    void flush_givenAMissedTouch_shouldSendTheFullWrite() throws Exception {
+        // given
+        queue = new WriteBehindQueue(batch -> {
+            sent.addAll(batch);
+            List<WriteBehindQueue.Write> missed = new ArrayList<>();
+            for (WriteBehindQueue.Write w : batch) if (w.touch) missed.add(w);
+            return missed;
+        }, 10, 100, 100, WriteBehindQueue.OverflowPolicy.SYNC);
+        queue.start("test");
+
+        // when
+        queue.offer(new WriteBehindQueue.Write("s1", new byte[]{1}, Long.MAX_VALUE, 0, 1, true), true);
+
+        // then
+        assertThat(sent).extracting(w -> w.touch).containsExactly(true, false);
+    }
+
+    @Test
+    void replaceWithRemoval_givenAPendingWrite_shouldSendTheRemoval() throws Exception {
+        // given
+        CountDownLatch paused = new CountDownLatch(1);
+        queue = new WriteBehindQueue(batch -> {
+            paused.await();
+            sent.addAll(batch);
+            return Collections.emptyList();
+        }, 10, 100, 100, WriteBehindQueue.OverflowPolicy.SYNC);
+        queue.start("test");
+        queue.offer(write("s1", 1), false);
+
+        // when
+        boolean replaced = queue.replaceWithRemoval(queue.get("s1"));
+
+        // then
+        assertThat(replaced).isTrue();
+        assertThat(queue.get("s1").isRemoval()).isTrue();
+        paused.countDown();
+        awaitEmpty();
+        assertThat(sent.get(sent.size() - 1).isRemoval()).isTrue();
+    }
+
+    @Test
+    void offer_givenAFullQueue_shouldWaitUntilSent() throws IOException {
+        // given
+        queue = new WriteBehindQueue(batch -> {
+            sent.addAll(batch);
+            return Collections.emptyList();
+        }, 10_000, 100, 1, WriteBehindQueue.OverflowPolicy.SYNC);
+        queue.start("test");
+        queue.offer(write("s1", 1), false);
+
+        // when
+        queue.offer(write("s2", 2), false);
+
+        // then
+        assertThat(sent).extracting(w -> w.id).contains("s2");
+    }
+
+    private void awaitEmpty() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.size() > 0 && System.currentTimeMillis() < deadline) TimeUnit.MILLISECONDS.sleep(10);
+        assertThat(queue.size()).isZero();
+    }
+
+    private static WriteBehindQueue.Write write(String id, int content) {
+        return new WriteBehindQueue.Write(id, new byte[]{(byte) content}, Long.MAX_VALUE, content, 1, false);
+    }
+}